@@ -0,0 +1,60 @@
+package se.kth;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Directory views and startup over histories of 10^2 to 10^5 builds
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FilesystemBenchmark {
+    @Param({"100", "1000", "10000", "100000"})
+    int builds;
+
+    // a busy branch has thousands of builds
+    @Param({"100", "10000"})
+    int buildsPerBranch;
+
+    File root;
+    Filesystem filesystem;
+    String lastBranch;
+
+    @Setup
+    public void setUp() throws IOException {
+        root = History.create(builds, buildsPerBranch);
+        filesystem = new Filesystem(root.getPath(), false);
+        lastBranch = "owner/repo/branch" + (builds - 1) / buildsPerBranch;
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        filesystem.close();
+        History.delete(root);
+    }
+
+    @Benchmark
+    public Object branchPage() throws IOException {
+        return filesystem.getDirectory(lastBranch, 0, ContinuousIntegrationServer.PAGE_SIZE);
+    }
+
+    @Benchmark
+    public Object repositoryListing() throws IOException {
+        return filesystem.getDirectory("owner/repo");
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public Filesystem loadHistory() throws IOException {
+        Filesystem loaded = new Filesystem(root.getPath(), false);
+        loaded.close();
+        return loaded;
+    }
+}
@@ -0,0 +1,45 @@
+package se.kth;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * Synthetic build histories for the benchmarks
+ */
+public class History {
+    // every branch of a synthetic history has this many builds, unless it is given
+    static final int BUILDS_PER_BRANCH = 100;
+
+    static File create(int builds) throws IOException {
+        return create(builds, BUILDS_PER_BRANCH);
+    }
+
+    /**
+     * Creates a history of owner/repo/branch{n} directories, written straight to the build store
+     *
+     * @param builds    How many builds the history has
+     * @param perBranch How many builds every branch has
+     * @return The output directory
+     */
+    static File create(int builds, int perBranch) throws IOException {
+        File root = Files.createTempDirectory("history").toFile();
+        BuildStore store = new BuildStore(root);
+        store.load();
+        Filesystem.BuildStatus[] statuses = Filesystem.BuildStatus.values();
+        for (int i = 0; i < builds; i++) {
+            File branch = new File(root, "owner/repo/branch" + i / perBranch);
+            Filesystem.BuildData build = new Filesystem.BuildData(branch, statuses[i % statuses.length], "%040x".formatted(i));
+            build.time = 1_700_000_000_000L + i * 60_000L;
+            store.append(build);
+        }
+        store.close();
+        return root;
+    }
+
+    static void delete(File root) throws IOException {
+        FileUtils.deleteDirectory(root);
+    }
+}
@@ -0,0 +1,74 @@
+package se.kth;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading and rendering large build logs, stored plain and compressed
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LogBenchmark {
+    // size of the log in MB
+    @Param({"1", "16"})
+    int size;
+
+    @Param({"false", "true"})
+    boolean compressed;
+
+    File directory;
+    File log;
+    // readFileToEnd only reads plain files, so a plain copy is always kept
+    File plain;
+
+    @Setup
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("logs").toFile();
+        log = new File(directory, "commit.log");
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; builder.length() < size * 1024 * 1024; i++) {
+            builder.append("[12:00:00.000] [INFO] Running se.kth.SomeTest <line ").append(i).append(">\n");
+        }
+        Files.writeString(log.toPath(), builder, StandardCharsets.UTF_8);
+        plain = new File(directory, "plain.log");
+        Files.copy(log.toPath(), plain.toPath());
+        if (compressed) {
+            CompressedLog.compress(log);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        History.delete(directory);
+    }
+
+    @Benchmark
+    public String load() throws IOException {
+        return new Filesystem.LogData(log).toString();
+    }
+
+    @Benchmark
+    public void writeHtml() throws IOException {
+        new Filesystem.LogData(log).writeHtml(Writer.nullWriter());
+    }
+
+    @Benchmark
+    public String toHtml() throws IOException {
+        return new Filesystem.LogData(log).toHtml();
+    }
+
+    @Benchmark
+    public String readFileToEnd() throws IOException {
+        return Filesystem.readFileToEnd(plain);
+    }
+}
@@ -0,0 +1,31 @@
+package se.kth;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The overhead of starting a process and reading its output, which every git and mvn call pays
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProcessBenchmark {
+
+    @Benchmark
+    public String spawn() throws IOException, InterruptedException, ProcessException {
+        return ContinuousIntegration.startProcess("in git", null, "git", "--version");
+    }
+
+    @Benchmark
+    public StringWriter spawnLogged() throws IOException, InterruptedException, ProcessException {
+        StringWriter log = new StringWriter();
+        ContinuousIntegration.startProcess(log, null, "in git", null, "git", "--version");
+        return log;
+    }
+}
@@ -0,0 +1,57 @@
+package se.kth;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+
+/**
+ * Minimal servlet requests and responses, so the request handling can be benchmarked without a server
+ */
+public class Servlets {
+
+    /**
+     * @param parameters The query parameters
+     * @param headers    The request headers
+     */
+    static HttpServletRequest request(Map<String, String> parameters, Map<String, String> headers) {
+        return (HttpServletRequest) Proxy.newProxyInstance(Servlets.class.getClassLoader(), new Class[]{HttpServletRequest.class}, (_, method, args) -> switch (method.getName()) {
+            case "getParameter" -> parameters.get((String) args[0]);
+            case "getHeader" -> headers.get((String) args[0]);
+            default -> null;
+        });
+    }
+
+    /**
+     * @param out Where the body is written
+     */
+    static HttpServletResponse response(OutputStream out) {
+        PrintWriter writer = new PrintWriter(out);
+        ServletOutputStream stream = new ServletOutputStream() {
+            @Override
+            public void write(int b) {
+                writer.flush();
+                try {
+                    out.write(b);
+                } catch (java.io.IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws java.io.IOException {
+                writer.flush();
+                out.write(b, off, len);
+            }
+        };
+        return (HttpServletResponse) Proxy.newProxyInstance(Servlets.class.getClassLoader(), new Class[]{HttpServletResponse.class}, (_, method, _) -> switch (method.getName()) {
+            case "getWriter" -> writer;
+            case "getOutputStream" -> stream;
+            case "containsHeader", "isCommitted" -> false;
+            default -> null;
+        });
+    }
+}
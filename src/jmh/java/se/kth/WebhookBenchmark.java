@@ -0,0 +1,49 @@
+package se.kth;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing push webhooks of different sizes, GitHub sends up to 2048 commits in a push
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WebhookBenchmark {
+    @Param({"1", "20", "200", "2000"})
+    int commits;
+
+    byte[] payload;
+
+    @Setup
+    public void setUp() {
+        payload = PushEventTest.payload(commits);
+    }
+
+    @Benchmark
+    public String streaming() throws IOException {
+        return PushEvent.parse(new ByteArrayInputStream(payload), PushEvent.DEFAULT_MAX_SIZE).commitId;
+    }
+
+    @Benchmark
+    public String jsonObject() throws IOException {
+        // how the webhook was read before PushEvent
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(payload), StandardCharsets.UTF_8));
+        StringBuilder builder = new StringBuilder();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            builder.append(line);
+        }
+        return new JSONObject(builder.toString()).getJSONObject("head_commit").getString("id");
+    }
+}
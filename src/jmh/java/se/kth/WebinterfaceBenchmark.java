@@ -0,0 +1,68 @@
+package se.kth;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rendering of the web interface pages, the html is written to a blackhole
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WebinterfaceBenchmark {
+    @Param({"100", "10000"})
+    int builds;
+
+    File root;
+    ContinuousIntegrationServer server;
+
+    @Setup
+    public void setUp() throws IOException {
+        root = History.create(builds);
+        server = new ContinuousIntegrationServer();
+        // the history is not indexed for search, which would run in the background of the measurements
+        server.fileSystem.close();
+        server.fileSystem = new Filesystem(root.getPath(), false);
+        server.historyRenderer = new HistoryRenderer(server.fileSystem);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        server.queue.shutdown();
+        server.fileSystem.close();
+        History.delete(root);
+    }
+
+    OutputStream sink(Blackhole blackhole) {
+        return new OutputStream() {
+            @Override
+            public void write(int b) {
+                blackhole.consume(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                blackhole.consume(b);
+            }
+        };
+    }
+
+    @Benchmark
+    public void branchPage(Blackhole blackhole) throws IOException {
+        server.showWebinterface("/owner/repo/branch0", Servlets.request(Map.of(), Map.of()), Servlets.response(sink(blackhole)));
+    }
+
+    @Benchmark
+    public void repositoryPage(Blackhole blackhole) throws IOException {
+        server.showWebinterface("/owner/repo", Servlets.request(Map.of(), Map.of()), Servlets.response(sink(blackhole)));
+    }
+}
@@ -0,0 +1,261 @@
+package se.kth;
+
+import org.apache.commons.io.FilenameUtils;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory index of the build history by owner/repo/branch, so directory views never have to list directories
+ * or parse json. It is filled from the BuildStore at startup and updated by saveToFile.
+ */
+public class BuildIndex {
+    /**
+     * A directory of the build history, e.g. owner/repo/branch
+     */
+    public static class Node {
+        final String path;
+        final ConcurrentSkipListSet<String> children = new ConcurrentSkipListSet<>();
+        // the builds sorted by time are elements[start, end). A build is appended after end and the oldest build is
+        // removed by moving start, so readers see a view that never changes, and only other changes copy the array.
+        Filesystem.BuildData[] elements = new Filesystem.BuildData[0];
+        int start;
+        int end;
+        // the builds by commit, to find the build a new build of the same commit replaces
+        final Map<String, Filesystem.BuildData> commits = new HashMap<>();
+        volatile List<Filesystem.BuildData> builds = List.of();
+
+        Node(String path) {
+            this.path = path;
+        }
+
+        /**
+         * @return The builds of this directory, oldest first
+         */
+        public List<Filesystem.BuildData> getBuilds() {
+            return builds;
+        }
+
+        void publish() {
+            builds = Collections.unmodifiableList(Arrays.asList(elements).subList(start, end));
+        }
+
+        /**
+         * Replaces all builds at once
+         *
+         * @param loaded The builds in any order, at most one of every commit
+         */
+        synchronized void set(List<Filesystem.BuildData> loaded) {
+            elements = loaded.toArray(new Filesystem.BuildData[0]);
+            Arrays.sort(elements, Comparator.comparingLong(other -> other.time));
+            start = 0;
+            end = elements.length;
+            commits.clear();
+            for (Filesystem.BuildData build : elements) {
+                commits.put(build.commit, build);
+            }
+            publish();
+        }
+
+        synchronized void put(Filesystem.BuildData build) {
+            Filesystem.BuildData replaced = commits.put(build.commit, build);
+            if (replaced == null && (start == end || elements[end - 1].time <= build.time)) {
+                // the usual case, a build newer than all others
+                if (end == elements.length) {
+                    elements = Arrays.copyOfRange(elements, start, start + Math.max(16, (end - start) * 2));
+                    end -= start;
+                    start = 0;
+                }
+                elements[end++] = build;
+                publish();
+                return;
+            }
+            ArrayList<Filesystem.BuildData> list = new ArrayList<>(end - start + 1);
+            for (int i = start; i < end; i++) {
+                if (elements[i] != replaced) {
+                    list.add(elements[i]);
+                }
+            }
+            // after the builds of the same time, as it is the latest
+            int index = list.size();
+            while (index > 0 && list.get(index - 1).time > build.time) {
+                index--;
+            }
+            list.add(index, build);
+            setElements(list);
+        }
+
+        synchronized boolean remove(Filesystem.BuildData build) {
+            // a newer build of the same commit stays
+            if (commits.get(build.commit) != build) {
+                return false;
+            }
+            commits.remove(build.commit);
+            if (elements[start] == build) {
+                // the oldest build, the usual case when old builds are removed
+                start++;
+                publish();
+                return true;
+            }
+            ArrayList<Filesystem.BuildData> list = new ArrayList<>(end - start);
+            for (int i = start; i < end; i++) {
+                if (elements[i] != build) {
+                    list.add(elements[i]);
+                }
+            }
+            setElements(list);
+            return true;
+        }
+
+        void setElements(List<Filesystem.BuildData> list) {
+            elements = list.toArray(new Filesystem.BuildData[0]);
+            start = 0;
+            end = elements.length;
+            publish();
+        }
+    }
+
+    final Path root;
+    final Map<String, Node> nodes = new ConcurrentHashMap<>();
+    // changes every time anything in the index changes
+    final AtomicLong version = new AtomicLong();
+
+    /**
+     * @param root The output directory of the build history
+     */
+    BuildIndex(File root) {
+        this.root = Filesystem.key(root);
+        getOrCreate("");
+    }
+
+    /**
+     * @param file A directory or file in the build history
+     * @return The path relative to the root, with / as separator
+     */
+    String relative(Path file) {
+        Path path = file.toAbsolutePath().normalize();
+        if (!path.startsWith(root)) {
+            return null;
+        }
+        return FilenameUtils.separatorsToUnix(root.relativize(path).toString());
+    }
+
+    /**
+     * @param target eg /name/repo/branch
+     * @return The same path without empty parts, eg name/repo/branch
+     */
+    static String normalize(String target) {
+        StringBuilder builder = new StringBuilder();
+        for (String part : target.split("/")) {
+            if (!part.isEmpty()) {
+                if (!builder.isEmpty()) {
+                    builder.append('/');
+                }
+                builder.append(part);
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * @param target eg name/repo/branch
+     * @return The directory or null if it is not part of the history
+     */
+    public Node get(String target) {
+        return nodes.get(normalize(target));
+    }
+
+    /**
+     * @return A number that changes whenever the index changes
+     */
+    public long getVersion() {
+        return version.get();
+    }
+
+    /**
+     * Gets a directory, and creates it and its parents if needed
+     */
+    Node getOrCreate(String path) {
+        Node node = nodes.get(path);
+        if (node != null) {
+            return node;
+        }
+        node = nodes.computeIfAbsent(path, Node::new);
+        if (!path.isEmpty()) {
+            int split = path.lastIndexOf('/');
+            Node parent = getOrCreate(split < 0 ? "" : path.substring(0, split));
+            parent.children.add(path.substring(split + 1));
+        }
+        version.incrementAndGet();
+        return node;
+    }
+
+    /**
+     * Adds the builds read at startup, every directory is filled and sorted once
+     *
+     * @param builds At most one build of every commit of a directory
+     */
+    public void load(Collection<Filesystem.BuildData> builds) {
+        Map<String, List<Filesystem.BuildData>> byPath = new HashMap<>();
+        for (Filesystem.BuildData build : builds) {
+            String path = relative(build.directory.toPath());
+            if (path != null) {
+                byPath.computeIfAbsent(path, _ -> new ArrayList<>()).add(build);
+            }
+        }
+        for (Map.Entry<String, List<Filesystem.BuildData>> entry : byPath.entrySet()) {
+            getOrCreate(entry.getKey()).set(entry.getValue());
+        }
+        version.incrementAndGet();
+    }
+
+    /**
+     * Adds or replaces a build, its branch directory decides where it is shown
+     */
+    public void put(Filesystem.BuildData build) {
+        String path = relative(build.directory.toPath());
+        if (path == null) {
+            return;
+        }
+        getOrCreate(path).put(build);
+        version.incrementAndGet();
+    }
+
+    /**
+     * Removes a build
+     */
+    public void remove(Filesystem.BuildData build) {
+        Node node = nodes.get(relative(build.directory.toPath()));
+        if (node != null && node.remove(build)) {
+            version.incrementAndGet();
+        }
+    }
+
+    /**
+     * Removes a directory and everything in it
+     */
+    public void removeDirectory(Path directory) {
+        String path = relative(directory);
+        if (path == null || path.isEmpty()) {
+            return;
+        }
+        nodes.keySet().removeIf(key -> key.equals(path) || key.startsWith(path + "/"));
+        int split = path.lastIndexOf('/');
+        Node parent = nodes.get(split < 0 ? "" : path.substring(0, split));
+        if (parent != null) {
+            parent.children.remove(path.substring(split + 1));
+        }
+        version.incrementAndGet();
+    }
+}
@@ -0,0 +1,107 @@
+package se.kth;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The log of a running build, everything written is streamed straight to the log file and only the
+ * end of the log is kept in memory, so a build uses the same amount of memory whatever its log size.
+ */
+public class BuildLog extends Writer {
+    static final int TAIL_SIZE = 64 * 1024;
+    // how long written text may stay buffered before live viewers can see it
+    static final long FLUSH_INTERVAL = 250_000_000L;
+
+    final File file;
+    final FileOutputStream stream;
+    final Writer out;
+    final LogTail tail = new LogTail(TAIL_SIZE);
+    // live viewers wait on this until the file grows
+    final Object progress = new Object();
+    // how many bytes are in the file
+    volatile long length;
+    volatile boolean closed;
+    long lastFlush = System.nanoTime();
+
+    /**
+     * @param file The log file, it is created or truncated
+     */
+    BuildLog(File file) throws IOException {
+        this.file = file;
+        this.stream = new FileOutputStream(file);
+        this.out = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public synchronized void write(char[] chars, int offset, int length) throws IOException {
+        out.write(chars, offset, length);
+        tail.append(chars, offset, length);
+        if (System.nanoTime() - lastFlush > FLUSH_INTERVAL) {
+            flush();
+        }
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        if (closed) {
+            return;
+        }
+        out.flush();
+        lastFlush = System.nanoTime();
+        length = stream.getChannel().position();
+        synchronized (progress) {
+            progress.notifyAll();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        out.close();
+        length = file.length();
+        closed = true;
+        synchronized (progress) {
+            progress.notifyAll();
+        }
+    }
+
+    /**
+     * Waits until the file is longer than offset, the log is closed or the timeout is reached
+     *
+     * @param offset        The number of bytes the caller has already read
+     * @param timeoutMillis How long to wait at most
+     * @return The number of bytes in the file
+     */
+    public long awaitGrowth(long offset, long timeoutMillis) throws InterruptedException {
+        synchronized (progress) {
+            if (length <= offset && !closed) {
+                progress.wait(timeoutMillis);
+            }
+        }
+        return length;
+    }
+
+    /**
+     * @return If the build has finished writing the log
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * @return The last part of the log, the full log is in the file
+     */
+    public String getTail() {
+        return tail.toString();
+    }
+
+    /**
+     * @return The last part of the log, as the full log is never kept in memory
+     */
+    @Override
+    public String toString() {
+        return getTail();
+    }
+}
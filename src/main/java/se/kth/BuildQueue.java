@@ -0,0 +1,330 @@
+package se.kth;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Queue of build jobs that are run by a fixed number of worker (virtual) threads,
+ * so that the webhook can return as soon as a job is queued. Only the newest push of a branch is built,
+ * a newer push replaces a queued job of the same branch and cancels a running one.
+ * The Scheduler decides which queued job a free worker takes.
+ */
+public class BuildQueue {
+    /**
+     * How many finished jobs are kept in memory for the job API
+     */
+    static final int FINISHED_HISTORY = 200;
+
+    enum JobState {
+        QUEUED,
+        RUNNING,
+        FINISHED,
+    }
+
+    /**
+     * A single build of a pushed commit
+     */
+    public static class BuildJob {
+        final long id;
+        final String repository;
+        final String ownerName;
+        final String repoName;
+        final String branchName;
+        final String commitId;
+        final long queuedTime;
+        volatile long startTime;
+        volatile long finishTime;
+        volatile JobState state = JobState.QUEUED;
+        volatile Filesystem.BuildStatus status = Filesystem.BuildStatus.PENDING;
+        // the git tree of the commit, if the webhook had it
+        volatile String tree;
+        // set when a newer push of the same branch is queued
+        volatile BuildJob supersededBy;
+        // the priority class, higher goes first
+        int priority;
+        // the processes the build is running, killed when the job is superseded
+        final Set<Process> processes = ConcurrentHashMap.newKeySet();
+
+        BuildJob(long id, String repository, String ownerName, String repoName, String branchName, String commitId) {
+            this.id = id;
+            this.repository = repository;
+            this.ownerName = ownerName;
+            this.repoName = repoName;
+            this.branchName = branchName;
+            this.commitId = commitId;
+            this.queuedTime = System.currentTimeMillis();
+        }
+
+        /**
+         * @return owner/repo/branch, only one job of a branch is built at a time
+         */
+        String getBranchKey() {
+            return ownerName + "/" + repoName + "/" + branchName;
+        }
+
+        /**
+         * @return If a newer push of the same branch replaced this job
+         */
+        boolean isSuperseded() {
+            return supersededBy != null;
+        }
+
+        /**
+         * Keeps track of a process of the build, so it can be killed if the job is superseded
+         */
+        void track(Process process) {
+            processes.add(process);
+            if (isSuperseded()) {
+                kill(process);
+            }
+        }
+
+        void untrack(Process process) {
+            processes.remove(process);
+        }
+
+        /**
+         * Marks the job as replaced by a newer job and kills every process it runs, including their children
+         * (e.g. the forked test jvm of mvn)
+         */
+        void supersede(BuildJob newer) {
+            supersededBy = newer;
+            for (Process process : processes) {
+                kill(process);
+            }
+        }
+
+        static void kill(Process process) {
+            // children first, once the parent is gone they can no longer be found
+            process.descendants().forEach(ProcessHandle::destroyForcibly);
+            process.destroyForcibly();
+        }
+
+        JSONObject toJson() {
+            JSONObject jo = new JSONObject();
+            jo.put("id", id);
+            jo.put("owner", ownerName);
+            jo.put("repo", repoName);
+            jo.put("branch", branchName);
+            jo.put("commit", commitId);
+            jo.put("state", state);
+            jo.put("status", status);
+            jo.put("queued", queuedTime);
+            jo.put("priority", priority);
+            // how long it waited, or is waiting, for a worker
+            jo.put("wait", (startTime != 0 ? startTime : state == JobState.QUEUED ? System.currentTimeMillis() : finishTime) - queuedTime);
+            jo.put("log", "/live/" + ownerName + "/" + repoName + "/" + branchName + "/" + commitId + ".log");
+            if (startTime != 0) {
+                jo.put("started", startTime);
+            }
+            if (finishTime != 0) {
+                jo.put("finished", finishTime);
+            }
+            if (supersededBy != null) {
+                jo.put("supersededBy", supersededBy.id);
+            }
+            return jo;
+        }
+    }
+
+    final Scheduler scheduler = new Scheduler();
+    final Map<Long, BuildJob> jobs = new ConcurrentHashMap<>();
+    final ArrayDeque<BuildJob> finished = new ArrayDeque<>();
+    final AtomicLong nextId = new AtomicLong(1);
+    final AtomicInteger active = new AtomicInteger();
+    final Function<BuildJob, Filesystem.BuildStatus> runner;
+    final Consumer<BuildJob> superseded;
+    final List<Thread> workers = new ArrayList<>();
+    // the newest job of every branch, by owner/repo/branch
+    final Map<String, BuildJob> newest = new HashMap<>();
+    // a newer push of a branch replaces the older job
+    boolean supersede = Config.getBoolean("CI_SUPERSEDE", true);
+    // the job the current worker thread is running
+    static final ThreadLocal<BuildJob> current = new ThreadLocal<>();
+
+    /**
+     * @param workerCount How many builds can run at the same time
+     * @param runner      Runs a job and returns the final status
+     */
+    BuildQueue(int workerCount, Function<BuildJob, Filesystem.BuildStatus> runner) {
+        this(workerCount, runner, job -> {
+        });
+    }
+
+    /**
+     * @param workerCount How many builds can run at the same time
+     * @param runner      Runs a job and returns the final status
+     * @param superseded  Called for a queued job that is removed from the queue because of a newer push,
+     *                    a running job is instead cancelled and its runner returns
+     */
+    BuildQueue(int workerCount, Function<BuildJob, Filesystem.BuildStatus> runner, Consumer<BuildJob> superseded) {
+        this.runner = runner;
+        this.superseded = superseded;
+        for (int i = 0; i < Math.max(1, workerCount); i++) {
+            workers.add(Thread.ofVirtual().name("ci-worker-" + i).start(this::work));
+        }
+    }
+
+    /**
+     * Queues a new build, this never blocks
+     *
+     * @return The queued job
+     */
+    public BuildJob submit(String repository, String ownerName, String repoName, String branchName, String commitId) {
+        return submit(repository, ownerName, repoName, branchName, commitId, false);
+    }
+
+    /**
+     * Queues a new build, this never blocks
+     *
+     * @param defaultBranch If the branch is the default branch of the repository, which has a higher priority
+     * @return The queued job
+     */
+    public BuildJob submit(String repository, String ownerName, String repoName, String branchName, String commitId, boolean defaultBranch) {
+        BuildJob job = new BuildJob(nextId.getAndIncrement(), repository, ownerName, repoName, branchName, commitId);
+        job.priority = scheduler.getPriority(job, defaultBranch);
+        jobs.put(job.id, job);
+        BuildJob older;
+        synchronized (newest) {
+            older = newest.put(job.getBranchKey(), job);
+        }
+        scheduler.add(job);
+        if (supersede && older != null && older.state != JobState.FINISHED) {
+            older.supersede(job);
+            if (scheduler.remove(older)) {
+                // it never started, so it is finished without a build
+                older.status = Filesystem.BuildStatus.SUPERSEDED;
+                older.finishTime = System.currentTimeMillis();
+                older.state = JobState.FINISHED;
+                retire(older);
+                superseded.accept(older);
+            }
+        }
+        return job;
+    }
+
+    /**
+     * @return The job that the current thread is running, or null if it is not a worker
+     */
+    static BuildJob currentJob() {
+        return current.get();
+    }
+
+    /**
+     * The worker loop, takes jobs until the thread is interrupted
+     */
+    void work() {
+        while (!Thread.currentThread().isInterrupted()) {
+            BuildJob job;
+            try {
+                job = scheduler.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            active.incrementAndGet();
+            job.startTime = System.currentTimeMillis();
+            job.state = JobState.RUNNING;
+            current.set(job);
+            try {
+                job.status = runner.apply(job);
+            } catch (Throwable t) {
+                // a job may never kill the worker
+                t.printStackTrace();
+                job.status = Filesystem.BuildStatus.FAILED_SETUP;
+            } finally {
+                current.remove();
+                job.finishTime = System.currentTimeMillis();
+                job.state = JobState.FINISHED;
+                active.decrementAndGet();
+                scheduler.done(job);
+                retire(job);
+            }
+        }
+    }
+
+    /**
+     * Moves the job to the bounded list of finished jobs
+     */
+    void retire(BuildJob job) {
+        synchronized (newest) {
+            newest.remove(job.getBranchKey(), job);
+        }
+        synchronized (finished) {
+            finished.addLast(job);
+            while (finished.size() > FINISHED_HISTORY) {
+                jobs.remove(finished.removeFirst().id);
+            }
+        }
+    }
+
+    /**
+     * @param id The job id
+     * @return The job or null if it is unknown or too old
+     */
+    public BuildJob getJob(long id) {
+        return jobs.get(id);
+    }
+
+    /**
+     * @return All known jobs, newest first
+     */
+    public List<BuildJob> getJobs() {
+        ArrayList<BuildJob> list = new ArrayList<>(jobs.values());
+        list.sort(Comparator.comparingLong((BuildJob job) -> job.id).reversed());
+        return list;
+    }
+
+    /**
+     * @return How many jobs are waiting for a worker
+     */
+    public int getQueueDepth() {
+        return scheduler.size();
+    }
+
+    /**
+     * @return How many workers are currently building
+     */
+    public int getActiveWorkers() {
+        return active.get();
+    }
+
+    /**
+     * @return The queue state for the web interface
+     */
+    JSONObject toJson() {
+        JSONObject jo = new JSONObject();
+        jo.put("workers", workers.size());
+        jo.put("active", getActiveWorkers());
+        jo.put("queued", getQueueDepth());
+        jo.put("scheduler", scheduler.toJson());
+        JSONArray array = new JSONArray();
+        for (BuildJob job : getJobs()) {
+            array.put(job.toJson());
+        }
+        jo.put("jobs", array);
+        return jo;
+    }
+
+    /**
+     * Stops all workers, running builds are interrupted
+     */
+    public void shutdown() {
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+    }
+}
@@ -0,0 +1,410 @@
+package se.kth;
+
+import org.apache.commons.io.FilenameUtils;
+import org.json.JSONObject;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only storage of the build metadata. Recording a build is one record appended to the newest segment
+ * file in .meta, and all history is read back with one sequential read at startup. A record is
+ * [length][crc32][compact json], a later record of the same build replaces the earlier one, a tombstone record
+ * removes it, and when most records are replaced the live ones are compacted into a single segment.
+ */
+public class BuildStore {
+    static final String DIRECTORY = ".meta";
+    static final String SEGMENT_PREFIX = "segment-";
+    static final String SEGMENT_EXTENSION = ".dat";
+    // a new segment is started when the newest one is larger than this
+    static final long SEGMENT_SIZE = Config.getLong("CI_STORE_SEGMENT_SIZE", 16L * 1024 * 1024);
+    // compaction only runs when there are at least this many replaced records
+    static final int COMPACT_MIN_GARBAGE = 1000;
+    // anything larger is treated as a corrupt record
+    static final int MAX_RECORD = 1024 * 1024;
+    static final int HEADER_SIZE = 8;
+
+    final File outputDirectory;
+    final File directory;
+    // the latest record of every build, by owner/repo/branch/commit
+    final Map<String, Filesystem.BuildData> builds = new ConcurrentHashMap<>();
+    // the latest reusable build of every tree and build settings, by tree/config
+    final Map<String, Filesystem.BuildData> results = new ConcurrentHashMap<>();
+    final AtomicBoolean compacting = new AtomicBoolean();
+    // held while a segment is compacted, so only one compaction runs at a time
+    final Object compaction = new Object();
+    // a tree whose tests failed is built again after this long, as the failure may not come from the tree, 0 is never
+    long failedResultMillis = Config.getLong("CI_FAILED_RESULT_TTL", 24 * 3600) * 1000;
+    FileChannel active;
+    long activeId;
+    // all records in the segments, including replaced ones
+    long records;
+
+    /**
+     * @param outputDirectory The output directory of the build history, the store is kept in its .meta directory
+     */
+    BuildStore(File outputDirectory) {
+        this.outputDirectory = outputDirectory;
+        this.directory = new File(outputDirectory, DIRECTORY);
+    }
+
+    /**
+     * @param build A build
+     * @return Where the build is shown, e.g. owner/repo/branch
+     */
+    String path(Filesystem.BuildData build) {
+        return relative(build.directory);
+    }
+
+    String key(Filesystem.BuildData build) {
+        return path(build) + "/" + build.commit;
+    }
+
+    /**
+     * @param path eg owner/repo/branch
+     * @return The latest record of the build, or null
+     */
+    public Filesystem.BuildData get(String path, String commit) {
+        return builds.get(BuildIndex.normalize(path) + "/" + commit);
+    }
+
+    /**
+     * @return The latest reusable build of the tree and build settings, or null
+     */
+    public Filesystem.BuildData findResult(String tree, String config) {
+        Filesystem.BuildData build = results.get(tree + "/" + config);
+        if (build != null && build.status == Filesystem.BuildStatus.FAILED_TO_TEST && failedResultMillis > 0
+                && System.currentTimeMillis() - build.time > failedResultMillis) {
+            return null;
+        }
+        return build;
+    }
+
+    void index(Filesystem.BuildData build) {
+        builds.put(key(build), build);
+        if (build.isReusable()) {
+            results.put(build.tree + "/" + build.config, build);
+        }
+    }
+
+    void unindex(String key) {
+        Filesystem.BuildData build = builds.remove(key);
+        if (build != null && build.isReusable()) {
+            results.remove(build.tree + "/" + build.config, build);
+        }
+    }
+
+    /**
+     * @param file A file in the output directory
+     * @return The path relative to the output directory, with / as separator
+     */
+    String relative(File file) {
+        return FilenameUtils.separatorsToUnix(Filesystem.key(outputDirectory).relativize(Filesystem.key(file)).toString());
+    }
+
+    /**
+     * Reads all segments, and the json files of an older version of the server the first time
+     *
+     * @return The latest record of every build
+     */
+    synchronized Collection<Filesystem.BuildData> load() throws IOException {
+        Boolean _ = directory.mkdirs();
+        long[] ids = segments();
+        for (int i = 0; i < ids.length; i++) {
+            File segment = segmentFile(ids[i]);
+            long valid = read(segment);
+            if (valid < segment.length()) {
+                // the server stopped while writing, only the newest segment can end like that
+                System.err.println("Ignoring a broken record at " + valid + " in " + segment);
+                if (i == ids.length - 1) {
+                    try (FileChannel channel = FileChannel.open(segment.toPath(), StandardOpenOption.WRITE)) {
+                        channel.truncate(valid);
+                    }
+                }
+            }
+        }
+        activeId = ids.length == 0 ? 0 : ids[ids.length - 1];
+        active = open(activeId);
+        if (ids.length == 0) {
+            migrate();
+        }
+        return builds.values();
+    }
+
+    /**
+     * @return The ids of all segments, oldest first
+     */
+    long[] segments() {
+        String[] names = directory.list();
+        if (names == null) {
+            return new long[0];
+        }
+        return Arrays.stream(names)
+                .filter(name -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_EXTENSION))
+                .mapToLong(name -> {
+                    try {
+                        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_EXTENSION.length()));
+                    } catch (NumberFormatException e) {
+                        return -1;
+                    }
+                })
+                .filter(id -> id >= 0)
+                .sorted()
+                .toArray();
+    }
+
+    File segmentFile(long id) {
+        return new File(directory, SEGMENT_PREFIX + "%08d".formatted(id) + SEGMENT_EXTENSION);
+    }
+
+    FileChannel open(long id) throws IOException {
+        return FileChannel.open(segmentFile(id).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Reads all records of a segment
+     *
+     * @return How many bytes of the segment are valid records
+     */
+    long read(File segment) throws IOException {
+        return read(segment, MAX_RECORD, record -> {
+            apply(record);
+            records++;
+        });
+    }
+
+    /**
+     * Reads the records of a file in the format of the segments, up to the first broken record
+     *
+     * @param maxRecord Anything larger is treated as a corrupt record
+     * @param apply     Called with every record in order
+     * @return How many bytes of the file are valid records
+     */
+    static long read(File segment, int maxRecord, Consumer<JSONObject> apply) throws IOException {
+        return read(segment, Long.MAX_VALUE, maxRecord, apply);
+    }
+
+    /**
+     * @param limit The records that start from here on are not read
+     */
+    static long read(File segment, long limit, int maxRecord, Consumer<JSONObject> apply) throws IOException {
+        long position = 0;
+        CRC32 crc = new CRC32();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment), 64 * 1024))) {
+            while (position < limit) {
+                int length;
+                int checksum;
+                try {
+                    length = in.readInt();
+                    checksum = in.readInt();
+                } catch (EOFException e) {
+                    return position;
+                }
+                if (length <= 0 || length > maxRecord) {
+                    return position;
+                }
+                byte[] payload = new byte[length];
+                if (in.readNBytes(payload, 0, length) < length) {
+                    return position;
+                }
+                crc.reset();
+                crc.update(payload);
+                if ((int) crc.getValue() != checksum) {
+                    return position;
+                }
+                apply.accept(new JSONObject(new String(payload, StandardCharsets.UTF_8)));
+                position += HEADER_SIZE + length;
+            }
+            return position;
+        }
+    }
+
+    void apply(JSONObject record) {
+        if (record.optBoolean("deleted")) {
+            unindex(BuildIndex.normalize(record.getString("path")) + "/" + record.getString("commit"));
+            return;
+        }
+        File buildDirectory = new File(outputDirectory, record.getString("path"));
+        Filesystem.BuildData build = new Filesystem.BuildData(record, buildDirectory);
+        if (record.has("log")) {
+            build.log = new File(outputDirectory, record.getString("log"));
+        }
+        index(build);
+    }
+
+    static ByteBuffer encode(JSONObject record) {
+        byte[] payload = record.toString().getBytes(StandardCharsets.UTF_8);
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+        buffer.putInt(payload.length);
+        buffer.putInt((int) crc.getValue());
+        buffer.put(payload);
+        return buffer.flip();
+    }
+
+    JSONObject record(Filesystem.BuildData build) {
+        JSONObject record = build.toJson().put("path", path(build));
+        if (build.log != null) {
+            record.put("log", relative(build.log));
+        }
+        return record;
+    }
+
+    /**
+     * Stores a build, replacing any earlier record of it
+     */
+    public synchronized void append(Filesystem.BuildData build) throws IOException {
+        write(encode(record(build)));
+        index(build);
+        compactIfNeeded();
+    }
+
+    /**
+     * Removes a build by appending a tombstone, the build and the tombstone are dropped at the next compaction
+     *
+     * @param build The build to remove
+     * @return If it was removed, false if it was replaced by a newer record in the meantime
+     */
+    public synchronized boolean remove(Filesystem.BuildData build) throws IOException {
+        String key = key(build);
+        if (builds.get(key) != build) {
+            return false;
+        }
+        write(encode(new JSONObject().put("path", path(build)).put("commit", build.commit).put("deleted", true)));
+        unindex(key);
+        compactIfNeeded();
+        return true;
+    }
+
+    /**
+     * Writes a record to the newest segment
+     */
+    void write(ByteBuffer buffer) throws IOException {
+        if (active.size() > 0 && active.size() + buffer.remaining() > SEGMENT_SIZE) {
+            active.close();
+            activeId++;
+            active = open(activeId);
+        }
+        while (buffer.hasRemaining()) {
+            active.write(buffer);
+        }
+        records++;
+    }
+
+    /**
+     * Starts a compaction in the background if most records are replaced or removed
+     */
+    void compactIfNeeded() {
+        if (records - builds.size() > Math.max(COMPACT_MIN_GARBAGE, builds.size()) && compacting.compareAndSet(false, true)) {
+            Thread.ofVirtual().name("build-store-compaction").start(() -> {
+                try {
+                    compact();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                } finally {
+                    compacting.set(false);
+                }
+            });
+        }
+    }
+
+    /**
+     * Writes the latest record of every build into a new segment and removes all older segments. Only the start and
+     * the end hold the lock, records stored while the new segment is written go to a segment after it.
+     */
+    void compact() throws IOException {
+        synchronized (compaction) {
+            long id;
+            long before;
+            List<Filesystem.BuildData> live;
+            synchronized (this) {
+                id = activeId + 1;
+                before = records;
+                live = new ArrayList<>(builds.values());
+                active.close();
+                activeId = id + 1;
+                active = open(activeId);
+            }
+
+            File compacted = segmentFile(id);
+            File temporary = new File(compacted.getPath() + ".tmp");
+            try (FileChannel channel = FileChannel.open(temporary.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                for (Filesystem.BuildData build : live) {
+                    ByteBuffer buffer = encode(record(build));
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                }
+                channel.force(true);
+            }
+            Files.move(temporary.toPath(), compacted.toPath(), StandardCopyOption.ATOMIC_MOVE);
+
+            synchronized (this) {
+                // if the server stops here the old records are read again before the compacted ones, which is harmless
+                for (long old : segments()) {
+                    if (old < id) {
+                        Files.deleteIfExists(segmentFile(old).toPath());
+                    }
+                }
+                records = live.size() + records - before;
+                if (activeId == id + 1 && active.size() == 0) {
+                    // nothing was stored in the meantime, the compacted segment is the newest
+                    active.close();
+                    Files.delete(segmentFile(activeId).toPath());
+                    activeId = id;
+                    active = open(id);
+                }
+            }
+        }
+    }
+
+    /**
+     * Moves the builds stored as one json file per commit into the store, and removes the json files
+     */
+    void migrate() throws IOException {
+        ArrayList<Path> migrated = new ArrayList<>();
+        Path meta = directory.toPath();
+        try (Stream<Path> files = Files.walk(outputDirectory.toPath())) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                if (file.startsWith(meta) || !Files.isRegularFile(file)
+                        || !FilenameUtils.getExtension(file.toString()).equalsIgnoreCase("json")) {
+                    continue;
+                }
+                try {
+                    append(new Filesystem.BuildData(file.toFile()));
+                    migrated.add(file);
+                } catch (Exception e) {
+                    // not a build
+                    System.err.println("Not migrating " + file + ": " + e.getMessage());
+                }
+            }
+        }
+        if (migrated.isEmpty()) {
+            return;
+        }
+        active.force(true);
+        for (Path file : migrated) {
+            Files.deleteIfExists(file);
+        }
+        System.out.println("Migrated " + migrated.size() + " builds into " + directory);
+    }
+
+    synchronized void close() throws IOException {
+        if (active != null) {
+            active.close();
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package se.kth;
+
+import org.apache.commons.io.output.CloseShieldOutputStream;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A log stored as a seekable gzip file. The log is split into blocks that are compressed as separate gzip
+ * members, so the file is still a normal gzip file, and an index (.idx) stores where every block starts.
+ * Reading from the middle of the log only decompresses from the block that contains the offset.
+ */
+public class CompressedLog {
+    static final String EXTENSION = ".gz";
+    static final String INDEX_EXTENSION = ".idx";
+    static final int BLOCK_SIZE = 256 * 1024;
+    static final int MAGIC = 0x43494c47;
+
+    final File file;
+    // start of every block in the log and in the compressed file
+    final long[] offsets;
+    final long[] compressedOffsets;
+    final long length;
+
+    /**
+     * @param log The plain log file, e.g. commit.log
+     * @return The compressed file, e.g. commit.log.gz
+     */
+    static File compressedFile(File log) {
+        return new File(log.getPath() + EXTENSION);
+    }
+
+    static File indexFile(File log) {
+        return new File(log.getPath() + INDEX_EXTENSION);
+    }
+
+    /**
+     * Opens the compressed form of a log
+     *
+     * @param log The plain log file, e.g. commit.log
+     */
+    CompressedLog(File log) throws IOException {
+        this.file = compressedFile(log);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile(log))))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a log index " + indexFile(log));
+            }
+            int blocks = in.readInt();
+            offsets = new long[blocks];
+            compressedOffsets = new long[blocks];
+            for (int i = 0; i < blocks; i++) {
+                offsets[i] = in.readLong();
+                compressedOffsets[i] = in.readLong();
+            }
+            length = in.readLong();
+        }
+    }
+
+    /**
+     * @param log The plain log file, e.g. commit.log
+     * @return If the log is stored compressed
+     */
+    static boolean exists(File log) {
+        return compressedFile(log).isFile() && indexFile(log).isFile();
+    }
+
+    /**
+     * @return The size of the uncompressed log in bytes
+     */
+    public long length() {
+        return length;
+    }
+
+    /**
+     * @param offset Where to start in the uncompressed log
+     * @return The uncompressed log from the offset
+     */
+    public InputStream open(long offset) throws IOException {
+        if (offsets.length == 0 || offset >= length) {
+            return InputStream.nullInputStream();
+        }
+        int block = Arrays.binarySearch(offsets, offset);
+        if (block < 0) {
+            block = -block - 2;
+        }
+        FileInputStream in = new FileInputStream(file);
+        try {
+            in.getChannel().position(compressedOffsets[block]);
+            // reads on through the following gzip members
+            InputStream stream = new GZIPInputStream(new BufferedInputStream(in), 64 * 1024);
+            stream.skipNBytes(offset - offsets[block]);
+            return stream;
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Compresses a plain log and removes it. The compressed file is moved into place when it is complete,
+     * so there is always either the plain or the compressed log.
+     *
+     * @param log The plain log file, e.g. commit.log
+     */
+    static void compress(File log) throws IOException {
+        File compressed = compressedFile(log);
+        File index = indexFile(log);
+        File compressedTemporary = new File(compressed.getPath() + ".tmp");
+        File indexTemporary = new File(index.getPath() + ".tmp");
+
+        long[] offsets = new long[16];
+        long[] compressedOffsets = new long[16];
+        int blocks = 0;
+        long length = 0;
+        try (InputStream in = new FileInputStream(log);
+             FileOutputStream out = new FileOutputStream(compressedTemporary)) {
+            byte[] buffer = new byte[BLOCK_SIZE];
+            int read;
+            while ((read = in.readNBytes(buffer, 0, buffer.length)) > 0) {
+                if (blocks == offsets.length) {
+                    offsets = Arrays.copyOf(offsets, blocks * 2);
+                    compressedOffsets = Arrays.copyOf(compressedOffsets, blocks * 2);
+                }
+                offsets[blocks] = length;
+                compressedOffsets[blocks] = out.getChannel().position();
+                blocks++;
+
+                // every block is its own gzip member, so it can be decompressed alone
+                GZIPOutputStream member = new GZIPOutputStream(CloseShieldOutputStream.wrap(out), 64 * 1024);
+                member.write(buffer, 0, read);
+                member.finish();
+                member.close();
+                length += read;
+            }
+        }
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexTemporary)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(blocks);
+            for (int i = 0; i < blocks; i++) {
+                out.writeLong(offsets[i]);
+                out.writeLong(compressedOffsets[i]);
+            }
+            out.writeLong(length);
+        }
+
+        Files.move(indexTemporary.toPath(), index.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.move(compressedTemporary.toPath(), compressed.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.deleteIfExists(log.toPath());
+    }
+}
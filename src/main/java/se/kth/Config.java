@@ -0,0 +1,57 @@
+package se.kth;
+
+/**
+ * Server settings, read from environment variables (or -D system properties) with a default fallback
+ */
+public class Config {
+    private Config() {
+    }
+
+    /**
+     * @param name     The setting name, e.g. CI_WORKERS
+     * @param fallback Value used when the setting is not set
+     * @return The raw value of the setting
+     */
+    static String getString(String name, String fallback) {
+        String value = System.getProperty(name);
+        if (value == null || value.isBlank()) {
+            value = System.getenv(name);
+        }
+        return value == null || value.isBlank() ? fallback : value.trim();
+    }
+
+    /**
+     * @param name     The setting name, e.g. CI_WORKERS
+     * @param fallback Value used when the setting is not set or not a number
+     * @return The setting as an int
+     */
+    static int getInt(String name, int fallback) {
+        try {
+            return Integer.parseInt(getString(name, Integer.toString(fallback)));
+        } catch (NumberFormatException e) {
+            return fallback;
+        }
+    }
+
+    /**
+     * @param name     The setting name, e.g. CI_WORKERS
+     * @param fallback Value used when the setting is not set or not a number
+     * @return The setting as a long
+     */
+    static long getLong(String name, long fallback) {
+        try {
+            return Long.parseLong(getString(name, Long.toString(fallback)));
+        } catch (NumberFormatException e) {
+            return fallback;
+        }
+    }
+
+    /**
+     * @param name     The setting name, e.g. CI_WORKERS
+     * @param fallback Value used when the setting is not set
+     * @return The setting as a boolean
+     */
+    static boolean getBoolean(String name, boolean fallback) {
+        return Boolean.parseBoolean(getString(name, Boolean.toString(fallback)));
+    }
+}
@@ -3,21 +3,106 @@ package se.kth;
 import org.apache.commons.io.FileUtils;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.LocalTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 
 /**
  * This is the main class for running the compiler or cloning the repository.
  */
 public class ContinuousIntegration {
     String buildDirectory;
+    // if set, builds are checked out from a local mirror instead of cloned
+    RepositoryCache repositoryCache;
+    // runs mvn test once instead of mvn compile followed by mvn test
+    boolean singleInvocation = Config.getBoolean("CI_SINGLE_INVOCATION", true);
+    // the git tree that is built, stored with the result so other commits of the same tree can reuse it
+    String tree;
+    // how long each stage took in milliseconds, saved with the build
+    final EnumMap<Metrics.Stage, Long> stages = new EnumMap<>(Metrics.Stage.class);
+    // the saved build, set when runContinuousIntegration returns
+    Filesystem.BuildData build;
+    // how many test shards may run in parallel, 1 runs the tests in a single mvn invocation
+    int shards = 1;
+    // how long the test classes took in earlier builds, to balance the shards
+    Map<String, Long> testHistory = Map.of();
+    // tests that failed in the latest builds of the branch, as class#method, they run before all others
+    Collection<String> priorityTests = List.of();
+    // stop the build at the first failing test
+    boolean failFast = Config.getBoolean("CI_FAIL_FAST", false);
+    // the results of the tests of this build, from the surefire reports
+    SurefireReports.Summary testResults;
+    // if set, only the tests affected by the changes since this commit run
+    String impactBase;
+    // the files changed since impactBase, null if they are unknown
+    List<String> changedFiles;
+    // set if only the affected tests ran
+    boolean impacted;
 
     ContinuousIntegration(String buildDirectory) {
         this.buildDirectory = buildDirectory;
     }
 
+    ContinuousIntegration(String buildDirectory, RepositoryCache repositoryCache) {
+        this.buildDirectory = buildDirectory;
+        this.repositoryCache = repositoryCache;
+    }
+
     // windows is a bit weird sometimes
     // https://stackoverflow.com/questions/58713148/how-to-fix-createprocess-error-2-the-system-cannot-find-the-file-specified-ev
     static String mvn = System.getProperty("os.name").toLowerCase().contains("windows") ? "mvn.cmd" : "mvn";
 
+    // every logged process line starts with the time it was read
+    static final DateTimeFormatter timestamp = DateTimeFormatter.ofPattern("HH:mm:ss.SSS");
+    // how much of the output a ProcessException keeps
+    static final int PROCESS_TAIL_SIZE = 16 * 1024;
+
+    /**
+     * The build settings that can change the result of building the same tree. CI_CACHE_SALT can be changed
+     * to make every earlier result stale, e.g. after installing a new jdk on the same path.
+     *
+     * @return A short hash of the build settings
+     */
+    public String getConfigFingerprint() {
+        String settings = String.join("\n",
+                mvn,
+                Boolean.toString(singleInvocation),
+                Objects.toString(System.getenv("JAVA_HOME"), ""),
+                Objects.toString(System.getenv("MAVEN_OPTS"), ""),
+                Config.getString("CI_CACHE_SALT", ""));
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(settings.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(hash, 0, 8);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Records how long a stage took, in the metrics and in the build
+     *
+     * @param start The System.nanoTime() when the stage started
+     * @param end   The System.nanoTime() when the stage ended
+     */
+    void time(Metrics.Stage stage, long start, long end) {
+        stages.put(stage, Metrics.record(stage, start, end));
+    }
+
     /**
      * @param log The logger
      * @return The commit hash of the head of the project
@@ -34,11 +119,14 @@ public class ContinuousIntegration {
      */
     public boolean compileProject(Writer log) throws IOException, InterruptedException {
         log.append("\n==== Starting mvn compile ====\n");
+        long start = System.nanoTime();
         try {
-            log.append(startProcess("in compilation", buildDirectory, mvn, "compile"));
+            startProcess(log, null, "in compilation", buildDirectory, mvn, "compile");
             return true;
         } catch (ProcessException e) {
             return false;
+        } finally {
+            time(Metrics.Stage.COMPILE, start, System.nanoTime());
         }
     }
 
@@ -48,17 +136,254 @@ public class ContinuousIntegration {
      */
     public boolean testProject(Writer log) throws IOException, InterruptedException {
         log.append("\n==== Running tests ====\n");
+        long start = System.nanoTime();
         try {
-            log.append(startProcess("tests could not start", buildDirectory, mvn, "test"));
+            startProcess(log, null, "tests could not start", buildDirectory, mvn, "test");
             return true;
         } catch (ProcessException e) {
-            log.append(e.stdout);
+            // the output is already in the log
             log.append("\n==== Test failed ====\n");
-            log.append(e.stderr);
             return false;
+        } finally {
+            time(Metrics.Stage.TEST, start, System.nanoTime());
         }
     }
 
+    /**
+     * Compiles and tests the project with a single mvn test, the output is parsed while it is
+     * running to tell a compilation failure from a test failure, and where the compile stage ends.
+     *
+     * @param log The logger
+     * @return The build status
+     */
+    public Filesystem.BuildStatus buildProject(Writer log) throws IOException, InterruptedException {
+        log.append("\n==== Running mvn test ====\n");
+        MavenOutputParser parser = new MavenOutputParser();
+        long start = System.nanoTime();
+        try {
+            startProcess(log, parser, "in mvn test", buildDirectory, mvn, "-B", "test");
+            return parser.getStatus(true);
+        } catch (ProcessException e) {
+            Filesystem.BuildStatus status = parser.getStatus(false);
+            log.append(status == Filesystem.BuildStatus.FAILED_TO_COMPILE ? "\n==== Compilation failed ====\n" : "\n==== Test failed ====\n");
+            return status;
+        } finally {
+            long end = System.nanoTime();
+            if (parser.hasStartedTests()) {
+                time(Metrics.Stage.COMPILE, start, parser.testsStartedAt);
+                time(Metrics.Stage.TEST, parser.testsStartedAt, end);
+            } else {
+                time(Metrics.Stage.COMPILE, start, end);
+            }
+        }
+    }
+
+    /**
+     * Compiles the project with mvn test-compile and then runs its tests in a planned order. With fail-fast or
+     * several shards the tests that failed recently run first on their own, then all other tests run in parallel
+     * shards, each in its own mvn surefire:test. Every shard writes to the log while it runs, with its name in front of each line.
+     * With fail-fast the build stops at the first failing test. If impactBase is set only the test classes
+     * affected by the changes since then run.
+     *
+     * @param log The logger
+     * @return The build status, FAILED_TO_TEST if any shard failed
+     */
+    public Filesystem.BuildStatus buildPlanned(Writer log) throws IOException, InterruptedException {
+        log.append("\n==== Running mvn test-compile ====\n");
+        long start = System.nanoTime();
+        try {
+            startProcess(log, null, "in mvn test-compile", buildDirectory, mvn, "-B", "test-compile");
+        } catch (ProcessException e) {
+            log.append("\n==== Compilation failed ====\n");
+            return Filesystem.BuildStatus.FAILED_TO_COMPILE;
+        } finally {
+            time(Metrics.Stage.COMPILE, start, System.nanoTime());
+        }
+
+        List<String> classes = TestShards.discover(new File(buildDirectory));
+        if (classes.isEmpty()) {
+            // e.g. tests with other names than surefire runs by default, mvn test knows what to run
+            return testProject(log) ? Filesystem.BuildStatus.SUCCESS : Filesystem.BuildStatus.FAILED_TO_TEST;
+        }
+        if (impactBase != null) {
+            List<String> affected = getAffectedTests(log, classes);
+            if (affected != null) {
+                impacted = true;
+                classes = affected;
+                if (classes.isEmpty()) {
+                    return Filesystem.BuildStatus.SUCCESS;
+                }
+            }
+        }
+
+        start = System.nanoTime();
+        try {
+            boolean passed = true;
+            // running them first only reports a failure sooner with fail-fast or when the rest is sharded anyway
+            List<String> first = failFast || shards > 1 ? TestShards.getPatterns(priorityTests, classes) : List.of();
+            if (!first.isEmpty()) {
+                log.append("\n==== Running ").append(Integer.toString(priorityTests.size())).append(" recently failing tests first ====\n");
+                passed = runShards(log, List.of(String.join(",", first)), "first");
+                if (!passed && failFast) {
+                    log.append("\n==== Test failed, the other tests are skipped ====\n");
+                    return Filesystem.BuildStatus.FAILED_TO_TEST;
+                }
+                // the tests that ran first do not run again, and the reports of the other tests of their classes
+                // must not replace theirs
+                SurefireReports.rename(new File(buildDirectory), "first");
+                classes = classes.stream().filter(name -> !first.contains(name)).toList();
+            }
+
+            if (!classes.isEmpty()) {
+                List<List<String>> split = TestShards.split(classes, testHistory, shards);
+                log.append("\n==== Running ").append(Integer.toString(classes.size())).append(" test classes in ")
+                        .append(Integer.toString(split.size())).append(" shards ====\n");
+                passed &= runShards(log, split.stream().map(shard -> TestShards.exclude(shard, first)).toList(), "shard");
+            }
+            if (!passed) {
+                log.append("\n==== Test failed ====\n");
+                return Filesystem.BuildStatus.FAILED_TO_TEST;
+            }
+            return Filesystem.BuildStatus.SUCCESS;
+        } finally {
+            time(Metrics.Stage.TEST, start, System.nanoTime());
+        }
+    }
+
+    /**
+     * @param log The logger
+     * @return The files changed since impactBase, or null if they cannot be found
+     */
+    List<String> getChangedFiles(Writer log, String repository, String commitId) throws IOException, InterruptedException {
+        // the mirror has every commit, while a checkout may be shallow
+        File git = repositoryCache != null && commitId != null ? repositoryCache.getMirror(repository) : new File(buildDirectory);
+        try {
+            return RepositoryCache.getChangedFiles(git, impactBase, commitId != null ? commitId : "HEAD");
+        } catch (ProcessException e) {
+            log.append("Could not compare with ").append(impactBase).append(": ").append(Objects.toString(e.stderr, "").trim()).append('\n');
+            return null;
+        }
+    }
+
+    /**
+     * Finds the test classes that use the classes changed since impactBase, from the compiled project
+     *
+     * @param log     The logger
+     * @param classes All test classes
+     * @return The affected test classes, or null if all tests have to run
+     */
+    List<String> getAffectedTests(Writer log, List<String> classes) throws IOException {
+        Set<String> changed = changedFiles == null ? null : ImpactAnalysis.getChangedClasses(changedFiles);
+        if (changed == null) {
+            log.append("\n==== The changes since ").append(impactBase).append(" can affect any test, running all tests ====\n");
+            return null;
+        }
+        List<String> affected = ImpactAnalysis.getAffectedTests(ImpactAnalysis.readDependencies(new File(buildDirectory)), changed, classes);
+        log.append("\n==== ").append(Integer.toString(affected.size())).append(" of ").append(Integer.toString(classes.size()))
+                .append(" test classes are affected by the changes since ").append(impactBase).append(" ====\n");
+        return affected;
+    }
+
+    /**
+     * Runs mvn surefire:test for every shard in parallel. With fail-fast every shard stops at its first failing
+     * test, and the other shards are stopped.
+     *
+     * @param shards The -Dtest value of every shard
+     * @param name   Written in front of the lines of a shard, with its number
+     * @return If all tests passed
+     */
+    boolean runShards(Writer log, List<String> shards, String name) throws IOException, InterruptedException {
+        BuildQueue.BuildJob job = BuildQueue.currentJob();
+        AtomicBoolean failed = new AtomicBoolean();
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        // the processes of the shards, a thread blocked reading a process pipe cannot be interrupted
+        Set<Process> processes = ConcurrentHashMap.newKeySet();
+        AtomicBoolean stopped = new AtomicBoolean();
+        Runnable stop = () -> {
+            stopped.set(true);
+            processes.forEach(BuildQueue.BuildJob::kill);
+        };
+        ArrayList<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < shards.size(); i++) {
+            Writer shardLog = prefixed(log, "[" + name + (shards.size() > 1 ? " " + (i + 1) : "") + "] ");
+            ArrayList<String> cmd = new ArrayList<>(List.of(mvn, "-B", "surefire:test", "-Dtest=" + shards.get(i),
+                    "-Dsurefire.failIfNoSpecifiedTests=false", "-DfailIfNoTests=false"));
+            if (failFast) {
+                cmd.add("-Dsurefire.skipAfterFailureCount=1");
+            }
+            threads.add(Thread.ofVirtual().name("test-" + name + "-" + i).start(() -> {
+                // a superseded job kills the processes of all its shards
+                BuildQueue.current.set(job);
+                try {
+                    startProcess(shardLog, null, process -> {
+                        processes.add(process);
+                        // a shard that starts after the build failed is stopped at once
+                        if (stopped.get()) {
+                            BuildQueue.BuildJob.kill(process);
+                        }
+                    }, "in test shard", buildDirectory, cmd.toArray(String[]::new));
+                } catch (ProcessException e) {
+                    if (!failed.getAndSet(true) && failFast) {
+                        // the build has failed, the other shards do not have to finish
+                        stop.run();
+                    }
+                } catch (IOException e) {
+                    // the pipes of a killed process are closed while they are read
+                    if (!stopped.get()) {
+                        error.compareAndSet(null, e);
+                    }
+                } catch (Throwable t) {
+                    error.compareAndSet(null, t);
+                }
+            }));
+        }
+        try {
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } catch (InterruptedException e) {
+            stop.run();
+            throw e;
+        }
+
+        Throwable t = error.get();
+        if (t instanceof RuntimeException e) {
+            // e.g. the job was superseded
+            throw e;
+        } else if (t instanceof IOException e) {
+            throw e;
+        } else if (t instanceof InterruptedException e) {
+            throw e;
+        } else if (t != null) {
+            throw new IOException(t);
+        }
+        return !failed.get();
+    }
+
+    /**
+     * @return A log that writes the prefix in front of everything written to it, the process lines are written whole
+     */
+    static Writer prefixed(Writer log, String prefix) {
+        return new Writer() {
+            @Override
+            public void write(char[] chars, int offset, int length) throws IOException {
+                synchronized (log) {
+                    log.write(prefix);
+                    log.write(chars, offset, length);
+                }
+            }
+
+            @Override
+            public void flush() throws IOException {
+                log.flush();
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
     /**
      * @param log        Logger responsible
      * @param repository https repository GitHub url
@@ -74,34 +399,88 @@ public class ContinuousIntegration {
             String commitId,
             Filesystem filesystem
     ) {
+        Filesystem.BuildStatus status = Filesystem.BuildStatus.FAILED_SETUP;
+        try {
+            status = runBuild(log, repository, branchName, commitId);
+        } finally {
+            // write the logfile if we have a commit id
+            try {
+                build = filesystem.saveToFile(ownerName, repoName, branchName, commitId, log, status, tree, tree == null ? null : getConfigFingerprint(), this::describe);
+            } catch (IOException e) {
+                e.printStackTrace(new PrintWriter(log));
+                // no error should happen
+                e.printStackTrace();
+            }
+        }
+        return status;
+    }
+
+    /**
+     * Checks out, compiles and tests a commit, without saving anything to the build history
+     *
+     * @param log        Logger responsible
+     * @param repository https repository GitHub url
+     * @param branchName the specified repository branch url
+     * @return status
+     */
+    public Filesystem.BuildStatus runBuild(Writer log, String repository, String branchName, String commitId) {
         Filesystem.BuildStatus status = Filesystem.BuildStatus.SUCCESS;
         //String commitId = "";
 
         try {
-            cloneRepository(log, repository, branchName, buildDirectory);
+            long start = System.nanoTime();
+            if (repositoryCache != null) {
+                FileUtils.deleteDirectory(new File(buildDirectory));
+                repositoryCache.checkout(log, repository, branchName, commitId, buildDirectory);
+            } else {
+                cloneRepository(log, repository, branchName, buildDirectory);
+            }
+            time(Metrics.Stage.CLONE, start, System.nanoTime());
             //commitId = getCommitId(log);
+            if (impactBase != null) {
+                changedFiles = getChangedFiles(log, repository, commitId);
+            }
 
-            if (!compileProject(log)) {
+            if (shards > 1 || failFast || impactBase != null) {
+                status = buildPlanned(log);
+            } else if (singleInvocation) {
+                status = buildProject(log);
+            } else if (!compileProject(log)) {
                 status = Filesystem.BuildStatus.FAILED_TO_COMPILE;
             } else if (!testProject(log)) {
                 status = Filesystem.BuildStatus.FAILED_TO_TEST;
             }
+            if (status != Filesystem.BuildStatus.FAILED_TO_COMPILE) {
+                testResults = SurefireReports.read(new File(buildDirectory));
+            }
+        } catch (CancellationException e) {
+            status = Filesystem.BuildStatus.SUPERSEDED;
+            try {
+                log.append("\n==== ").append(e.getMessage()).append(" ====\n");
+            } catch (IOException _) {
+            }
         } catch (Throwable t) {
             status = Filesystem.BuildStatus.FAILED_SETUP;
             t.printStackTrace(new PrintWriter(log));
-        } finally {
-            // write the logfile if we have a commit id
-            try {
-                filesystem.saveToFile(ownerName, repoName, branchName, commitId, log.toString(), status);
-            } catch (IOException e) {
-                e.printStackTrace(new PrintWriter(log));
-                // no error should happen
-                e.printStackTrace();
-            }
         }
         return status;
     }
 
+    /**
+     * Fills in what the build measured, the durations of its stages and the results of its tests
+     *
+     * @param saved The build that is saved
+     */
+    void describe(Filesystem.BuildData saved) {
+        saved.stages.putAll(stages);
+        if (testResults != null) {
+            saved.setTestResults(testResults);
+        }
+        if (impacted) {
+            saved.impactBase = impactBase;
+        }
+    }
+
 
     /**
      * Clones a repository into the cwd/directory
@@ -127,7 +506,7 @@ public class ContinuousIntegration {
         // spawn the process for git cloning and wait, this is easier than importing a
         // lib
         log.append("\n==== Starting cloning repository ====\n");
-        log.write(startProcess("in git clone due to: ", null, "git", "clone", url, "-b", branch, directory));
+        startProcess(log, null, "in git clone due to: ", null, "git", "clone", url, "-b", branch, directory);
     }
 
     /**
@@ -139,30 +518,132 @@ public class ContinuousIntegration {
      * @return returns the stdout log
      */
     public static String startProcess(String errorMessage, String directory, String... cmd) throws InterruptedException, IOException, ProcessException {
+        StringBuilder stdout = new StringBuilder();
+        try {
+            startProcess(Writer.nullWriter(), line -> {
+                stdout.append(line);
+                stdout.append('\n');
+            }, errorMessage, directory, cmd);
+        } catch (ProcessException e) {
+            throw new ProcessException(stdout.toString(), e.stderr, e.code, errorMessage);
+        }
+        return stdout.toString();
+    }
+
+    /**
+     * Runs a system command inside a specified directory. Stdout and stderr are read at the same time and
+     * every line is written to the log as soon as it is read, prefixed with the time, so nothing is kept
+     * in memory except the end of the output for the ProcessException.
+     *
+     * When it runs for a build job that is superseded, the process and its children are killed and a
+     * CancellationException is thrown.
+     *
+     * @param log          The logger, stderr lines are marked with [stderr]
+     * @param output       Receives the stdout lines without line separator, may be null
+     * @param cmd          System command
+     * @param errorMessage Message if function crashes
+     * @param directory    Specified directory where the system command runs
+     */
+    public static void startProcess(Writer log, Consumer<String> output, String errorMessage, String directory, String... cmd) throws InterruptedException, IOException, ProcessException {
+        startProcess(log, output, null, errorMessage, directory, cmd);
+    }
+
+    /**
+     * Runs a system command like startProcess, and tells the caller about the process so it can kill it
+     *
+     * @param started Receives the process as soon as it is started, may be null
+     */
+    static void startProcess(Writer log, Consumer<String> output, Consumer<Process> started, String errorMessage, String directory, String... cmd) throws InterruptedException, IOException, ProcessException {
+        BuildQueue.BuildJob job = BuildQueue.currentJob();
+        checkSuperseded(job);
+
         // spawn the process for compiling and wait
         ProcessBuilder builder = new ProcessBuilder(cmd);
         if (directory != null) {
             builder.directory(new File(directory));
         }
 
-        // this is needed because waitFor may get stuck if the stdout is not processed
         Process process = builder.start();
-        final BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
-        StringBuilder stdout = new StringBuilder();
-        String line;
-        while ((line = reader.readLine()) != null) {
-            stdout.append(line);
-            stdout.append('\n');
+        if (job != null) {
+            job.track(process);
+        }
+        if (started != null) {
+            started.accept(process);
+        }
+        LogTail stdout = new LogTail(PROCESS_TAIL_SIZE);
+        LogTail stderr = new LogTail(PROCESS_TAIL_SIZE);
+        AtomicReference<IOException> stderrFailure = new AtomicReference<>();
+
+        // both pipes have to be read at the same time, a process blocks when either of them is full
+        Thread stderrReader = Thread.ofVirtual().name("process-stderr").start(() -> {
+            try {
+                drain(process.getErrorStream(), log, "[stderr] ", stderr, null);
+            } catch (IOException e) {
+                stderrFailure.set(e);
+            }
+        });
+
+        try {
+            drain(process.getInputStream(), log, "", stdout, output);
+            stderrReader.join();
+            int exitCode = process.waitFor();
+            // a killed process fails, which is not the fault of the build
+            checkSuperseded(job);
+            if (stderrFailure.get() != null) {
+                throw stderrFailure.get();
+            }
+            if (exitCode != 0) {
+                throw new ProcessException(
+                        stdout.toString(),
+                        stderr.toString(),
+                        process.exitValue(),
+                        errorMessage);
+            }
+        } catch (InterruptedException | IOException | RuntimeException e) {
+            BuildQueue.BuildJob.kill(process);
+            // the pipes of a process killed by supersede are closed while they are read
+            checkSuperseded(job);
+            throw e;
+        } finally {
+            if (job != null) {
+                job.untrack(process);
+            }
         }
-        reader.close();
+        log.flush();
+    }
 
-        if (process.waitFor() != 0) {
-            throw new ProcessException(
-                    stdout.toString(),
-                    new String(process.getErrorStream().readAllBytes()),
-                    process.exitValue(),
-                    errorMessage);
+    /**
+     * @param job The job that is running, may be null
+     */
+    static void checkSuperseded(BuildQueue.BuildJob job) {
+        if (job != null && job.isSuperseded()) {
+            throw new CancellationException("Superseded by " + job.supersededBy.commitId);
+        }
+    }
+
+    /**
+     * Reads a process stream line by line until it is closed
+     *
+     * @param stream The process stdout or stderr
+     * @param log    Where the lines are written
+     * @param marker Written in front of each line, after the time
+     * @param tail   Keeps the end of the stream
+     * @param output Receives every line, may be null
+     */
+    static void drain(InputStream stream, Writer log, String marker, LogTail tail, Consumer<String> output) throws IOException {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(stream))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String logged = "[" + timestamp.format(LocalTime.now()) + "] " + marker + line + "\n";
+                synchronized (log) {
+                    log.write(logged);
+                }
+                tail.append(line);
+                tail.append("\n");
+                if (output != null) {
+                    output.accept(line);
+                }
+            }
         }
-        return stdout.toString();
     }
 }
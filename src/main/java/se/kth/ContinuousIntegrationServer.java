@@ -3,30 +3,95 @@ package se.kth;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.*;
-import java.net.HttpURLConnection;
-import java.text.SimpleDateFormat;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Comparator;
-import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 
+import org.apache.commons.io.output.StringBuilderWriter;
+import org.apache.commons.io.output.TeeWriter;
 import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.handler.AbstractHandler;
 import org.json.JSONObject;
 
-import java.net.URL;
-import java.nio.charset.StandardCharsets;
-
 /**
  * Skeleton of a ContinuousIntegrationServer which acts as webhook
  * See the Jetty documentation for API documentation of those classes.
  */
 public class ContinuousIntegrationServer extends AbstractHandler {
-    ContinuousIntegration ci = new ContinuousIntegration(".serverbuild");
+    static final int workers = Config.getInt("CI_WORKERS", Runtime.getRuntime().availableProcessors());
+    // the most test shards one build may run in parallel, 1 runs all tests in one mvn invocation
+    static final int maxTestShards = Config.getInt("CI_MAX_TEST_SHARDS", 1);
+    // tests that failed in the latest builds of a branch run before the others
+    static final boolean prioritizeTests = Config.getBoolean("CI_PRIORITIZE_TESTS", true);
+    // only the tests affected by the changes since the latest successful build run
+    static final boolean impactAnalysis = Config.getBoolean("CI_IMPACT_ANALYSIS", false);
+    // how many builds of a branch in a row may only run the affected tests, before all tests run again
+    static final int fullRunInterval = Config.getInt("CI_FULL_RUN_INTERVAL", 10);
+    WorkspacePool workspaces = new WorkspacePool(".serverbuild", workers);
+    RepositoryCache repositoryCache = new RepositoryCache(".servercache");
     Filesystem fileSystem = new Filesystem(".serveroutput");
+    // if set, all builds run on worker processes instead of on this server
+    WorkerPool workerPool = Config.getBoolean("CI_DISTRIBUTED", false) ? new WorkerPool(Config.getString("CI_WORKER_TOKEN", null)) : null;
+    // with worker processes a queue thread only waits for a worker to build the job
+    static final int remoteBuilds = Config.getInt("CI_REMOTE_BUILDS", 256);
+    BuildQueue queue = new BuildQueue(workerPool != null ? remoteBuilds : workers, this::runJob, this::supersededJob);
+    LiveTail liveTail = new LiveTail(fileSystem);
+    LogResponder logResponder = new LogResponder();
+    HistoryRenderer historyRenderer = new HistoryRenderer(fileSystem);
+    // rendered history pages, until a build is recorded
+    PageCache pageCache = new PageCache(Config.getLong("CI_PAGE_CACHE_SIZE", 8L * 1024 * 1024));
+    // removes old builds in the background
+    Retention retention = new Retention(fileSystem);
+    // how long browsers may keep a log that never changes, in seconds
+    static final long LOG_MAX_AGE = 365L * 24 * 60 * 60;
+    // how many builds are shown on one page of the web interface
+    static final int PAGE_SIZE = 100;
+    // how many builds a search shows, and how many the api may ask for
+    static final int SEARCH_LIMIT = 20;
+    static final int MAX_SEARCH_LIMIT = 100;
+    // a commit with the same tree and build settings as an earlier build reuses its result
+    boolean resultCache = Config.getBoolean("CI_RESULT_CACHE", true);
+    final String configFingerprint = new ContinuousIntegration(".serverbuild").getConfigFingerprint();
+    // larger webhook payloads are rejected
+    static final long MAX_WEBHOOK_SIZE = Config.getLong("CI_WEBHOOK_MAX_SIZE", PushEvent.DEFAULT_MAX_SIZE);
+    // sends the commit statuses to GitHub
+    static final GitHubNotifier notifier = GitHubNotifier.fromConfig();
+    // builds that are running, by tree/config, so a build of the same tree waits for it instead
+    final Map<String, CompletableFuture<Void>> building = new ConcurrentHashMap<>();
+
+    ContinuousIntegrationServer() throws IOException {
+        try {
+            repositoryCache.loadOptions(new File(Config.getString("CI_CHECKOUT_OPTIONS", "checkout.json")));
+        } catch (Exception e) {
+            // keep the default options
+            e.printStackTrace();
+        }
+        try {
+            retention.loadPolicies(new File(Config.getString("CI_RETENTION_POLICIES", "retention.json")));
+        } catch (Exception e) {
+            // keep the default policy
+            e.printStackTrace();
+        }
+        if (retention.isEnabled()) {
+            retention.start();
+        }
+        try {
+            queue.scheduler.loadPolicies(new File(Config.getString("CI_SCHEDULER_POLICIES", "scheduler.json")));
+        } catch (Exception e) {
+            // keep the default policy
+            e.printStackTrace();
+        }
+        if (workerPool != null) {
+            // a job is only started when a worker has a slot for it, until then the scheduler may still reorder it
+            queue.scheduler.limit = workerPool::getSlots;
+            workerPool.start();
+        }
+    }
 
     /**
-     * Processes incoming HTTP requests, checks if the request originates from GitHub.
+     * Processes incoming HTTP requests, checks if the request is a GitHub webhook.
      * If so, triggers the CI. 
      */
     public void handle(String target,
@@ -42,11 +107,25 @@ public class ContinuousIntegrationServer extends AbstractHandler {
         // https://docs.github.com/en/webhooks/webhook-events-and-payloads#push
 
         try {
-            String userAgent = request.getHeader("user-agent");
-            if (userAgent.contains("GitHub-Hookshot")) {
-                buildCi(request, response);
+            String event = request.getHeader("X-GitHub-Event");
+            if (event != null) {
+                long start = System.nanoTime();
+                handleWebhook(event, request, response);
+                Metrics.webhooks.record(System.nanoTime() - start);
+            } else if (target.equals("/metrics")) {
+                response.setContentType("text/plain;version=0.0.4;charset=utf-8");
+                response.setStatus(HttpServletResponse.SC_OK);
+                Metrics.write(response.getWriter(), queue);
+            } else if (target.startsWith("/workers/") && workerPool != null) {
+                workerPool.handle(target.substring("/workers/".length()), request, response);
+            } else if (target.startsWith("/api/")) {
+                showApi(target, request, response);
+            } else if (target.equals("/search") && fileSystem.search != null) {
+                showSearch(request, response);
+            } else if (target.startsWith("/live/")) {
+                liveTail.show(target.substring("/live".length()), request, response);
             } else {
-                showWebinterface(target, response);
+                showWebinterface(target, request, response);
             }
         } catch (Throwable t) {
             // we do not want to crash it
@@ -59,99 +138,398 @@ public class ContinuousIntegrationServer extends AbstractHandler {
     }
 
     /**
-     * Retrives data form the GitHub webbhook request, calls on runContinuousIntegration
-     * Which clones, compiles, run tests and returns status. Sends response with status to GitHub.
+     * Decides what to do with a webhook from its event header, before the payload is read. Only pushes are built,
+     * every other event is answered directly without reading it.
+     * @param event the X-GitHub-Event header
+     */
+    void handleWebhook(String event, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        switch (event) {
+            case "push" -> buildCi(request, response);
+            case "ping" -> {
+                response.setContentType("text/plain;charset=utf-8");
+                response.setStatus(HttpServletResponse.SC_OK);
+                response.getWriter().write("pong");
+            }
+            default -> response.setStatus(HttpServletResponse.SC_NO_CONTENT);
+        }
+    }
+
+    /**
+     * Retrives data form the GitHub webbhook request and queues a build of the commit.
+     * Answers 202 Accepted with the queued job directly, the build itself is run by the queue.
      * @param request the webhook request from GitHub
      * @param response the webhook response to Github
      * @throws IOException
      */
     void buildCi(HttpServletRequest request, HttpServletResponse response) throws IOException {
-        JSONObject payload = readWebhook(request);
-        JSONObject repositoryPayload = payload.getJSONObject("repository");
-        String repository = repositoryPayload.getString("clone_url"); //get cloneable repo URL
+        PushEvent push = readWebhook(request, response);
+        if (push == null) {
+            return;
+        }
+        if (!push.isBuildable()) {
+            // e.g. a deleted branch
+            response.setStatus(HttpServletResponse.SC_NO_CONTENT);
+            return;
+        }
+        String repository = push.cloneUrl; //get cloneable repo URL
+        String branchName = push.getBranchName(); //get name of branch
+        String commitId = push.commitId; // get sha ID
+        String ownerName = push.getOwnerName();
+        String repoName = push.repoName;
+        String tree = push.tree;
 
-        String[] repoRef = payload.getString("ref").split("/");
-        String branchName = repoRef[repoRef.length - 1]; //get name of branch
-        String commitId = payload.getJSONObject("head_commit").getString("id"); // get sha ID
-        String ownerName = repositoryPayload.getJSONObject("owner").getString("name");
-        String repoName = repositoryPayload.getString("name");
-        Writer log = new StringWriter();
+        if (resultCache && tree != null) {
+            Filesystem.BuildData result = fileSystem.findResult(tree, configFingerprint);
+            if (result != null) {
+                // the same tree was already built, so there is nothing to queue
+                Filesystem.BuildData build = fileSystem.saveReusedResult(ownerName, repoName, branchName, commitId, result);
+                notifier.notify(commitId, ownerName, repoName, build.status);
 
-        // set the status of the repo to pending
-        sendResponse(commitId, ownerName, repoName, Filesystem.BuildStatus.PENDING);
+                JSONObject output = build.toJson();
+                output.put("reused", true);
+                output.put("log", "/" + fileSystem.sanitizeFilepath(build.getLogFile()));
+                response.setContentType("application/json;charset=utf-8");
+                response.setStatus(HttpServletResponse.SC_OK);
+                response.getWriter().write(output.toString());
+                return;
+            }
+        }
 
-        Filesystem.BuildStatus status = ci.runContinuousIntegration(log, repository, ownerName, repoName, branchName, commitId, fileSystem);
+        // e.g. after a failed result expired, the earlier final status must not hide the new build
+        notifier.building(commitId, ownerName, repoName);
+        BuildQueue.BuildJob job = queue.submit(repository, ownerName, repoName, branchName, commitId, branchName.equals(push.defaultBranch));
+        job.tree = tree;
 
-        // send response to the webhook
-        response.getWriter().write(log.toString());
-        switch (status) {
-            case SUCCESS, FAILED_TO_COMPILE, FAILED_TO_TEST -> response.setStatus(HttpServletResponse.SC_OK);
-            case FAILED_SETUP -> response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
-            case PENDING -> throw new RuntimeException("Unreachable");
-        }
+        // set the status of the repo to pending, without holding up the webhook
+        notifier.notify(commitId, ownerName, repoName, Filesystem.BuildStatus.PENDING);
 
-        // set the status of the repo to the build status
-        sendResponse(commitId, ownerName, repoName, status);
+        response.setContentType("application/json;charset=utf-8");
+        response.setStatus(HttpServletResponse.SC_ACCEPTED);
+        response.getWriter().write(job.toJson().toString());
     }
 
     /**
-     * Displays CI logs and statuses in web. Uses HTML templates form Webb.java
-     * @param target the server path to render
-     * @param response where to send the response
-     * @throws IOException
+     * Runs a queued job, which clones, compiles, run tests and returns status. Sends response with status to GitHub.
+     * @param job the job to build
+     * @return the build status
      */
-    void showWebinterface(String target, HttpServletResponse response) throws IOException {
-        Object directory = fileSystem.getDirectory(target);
-        if (directory instanceof Filesystem.LogData) {
-            response.setStatus(HttpServletResponse.SC_OK);
-            response.getWriter().write(((Filesystem.LogData) directory).toHtml());
-        } else if (directory instanceof Object[]) {
-            response.setStatus(HttpServletResponse.SC_OK);
-            ArrayList<File> dirs = new ArrayList<>();
-            ArrayList<Filesystem.BuildData> builds = new ArrayList<>();
-
-            for (Object obj : (Object[]) directory) {
-                if (obj instanceof File) {
-                    dirs.add((File) obj);
-                } else if (obj instanceof Filesystem.BuildData) {
-                    builds.add((Filesystem.BuildData) obj);
+    Filesystem.BuildStatus runJob(BuildQueue.BuildJob job) {
+        String key = null;
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        if (resultCache) {
+            if (job.tree == null) {
+                job.tree = resolveTree(job);
+            }
+            if (job.tree != null) {
+                key = job.tree + "/" + configFingerprint;
+                Filesystem.BuildData result;
+                // wait for a build of the same tree, and use its result if it has one
+                while ((result = fileSystem.findResult(job.tree, configFingerprint)) == null) {
+                    CompletableFuture<Void> other = building.putIfAbsent(key, done);
+                    if (other == null) {
+                        break;
+                    }
+                    try {
+                        other.get();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return Filesystem.BuildStatus.FAILED_SETUP;
+                    } catch (ExecutionException _) {
+                    }
+                }
+                if (result != null) {
+                    return reuseResult(job, result);
                 }
             }
-            builds.sort(Comparator.comparingLong(t -> t.time));
+        }
 
-            StringBuilder buildText = new StringBuilder();
+        if (workerPool != null) {
+            return runRemoteJob(job, key, done);
+        }
 
-            if (!builds.isEmpty()) {
-                buildText.append(Webb.buildHeader);
-            }
-            for (Filesystem.BuildData build : builds) {
-                String statusText = switch (build.status) {
-                    case SUCCESS -> "Build successful";
-                    case PENDING -> "Build in progress";
-                    case FAILED_SETUP -> "Unable to complete job";
-                    case FAILED_TO_COMPILE -> "Failed to compile";
-                    case FAILED_TO_TEST -> "Failed tests";
-                };
-                SimpleDateFormat sdf = new SimpleDateFormat("MMM dd,yyyy HH:mm");
-                Date resultdate = new Date(build.time);
-                buildText.append(Webb.buildRow.formatted(build.commit, statusText, sdf.format(resultdate), fileSystem.sanitizeFilepath(new File(build.file.getParentFile(), build.commit + ".log")), build.commit));
+        Filesystem.BuildStatus status;
+        Filesystem.BuildData build = null;
+        File workspace;
+        try {
+            workspace = workspaces.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            finishBuilding(key, done);
+            return Filesystem.BuildStatus.FAILED_SETUP;
+        }
+        try {
+            // the log is streamed to storage while the build runs
+            BuildLog log = fileSystem.createLog(job.ownerName, job.repoName, job.branchName, job.commitId);
+            // every job gets its own directory, so builds can run in parallel
+            ContinuousIntegration ci = new ContinuousIntegration(workspace.getPath(), repositoryCache);
+            ci.shards = getShardCount();
+            prepare(ci, job);
+            status = ci.runContinuousIntegration(log, job.repository, job.ownerName, job.repoName, job.branchName, job.commitId, fileSystem);
+            build = ci.build;
+        } catch (IOException e) {
+            e.printStackTrace();
+            status = Filesystem.BuildStatus.FAILED_SETUP;
+        } finally {
+            workspaces.release(workspace);
+            finishBuilding(key, done);
+        }
+
+        sendFinalResponse(job, status, build);
+        return status;
+    }
+
+    /**
+     * Sets what a build takes from the build history
+     * @param ci the build, its number of shards already set
+     */
+    void prepare(ContinuousIntegration ci, BuildQueue.BuildJob job) {
+        ci.tree = job.tree;
+        if (ci.shards > 1) {
+            ci.testHistory = fileSystem.getTestDurations(job.ownerName, job.repoName, job.branchName);
+        }
+        if (prioritizeTests) {
+            ci.priorityTests = fileSystem.getRecentlyFailingTests(job.ownerName, job.repoName, job.branchName);
+        }
+        if (impactAnalysis) {
+            // builds are saved with their settings only when the tree is known
+            String config = job.tree == null ? null : ci.getConfigFingerprint();
+            ci.impactBase = fileSystem.getImpactBase(job.ownerName, job.repoName, job.branchName, config, fullRunInterval);
+        }
+    }
+
+    /**
+     * Runs a job on a worker process, the log is streamed into storage and the result saved here
+     * @param key the tree/config that is being built, or null
+     * @param done completed when the build is saved
+     * @return the build status
+     */
+    Filesystem.BuildStatus runRemoteJob(BuildQueue.BuildJob job, String key, CompletableFuture<Void> done) {
+        Filesystem.BuildStatus status = Filesystem.BuildStatus.FAILED_SETUP;
+        Filesystem.BuildData build = null;
+        try {
+            BuildLog log = fileSystem.createLog(job.ownerName, job.repoName, job.branchName, job.commitId);
+            ContinuousIntegration ci = new ContinuousIntegration(null);
+            // the worker decides how many shards it has room for
+            ci.shards = maxTestShards;
+            prepare(ci, job);
+            Filesystem.BuildData result = null;
+            try {
+                result = workerPool.build(job, Worker.describe(job, ci), log);
+                status = result.status;
+            } finally {
+                Filesystem.BuildData remote = result;
+                // saved with the settings of the coordinator, which finds the results to reuse
+                build = fileSystem.saveToFile(job.ownerName, job.repoName, job.branchName, job.commitId, log, status,
+                        job.tree, job.tree == null ? null : configFingerprint, saved -> {
+                            if (remote != null) {
+                                saved.stages.putAll(remote.stages);
+                                saved.copyTestResults(remote);
+                            }
+                        });
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            finishBuilding(key, done);
+        }
+        sendFinalResponse(job, status, build);
+        return status;
+    }
+
+    /**
+     * @return How many test shards a build that starts now may run, one for its own worker and one for every
+     * worker that is idle and has no job waiting for it
+     */
+    int getShardCount() {
+        int idle = workers - queue.getActiveWorkers() - queue.getQueueDepth();
+        return Math.max(1, Math.min(maxTestShards, 1 + idle));
+    }
+
+    /**
+     * @return The git tree of the commit of the job, or null if it cannot be found
+     */
+    String resolveTree(BuildQueue.BuildJob job) {
+        try {
+            return repositoryCache.getTree(Writer.nullWriter(), job.repository, job.commitId);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (Exception e) {
+            // the build finds out what is wrong
+            return null;
+        }
+    }
+
+    void finishBuilding(String key, CompletableFuture<Void> done) {
+        if (key != null) {
+            building.remove(key, done);
+        }
+        done.complete(null);
+    }
+
+    /**
+     * Finishes a job with the result of an earlier build of the same tree
+     * @param job the job that does not have to be built
+     * @param result the earlier build
+     * @return the reused build status
+     */
+    Filesystem.BuildStatus reuseResult(BuildQueue.BuildJob job, Filesystem.BuildData result) {
+        Filesystem.BuildData build = null;
+        try {
+            build = fileSystem.saveReusedResult(job.ownerName, job.repoName, job.branchName, job.commitId, result);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        // the earlier build keeps its own timings
+        sendFinalResponse(job, result.status, build == result ? null : build);
+        return result.status;
+    }
 
-            StringBuilder buildDirs = new StringBuilder();
-            if (!dirs.isEmpty()) {
-                buildDirs.append(Webb.dirHeader);
+    /**
+     * Records a queued job that was replaced by a newer push of its branch before it started
+     * @param job the superseded job
+     */
+    void supersededJob(BuildQueue.BuildJob job) {
+        Thread.startVirtualThread(() -> {
+            StringWriter log = new StringWriter();
+            log.append("Superseded by ").append(job.supersededBy.commitId).append(" before the build started\n");
+            Filesystem.BuildData build = null;
+            try {
+                build = fileSystem.saveToFile(job.ownerName, job.repoName, job.branchName, job.commitId, log, Filesystem.BuildStatus.SUPERSEDED);
+            } catch (IOException e) {
+                e.printStackTrace();
             }
-            for (File dir : dirs) {
-                buildDirs.append(Webb.dirRow.formatted(fileSystem.sanitizeFilepath(dir), dir.getName()));
+            sendFinalResponse(job, Filesystem.BuildStatus.SUPERSEDED, build);
+        });
+    }
+
+    /**
+     * Sends the final status of a job, the notifier sends it after its pending status. The time until it is sent
+     * is recorded as the notify stage of the build.
+     * @param build the saved build, or null if it was not saved
+     */
+    void sendFinalResponse(BuildQueue.BuildJob job, Filesystem.BuildStatus status, Filesystem.BuildData build) {
+        long start = System.nanoTime();
+        notifier.notify(job.commitId, job.ownerName, job.repoName, status).whenComplete((_, _) -> {
+            long millis = Metrics.record(Metrics.Stage.NOTIFY, start);
+            if (build != null) {
+                try {
+                    fileSystem.recordStage(build, Metrics.Stage.NOTIFY, millis);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
             }
+        });
+    }
 
-            if (dirs.isEmpty() && builds.isEmpty()) {
-                buildText.append(Webb.nothingFound);
+    /**
+     * JSON api for the build queue, /api/queue shows all known jobs and /api/jobs/{id} a single job,
+     * and /api/search?q= searches the build logs
+     * @param target the server path to render
+     * @param response where to send the response
+     * @throws IOException
+     */
+    void showApi(String target, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        response.setContentType("application/json;charset=utf-8");
+        JSONObject output = null;
+        if (target.equals("/api/search") && fileSystem.search != null) {
+            long start = System.nanoTime();
+            try {
+                SearchIndex.Results results = search(request);
+                output = SearchIndex.toJson(results != null ? results : new SearchIndex.Results(List.of(), false))
+                        .put("took", (System.nanoTime() - start) / 1_000_000);
+            } catch (IllegalArgumentException e) {
+                response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+                response.getWriter().write(new JSONObject().put("error", e.getMessage()).toString());
+                return;
+            }
+        } else if (target.equals("/api/queue")) {
+            output = queue.toJson();
+        } else if (target.equals("/api/workers") && workerPool != null) {
+            output = workerPool.toJson();
+        } else if (target.startsWith("/api/jobs/")) {
+            try {
+                BuildQueue.BuildJob job = queue.getJob(Long.parseLong(target.substring("/api/jobs/".length())));
+                if (job != null) {
+                    output = job.toJson();
+                }
+            } catch (NumberFormatException _) {
             }
+        }
 
-            String output = Webb.template.formatted(buildText.toString(), buildDirs.toString());
-            response.getWriter().write(output);
+        if (output == null) {
+            response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+            response.getWriter().write("{}");
+        } else {
             response.setStatus(HttpServletResponse.SC_OK);
+            response.getWriter().write(output.toString());
+        }
+    }
+
+    /**
+     * Searches the build logs for the q parameter, e.g. "connection refused" repo:owner/repo status:failed_to_test
+     * @return the matching builds, newest first, or null if there is no query
+     * @throws IllegalArgumentException if a filter of the query cannot be read
+     */
+    SearchIndex.Results search(HttpServletRequest request) throws IOException {
+        String query = request.getParameter("q");
+        if (query == null || query.isBlank()) {
+            return null;
+        }
+        int limit = SEARCH_LIMIT;
+        try {
+            limit = Math.max(1, Math.min(MAX_SEARCH_LIMIT, Integer.parseInt(request.getParameter("limit"))));
+        } catch (NumberFormatException _) {
+        }
+        return fileSystem.search.search(SearchIndex.Query.parse(query), limit);
+    }
+
+    /**
+     * Shows the search page, with the matching builds and their matching lines
+     */
+    void showSearch(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        String query = request.getParameter("q");
+        SearchIndex.Results results = null;
+        String error = null;
+        try {
+            results = search(request);
+        } catch (IllegalArgumentException e) {
+            error = e.getMessage();
+        }
+        response.setStatus(error == null ? HttpServletResponse.SC_OK : HttpServletResponse.SC_BAD_REQUEST);
+        historyRenderer.renderSearch(response.getWriter(), query == null ? "" : query, results, error);
+    }
+
+    /**
+     * Displays CI logs and statuses in web. History pages are streamed by the HistoryRenderer.
+     * Finished logs and history pages have ETags, so a browser that has them is answered 304 from memory.
+     * @param target the server path to render
+     * @param response where to send the response
+     * @throws IOException
+     */
+    void showWebinterface(String target, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        int page = 0;
+        try {
+            String pageParameter = request.getParameter("page");
+            page = pageParameter == null ? 0 : Math.max(0, Integer.parseInt(pageParameter));
+        } catch (NumberFormatException _) {
+        }
+
+        fileSystem.markAccessed(target);
+        Filesystem.BuildData finished = fileSystem.getFinishedBuild(target);
+        if (finished != null && setLogCacheHeaders(finished, request, response)) {
+            return;
+        }
+        if (fileSystem.index.get(target) != null) {
+            showHistory(target, page, request, response);
+            return;
+        }
+
+        Object directory = fileSystem.getDirectory(target, page * PAGE_SIZE, PAGE_SIZE);
+        if (directory instanceof Filesystem.LogData) {
+            logResponder.show((Filesystem.LogData) directory, request, response);
         } else {
             response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
             response.getWriter().write("Internal server error");
@@ -159,27 +537,91 @@ public class ContinuousIntegrationServer extends AbstractHandler {
     }
 
     /**
-     * Reads the payload of an HTTP message
-     *
-     * @param req The HTTP message to read
-     * @return The payload of the HTTP message as a JSonObject if
-     * payload can be read, otherwise null
+     * Sets the cache headers of a finished log. With the result cache a commit that compiled is never built again,
+     * so its log never changes, other logs can be replaced by pushing the commit again and are revalidated.
+     * @param build the build that wrote the log
+     * @return if the browser has the log and was answered 304
+     */
+    boolean setLogCacheHeaders(Filesystem.BuildData build, HttpServletRequest request, HttpServletResponse response) {
+        String etag = "W/\"" + Long.toString(build.time, 36) + (request.getParameter("raw") != null ? "-raw" : "-html") + "\"";
+        response.setHeader("ETag", etag);
+        response.setDateHeader("Last-Modified", build.time);
+        response.setHeader("Cache-Control", resultCache && isDeterministic(build.status)
+                ? "max-age=" + LOG_MAX_AGE + ", immutable" : "no-cache");
+        if (PageCache.isNotModified(request, etag, build.time)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return true;
+        }
+        return false;
+    }
+
+    static boolean isDeterministic(Filesystem.BuildStatus status) {
+        return status == Filesystem.BuildStatus.SUCCESS || status == Filesystem.BuildStatus.FAILED_TO_COMPILE
+                || status == Filesystem.BuildStatus.FAILED_TO_TEST;
+    }
+
+    /**
+     * Shows a page of a directory of the build history. Its ETag is the version of the build index, so it changes
+     * whenever a build is recorded, and the rendered page is kept in the page cache until then.
+     * @param page the shown page, from 0
      */
-    static JSONObject readWebhook(HttpServletRequest req) throws IOException {
-        StringBuilder builder = new StringBuilder();
-        String line;
+    void showHistory(String target, int page, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        // read before the builds, so a page is never cached with a newer version than its content
+        String version = fileSystem.getVersionTag();
+        String etag = "W/\"" + version + "\"";
+        response.setHeader("ETag", etag);
+        response.setHeader("Cache-Control", "no-cache");
+        if (PageCache.matches(request.getHeader("If-None-Match"), etag)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
 
-        while ((line = req.getReader().readLine()) != null) {
-            builder.append(line);
+        String key = BuildIndex.normalize(target) + "?page=" + page;
+        String cached = pageCache.get(key, version);
+        response.setStatus(HttpServletResponse.SC_OK);
+        if (cached != null) {
+            response.getWriter().write(cached);
+            return;
         }
+        Object[] entries = (Object[]) fileSystem.getDirectory(target, page * PAGE_SIZE, PAGE_SIZE);
+        int pages = (fileSystem.getBuildCount(target) + PAGE_SIZE - 1) / PAGE_SIZE;
+        StringBuilderWriter copy = new StringBuilderWriter();
+        historyRenderer.render(new TeeWriter(response.getWriter(), copy), entries, page, pages);
+        pageCache.put(key, version, copy.toString());
+    }
 
-        String text = builder.toString();
-        return new JSONObject(text);
+    /**
+     * Reads the payload of a push webhook, and answers the request if it cannot be read
+     *
+     * @param req The HTTP message to read
+     * @return The push, or null if it was rejected
+     */
+    static PushEvent readWebhook(HttpServletRequest req, HttpServletResponse response) throws IOException {
+        String contentType = req.getContentType();
+        if (contentType != null && !contentType.toLowerCase().startsWith("application/json")) {
+            // the webhook has to be set up to send json
+            response.setStatus(HttpServletResponse.SC_UNSUPPORTED_MEDIA_TYPE);
+            return null;
+        }
+        if (req.getContentLength() > MAX_WEBHOOK_SIZE) {
+            response.setStatus(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+            return null;
+        }
+        try {
+            return PushEvent.parse(req.getInputStream(), MAX_WEBHOOK_SIZE);
+        } catch (PushEvent.TooLargeException e) {
+            response.setStatus(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+        } catch (IOException | RuntimeException e) {
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            response.setContentType("text/plain;charset=utf-8");
+            response.getWriter().write(String.valueOf(e.getMessage()));
+        }
+        return null;
     }
 
     /**
-     * Updates GitHubs commit status via the Github API. Converts CI build status to
-     * GitHub API states. Sends a POST request to the affected GitHub commit.
+     * Updates GitHubs commit status via the Github API and waits for it. Builds use the notifier directly,
+     * which does not wait.
      * @param commitId the id of the handled commit
      * @param ownerName the owner of the repository
      * @param repoName the repository name
@@ -192,68 +634,6 @@ public class ContinuousIntegrationServer extends AbstractHandler {
             String repoName,
             Filesystem.BuildStatus status
     ) {
-        // Convert CI status to GitHub API state
-        String state;
-        String description = switch (status) {
-            case SUCCESS -> {
-                state = "success";
-                yield "Build succeeded!";
-            }
-            case FAILED_TO_COMPILE -> {
-                state = "failure";
-                yield "Compilation failed!";
-            }
-            case FAILED_TO_TEST -> {
-                state = "failure";
-                yield "Tests failed!";
-            }
-            case PENDING -> {
-                state = "pending";
-                yield "Building in progress!";
-            }
-            default -> {
-                state = "error";
-                yield "CI setup failed!";
-            }
-        };
-        // https://docs.github.com/en/rest/commits/statuses?apiVersion=2022-11-28#create-a-commit-status
-        String apiUrl = String.format("https://api.github.com/repos/%s/%s/statuses/%s", ownerName, repoName, commitId);
-
-        // Construct JSON response
-        JSONObject jsonResponse = new JSONObject();
-
-        jsonResponse.put("state", state);
-        jsonResponse.put("description", description);
-
-        try {
-            // Send commit status update to GitHub
-            HttpURLConnection connection = (HttpURLConnection) new URL(apiUrl).openConnection();
-            connection.setRequestMethod("POST");
-            connection.setRequestProperty("Content-Type", "application/json");
-            connection.setDoOutput(true); // Enable sending request body
-
-            String githubToken = System.getenv("GITHUB_TOKEN");
-            if (githubToken == null || githubToken.isBlank()) {
-                throw new IOException("No environment variable GITHUB_TOKEN found");
-            }
-            connection.setRequestProperty("Authorization", "Bearer " + githubToken);
-
-            // Write JSON data to the request body
-            try (OutputStream os = connection.getOutputStream()) {
-                byte[] input = jsonResponse.toString().getBytes(StandardCharsets.UTF_8);
-                os.write(input, 0, input.length);
-            }
-
-            // Check GitHub API response
-            int responseCode = connection.getResponseCode();
-            if (responseCode != 201) { // 201 = Created (Success)
-                throw new IOException("Failed to update status on GitHub, Response Code: " + responseCode);
-            }
-            return true;
-        } catch (IOException e) {
-            e.printStackTrace(); // Log errors
-            return false;
-        }
+        return notifier.send(commitId, ownerName, repoName, status);
     }
 }
-
@@ -1,22 +1,70 @@
 package se.kth;
 
 import org.apache.commons.io.FilenameUtils;
+import org.json.JSONArray;
 import org.json.JSONObject;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
-import java.util.stream.Stream;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 
 /**
  * This handles the virtual file system used for build history
  */
 public class Filesystem {
     String outputDirectory;
+    // logs of builds that are still running, by their normalized path
+    final Map<Path, BuildLog> runningLogs = new ConcurrentHashMap<>();
 
-    Filesystem(String outputDirectory) {
+    final BuildIndex index;
+    final BuildStore store;
+    // full-text search over the logs, null if turned off
+    final SearchIndex search;
+    // finished logs are stored as seekable gzip
+    boolean compressLogs = Config.getBoolean("CI_COMPRESS_LOGS", true);
+    // logs that retention is about to delete, a build that reuses one of them takes it off, guarded by itself
+    final Set<Path> deletingLogs = new HashSet<>();
+    // differs between runs of the server, so a version of an earlier run is never taken for a current one
+    final String epoch = Long.toString(System.currentTimeMillis(), 36);
+
+    Filesystem(String outputDirectory) throws IOException {
+        this(outputDirectory, Config.getBoolean("CI_SEARCH_INDEX", true));
+    }
+
+    /**
+     * @param searchIndex If the logs are indexed for search, which indexes the logs of the history in the background
+     */
+    Filesystem(String outputDirectory, boolean searchIndex) throws IOException {
         this.outputDirectory = outputDirectory;
+        this.index = new BuildIndex(new File(outputDirectory));
+        this.store = new BuildStore(new File(outputDirectory));
+        index.load(store.load());
+        this.search = searchIndex ? new SearchIndex(this) : null;
+        if (search != null) {
+            search.load();
+        }
+    }
+
+    /**
+     * Closes the search index and the build store
+     */
+    void close() throws IOException {
+        if (search != null) {
+            search.close();
+        }
+        store.close();
     }
 
     enum BuildStatus {
@@ -25,18 +73,25 @@ public class Filesystem {
         FAILED_SETUP,
         FAILED_TO_COMPILE,
         FAILED_TO_TEST,
+        // cancelled because a newer commit of the branch was pushed
+        SUPERSEDED,
     }
 
     /**
-     * .log files, used to store the build log
+     * .log files, used to store the build log. The log is never read as a whole, it is streamed from the file.
      */
     public static class LogData {
+        // only set for a log that is about to be written
         String log;
         File file;
+        // set if the log is stored compressed, file is then the name of the plain log
+        CompressedLog compressed;
 
         LogData(File file) throws IOException {
-            this.log = readFileToEnd(file);
             this.file = file;
+            if (!file.isFile() && CompressedLog.exists(file)) {
+                this.compressed = new CompressedLog(file);
+            }
         }
 
         LogData(File file, String log) {
@@ -50,77 +105,537 @@ public class Filesystem {
             }
         }
 
+        /**
+         * @return If the log is stored compressed, otherwise it can be read directly from file
+         */
+        boolean isCompressed() {
+            return compressed != null;
+        }
+
+        /**
+         * @return The size of the log in bytes
+         */
+        long length() {
+            return compressed != null ? compressed.length() : file.length();
+        }
+
+        /**
+         * @param offset Where to start, in bytes
+         * @return The log from the offset
+         */
+        InputStream open(long offset) throws IOException {
+            if (compressed != null) {
+                return compressed.open(offset);
+            }
+            FileInputStream in = new FileInputStream(file);
+            in.getChannel().position(offset);
+            return in;
+        }
+
+        /**
+         * @return The whole log, only for small logs as it is read into memory
+         */
         @Override
         public String toString() {
-            return this.log;
+            if (this.log != null) {
+                return this.log;
+            }
+            try (InputStream in = open(0)) {
+                return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        /**
+         * Writes the log as html, escaped and with a line break per line, without reading it into memory
+         *
+         * @param out Where the html is written
+         */
+        void writeHtml(Writer out) throws IOException {
+            try (Reader reader = new InputStreamReader(open(0), StandardCharsets.UTF_8)) {
+                char[] buffer = new char[16 * 1024];
+                int read;
+                while ((read = reader.read(buffer)) > 0) {
+                    escapeHtml(buffer, read, out);
+                }
+            }
         }
 
         String toHtml() {
-            return this.log.replace("\n", "<br>");
+            StringWriter writer = new StringWriter();
+            try {
+                writeHtml(writer);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return writer.toString();
         }
     }
 
     /**
-     * .json files, used to store the metadata about each build
+     * Writes text as html, where every newline becomes a line break
+     */
+    static void escapeHtml(char[] chars, int length, Writer out) throws IOException {
+        int start = 0;
+        for (int i = 0; i < length; i++) {
+            String replacement = switch (chars[i]) {
+                case '<' -> "&lt;";
+                case '>' -> "&gt;";
+                case '&' -> "&amp;";
+                case '"' -> "&quot;";
+                case '\'' -> "&#39;";
+                case '\n' -> "<br>\n";
+                default -> null;
+            };
+            if (replacement != null) {
+                out.write(chars, start, i - start);
+                out.write(replacement);
+                start = i + 1;
+            }
+        }
+        out.write(chars, start, length - start);
+    }
+
+    /**
+     * The metadata about each build, stored in the BuildStore
      */
     public static class BuildData {
         BuildStatus status;
         String commit;
         Long time;
-        File file;
+        // the branch directory, where the log is stored
+        File directory;
+        // the git tree of the commit and the build settings, a build of the same tree and settings has the same result
+        String tree;
+        String config;
+        // set if the result was reused from an earlier build, which has the log
+        File log;
+        // how long each stage of the build took in milliseconds
+        final Map<Metrics.Stage, Long> stages = new EnumMap<>(Metrics.Stage.class);
+        // how long each test class took in milliseconds, by class name
+        final Map<String, Long> tests = new TreeMap<>();
+        // the results of the tests, only the failed and flaky tests are named
+        int testsRun;
+        int testFailures;
+        int testsSkipped;
+        final Set<String> failedTests = new LinkedHashSet<>();
+        final Set<String> flakyTests = new LinkedHashSet<>();
+        // set if only the tests affected by the changes since this earlier commit ran
+        String impactBase;
+        // when the log was last viewed, only kept in memory
+        volatile long accessed;
 
-        BuildData(File file, BuildStatus status, String commit) {
-            this.file = file;
+        BuildData(File directory, BuildStatus status, String commit) {
+            this.directory = directory;
             this.time = System.currentTimeMillis();
             this.commit = commit;
             this.status = status;
         }
 
-        BuildData(File file) throws IOException {
-            JSONObject json = new JSONObject(readFileToEnd(file));
-            this.file = file;
+        BuildData(JSONObject json, File directory) {
+            this.directory = directory;
             this.time = json.getLong("time");
             this.commit = json.getString("commit");
             this.status = json.getEnum(BuildStatus.class, "status");
+            this.tree = json.optString("tree", null);
+            this.config = json.optString("config", null);
+            this.impactBase = json.optString("impactBase", null);
+            JSONObject stages = json.optJSONObject("stages");
+            if (stages != null) {
+                for (Metrics.Stage stage : Metrics.Stage.values()) {
+                    if (stages.has(stage.label())) {
+                        this.stages.put(stage, stages.getLong(stage.label()));
+                    }
+                }
+            }
+            JSONObject tests = json.optJSONObject("tests");
+            if (tests != null) {
+                for (String name : tests.keySet()) {
+                    this.tests.put(name, tests.getLong(name));
+                }
+            }
+            JSONObject results = json.optJSONObject("testResults");
+            if (results != null) {
+                this.testsRun = results.optInt("run");
+                this.testFailures = results.optInt("failed");
+                this.testsSkipped = results.optInt("skipped");
+                JSONArray failed = results.optJSONArray("failedTests");
+                for (int i = 0; failed != null && i < failed.length(); i++) {
+                    this.failedTests.add(failed.getString(i));
+                }
+                JSONArray flaky = results.optJSONArray("flakyTests");
+                for (int i = 0; flaky != null && i < flaky.length(); i++) {
+                    this.flakyTests.add(flaky.getString(i));
+                }
+            }
+        }
+
+        /**
+         * Reads a .json file of an older version of the server, where every build had its own file
+         */
+        BuildData(File file) throws IOException {
+            this(new JSONObject(readFileToEnd(file)), file.getParentFile());
+        }
+
+        /**
+         * Stores the results of the tests of the build
+         */
+        void setTestResults(SurefireReports.Summary summary) {
+            tests.putAll(summary.durations);
+            testsRun = summary.run;
+            testFailures = summary.failures;
+            testsSkipped = summary.skipped;
+            failedTests.addAll(summary.failed);
+            flakyTests.addAll(summary.flaky);
+        }
+
+        void copyTestResults(BuildData other) {
+            impactBase = other.impactBase;
+            tests.putAll(other.tests);
+            testsRun = other.testsRun;
+            testFailures = other.testFailures;
+            testsSkipped = other.testsSkipped;
+            failedTests.addAll(other.failedTests);
+            flakyTests.addAll(other.flakyTests);
+        }
+
+        /**
+         * @return The log of the build, which may be stored compressed
+         */
+        File getLogFile() {
+            return log != null ? log : new File(directory, commit + ".log");
+        }
+
+        /**
+         * @return When the build was last viewed, or when it was built if it was not viewed since the server started
+         */
+        long getLastAccess() {
+            return Math.max(accessed, time);
+        }
+
+        /**
+         * @return If another commit with the same tree can reuse the result instead of building
+         */
+        boolean isReusable() {
+            if (tree == null || config == null || log != null) {
+                return false;
+            }
+            if (status == BuildStatus.FAILED_TO_TEST && !flakyTests.isEmpty()) {
+                // the tests do not always give the same result, building again may pass
+                return false;
+            }
+            return status == BuildStatus.SUCCESS || status == BuildStatus.FAILED_TO_COMPILE || status == BuildStatus.FAILED_TO_TEST;
         }
 
         JSONObject toJson() {
             JSONObject jo = new JSONObject();
             jo.put("commit", commit);
-            jo.put("time", System.currentTimeMillis());
+            jo.put("time", time);
             jo.put("status", status);
+            if (tree != null) {
+                jo.put("tree", tree);
+                jo.put("config", config);
+            }
+            if (impactBase != null) {
+                jo.put("impactBase", impactBase);
+            }
+            if (!stages.isEmpty()) {
+                JSONObject durations = new JSONObject();
+                stages.forEach((stage, millis) -> durations.put(stage.label(), millis));
+                jo.put("stages", durations);
+            }
+            if (!tests.isEmpty()) {
+                jo.put("tests", new JSONObject(tests));
+            }
+            if (testsRun > 0) {
+                JSONObject results = new JSONObject();
+                results.put("run", testsRun);
+                results.put("failed", testFailures);
+                results.put("skipped", testsSkipped);
+                if (!failedTests.isEmpty()) {
+                    results.put("failedTests", new JSONArray(failedTests));
+                }
+                if (!flakyTests.isEmpty()) {
+                    results.put("flakyTests", new JSONArray(flakyTests));
+                }
+                jo.put("testResults", results);
+            }
             return jo;
         }
+    }
 
-        void writeToFile() throws FileNotFoundException {
-            try (PrintWriter writer = new PrintWriter(this.file.getPath())) {
-                writer.write(toJson().toString(4));
-            }
-        }
+    /**
+     * @return The branch directory of the build history
+     */
+    File getBranchDirectory(String ownerName, String repoName, String branchName) {
+        File ownerFile = new File(outputDirectory, ownerName);
+        File repoFile = new File(ownerFile, repoName);
+        return new File(repoFile, branchName);
+    }
+
+    /**
+     * Creates the log of a build, which is written directly to its final place in storage
+     *
+     * @return The log to give to runContinuousIntegration
+     */
+    public BuildLog createLog(
+            String ownerName,
+            String repoName,
+            String branchName,
+            String commitId
+    ) throws IOException {
+        File branchFile = getBranchDirectory(ownerName, repoName, branchName);
+        Boolean _ = branchFile.mkdirs();
+        BuildLog log = new BuildLog(new File(branchFile, commitId + ".log"));
+        runningLogs.put(key(log.file), log);
+        return log;
+    }
+
+    /**
+     * @param file A log file
+     * @return The log if its build is still running, otherwise null
+     */
+    public BuildLog getRunningLog(File file) {
+        return runningLogs.get(key(file));
+    }
+
+    static Path key(File file) {
+        return file.toPath().toAbsolutePath().normalize();
     }
 
     /**
      * Save the current metadata to storage
+     *
+     * @param log The build log, a BuildLog is already stored and only closed, any other log is written in full
+     * @return The saved build
      */
-    public void saveToFile(
+    public BuildData saveToFile(
             String ownerName,
             String repoName,
             String branchName,
             String commitId,
-            String log,
+            Writer log,
             BuildStatus status
     ) throws IOException {
-        File ownerFile = new File(outputDirectory, ownerName);
-        File repoFile = new File(ownerFile, repoName);
-        File branchFile = new File(repoFile, branchName);
+        return saveToFile(ownerName, repoName, branchName, commitId, log, status, null, null);
+    }
+
+    /**
+     * Save the current metadata to storage
+     *
+     * @param log    The build log, a BuildLog is already stored and only closed, any other log is written in full
+     * @param tree   The git tree that was built, or null if unknown
+     * @param config The fingerprint of the build settings
+     * @return The saved build
+     */
+    public BuildData saveToFile(
+            String ownerName,
+            String repoName,
+            String branchName,
+            String commitId,
+            Writer log,
+            BuildStatus status,
+            String tree,
+            String config
+    ) throws IOException {
+        return saveToFile(ownerName, repoName, branchName, commitId, log, status, tree, config, _ -> {
+        });
+    }
+
+    /**
+     * Save the current metadata to storage, the time it takes is recorded as the persist stage
+     *
+     * @param log    The build log, a BuildLog is already stored and only closed, any other log is written in full
+     * @param tree   The git tree that was built, or null if unknown
+     * @param config The fingerprint of the build settings
+     * @param details Fills in what the build measured, e.g. the durations of its stages and tests
+     * @return The saved build
+     */
+    public BuildData saveToFile(
+            String ownerName,
+            String repoName,
+            String branchName,
+            String commitId,
+            Writer log,
+            BuildStatus status,
+            String tree,
+            String config,
+            Consumer<BuildData> details
+    ) throws IOException {
+        long start = System.nanoTime();
+        File branchFile = getBranchDirectory(ownerName, repoName, branchName);
 
         Boolean _ = branchFile.mkdirs();
 
-        BuildData dataFile = new BuildData(new File(branchFile, commitId + ".json"), status, commitId);
-        LogData logFile = new LogData(new File(branchFile, commitId + ".log"), log);
+        BuildData build = new BuildData(branchFile, status, commitId);
+        build.tree = tree;
+        build.config = config;
+        File logFile = build.getLogFile();
+        if (log instanceof BuildLog) {
+            log.close();
+            runningLogs.remove(key(((BuildLog) log).file));
+        } else {
+            new LogData(logFile, log.toString()).writeToFile();
+        }
+        Metrics.logBytes.add(logFile.length());
+        if (compressLogs) {
+            CompressedLog.compress(logFile);
+        }
 
-        dataFile.writeToFile();
-        logFile.writeToFile();
+        details.accept(build);
+        build.stages.put(Metrics.Stage.PERSIST, Metrics.record(Metrics.Stage.PERSIST, start));
+        store.append(build);
+        index.put(build);
+        if (search != null) {
+            search.submit(build);
+        }
+        return build;
+    }
+
+    /**
+     * @return How long the test classes of the latest build of the branch that ran tests took, or of any branch
+     * of the repository if the branch has none, in milliseconds by class name
+     */
+    public Map<String, Long> getTestDurations(String ownerName, String repoName, String branchName) {
+        String repository = ownerName + "/" + repoName;
+        Map<String, Long> durations = getTestDurations(index.get(repository + "/" + branchName));
+        BuildIndex.Node repositoryNode = index.get(repository);
+        if (durations.isEmpty() && repositoryNode != null) {
+            for (String branch : repositoryNode.children) {
+                durations = getTestDurations(index.get(repository + "/" + branch));
+                if (!durations.isEmpty()) {
+                    break;
+                }
+            }
+        }
+        return durations;
+    }
+
+    static Map<String, Long> getTestDurations(BuildIndex.Node node) {
+        if (node != null) {
+            List<BuildData> builds = node.getBuilds();
+            for (int i = builds.size() - 1; i >= 0; i--) {
+                // a build that only ran the affected tests does not know the others
+                BuildData build = builds.get(i);
+                if (!build.tests.isEmpty() && build.impactBase == null) {
+                    return build.tests;
+                }
+            }
+        }
+        return Map.of();
+    }
+
+    // how many of the latest builds of a branch are looked at for failing tests
+    static final int RECENT_BUILDS = 5;
+
+    /**
+     * @return The tests that failed or were flaky in the latest builds of the branch, the most recent first,
+     * as class#method
+     */
+    public Set<String> getRecentlyFailingTests(String ownerName, String repoName, String branchName) {
+        LinkedHashSet<String> failing = new LinkedHashSet<>();
+        BuildIndex.Node node = index.get(ownerName + "/" + repoName + "/" + branchName);
+        if (node != null) {
+            List<BuildData> builds = node.getBuilds();
+            for (int i = builds.size() - 1; i >= Math.max(0, builds.size() - RECENT_BUILDS); i--) {
+                failing.addAll(builds.get(i).failedTests);
+                failing.addAll(builds.get(i).flakyTests);
+            }
+        }
+        return failing;
+    }
+
+    /**
+     * Finds the commit whose tests the next build of the branch can be compared with, so only the tests affected by
+     * the changes since then have to run. All tests run again when the build settings changed or after too many
+     * builds that only ran the affected tests.
+     *
+     * @param config          The fingerprint of the build settings
+     * @param fullRunInterval How many builds in a row may only run the affected tests
+     * @return The commit of the latest successful build of the branch, or null if all tests have to run. Tests that
+     * failed since then are affected by the same changes.
+     */
+    public String getImpactBase(String ownerName, String repoName, String branchName, String config, int fullRunInterval) {
+        BuildIndex.Node node = index.get(ownerName + "/" + repoName + "/" + branchName);
+        if (node == null) {
+            return null;
+        }
+        List<BuildData> builds = node.getBuilds();
+        String base = null;
+        int impacted = 0;
+        for (int i = builds.size() - 1; i >= 0; i--) {
+            BuildData build = builds.get(i);
+            if (build.status != BuildStatus.SUCCESS && build.status != BuildStatus.FAILED_TO_TEST) {
+                // no tests ran
+                continue;
+            }
+            if (base == null && build.status == BuildStatus.SUCCESS) {
+                if (!Objects.equals(build.config, config)) {
+                    return null;
+                }
+                base = build.commit;
+            }
+            if (build.impactBase == null) {
+                return base;
+            }
+            if (++impacted >= fullRunInterval) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Stores how long a stage that ran after the build was saved took, e.g. sending the status
+     *
+     * @param build  The saved build
+     * @param millis The duration in milliseconds
+     */
+    public void recordStage(BuildData build, Metrics.Stage stage, long millis) throws IOException {
+        build.stages.put(stage, millis);
+        store.append(build);
+    }
+
+    /**
+     * @param tree   A git tree
+     * @param config The fingerprint of the build settings
+     * @return The latest finished build of the same tree and settings, or null
+     */
+    public BuildData findResult(String tree, String config) {
+        return store.findResult(tree, config);
+    }
+
+    /**
+     * Saves a build that reuses the result and log of an earlier build of the same tree, without building
+     *
+     * @param result The earlier build
+     * @return The saved build
+     */
+    public BuildData saveReusedResult(
+            String ownerName,
+            String repoName,
+            String branchName,
+            String commitId,
+            BuildData result
+    ) throws IOException {
+        File branchFile = getBranchDirectory(ownerName, repoName, branchName);
+        if (result.commit.equals(commitId) && key(result.directory).equals(key(branchFile))) {
+            // the same commit pushed again, the build is already there
+            return result;
+        }
+        BuildData build = new BuildData(branchFile, result.status, commitId);
+        build.tree = result.tree;
+        build.config = result.config;
+        build.log = result.getLogFile();
+        build.copyTestResults(result);
+        synchronized (deletingLogs) {
+            // the log is kept if retention was about to delete it
+            deletingLogs.remove(key(build.log));
+            store.append(build);
+            index.put(build);
+        }
+        return build;
     }
 
     /**
@@ -142,30 +657,168 @@ public class Filesystem {
      * BuildData is a single build and File is a Directory.
      */
     public Object getDirectory(String target) throws IOException {
+        return getDirectory(target, 0, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Given the target directory, shows the content from the build history index
+     *
+     * @param target eg name/repo/branch/commit.log
+     * @param offset How many builds, newest first, to skip
+     * @param limit  How many builds to show at most, all directories are always shown
+     * @return If the file is a Log, then returns a LogData, otherwise returns an Array of type BuildData or File, where
+     * BuildData is a single build and File is a Directory. The builds are newest first.
+     */
+    public Object getDirectory(String target, int offset, int limit) throws IOException {
+        File root = resolve(target);
+        BuildIndex.Node node = index.get(target);
+        if (node == null) {
+            if (root.isFile() || CompressedLog.exists(root)) {
+                return new LogData(getLogFile(target));
+            }
+            throw new FileNotFoundException();
+        }
+
+        List<BuildData> builds = node.getBuilds();
+        int from = Math.min(builds.size(), Math.max(0, offset));
+        int to = (int) Math.min(builds.size(), (long) from + Math.max(0, limit));
+        ArrayList<Object> items = new ArrayList<>(node.children.size() + to - from);
+        for (String child : node.children) {
+            items.add(new File(root, child));
+        }
+        for (int i = from; i < to; i++) {
+            items.add(builds.get(builds.size() - 1 - i));
+        }
+        return items.toArray();
+    }
+
+    /**
+     * @param target eg name/repo/branch
+     * @return How many builds the directory has
+     */
+    public int getBuildCount(String target) {
+        BuildIndex.Node node = index.get(target);
+        return node == null ? 0 : node.getBuilds().size();
+    }
+
+    /**
+     * @return A tag that changes whenever a build is recorded, for caching the directory views
+     */
+    public String getVersionTag() {
+        return epoch + "-" + index.getVersion();
+    }
+
+    /**
+     * Finds the build of a log without touching the disk
+     *
+     * @param target eg name/repo/branch/commit.log
+     * @return The finished build that wrote the log, or null if it is unknown or still running
+     */
+    public BuildData getFinishedBuild(String target) {
+        int slash = target.lastIndexOf('/');
+        if (slash < 0 || !target.endsWith(".log")) {
+            return null;
+        }
+        try {
+            if (getRunningLog(resolve(target)) != null) {
+                return null;
+            }
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+        BuildData build = store.get(target.substring(0, slash), target.substring(slash + 1, target.length() - ".log".length()));
+        // a reused result has its log somewhere else
+        return build == null || build.log != null ? null : build;
+    }
+
+    /**
+     * Remembers that the log of a build was viewed, so the least recently viewed builds are removed first
+     *
+     * @param target eg name/repo/branch/commit.log
+     */
+    public void markAccessed(String target) {
+        int slash = target.lastIndexOf('/');
+        if (slash < 0 || !target.endsWith(".log")) {
+            return;
+        }
+        BuildData build = store.get(target.substring(0, slash), target.substring(slash + 1, target.length() - ".log".length()));
+        if (build != null) {
+            build.accessed = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Removes a build from the history, it is gone from all views at once. Its log is not deleted, as other builds
+     * may reuse it.
+     *
+     * @return If it was removed, false if the build was replaced or removed in the meantime
+     */
+    public boolean remove(BuildData build) throws IOException {
+        if (!store.remove(build)) {
+            return false;
+        }
+        index.remove(build);
+        return true;
+    }
+
+    /**
+     * Deletes a log, plain or compressed, unless a build is writing it, and removes it from the search index
+     *
+     * @param log The plain log file, e.g. commit.log
+     * @return How many bytes were deleted
+     */
+    long deleteLog(File log) throws IOException {
+        if (getRunningLog(log) != null) {
+            return 0;
+        }
+        if (search != null) {
+            search.remove(log);
+        }
+        long deleted = 0;
+        for (File file : new File[]{log, CompressedLog.compressedFile(log), CompressedLog.indexFile(log)}) {
+            long length = file.length();
+            if (Files.deleteIfExists(file.toPath())) {
+                deleted += length;
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * @param log The plain log file, e.g. commit.log
+     * @return How many bytes the log takes in storage, plain or compressed
+     */
+    static long getStoredSize(File log) {
+        return log.length() + CompressedLog.compressedFile(log).length() + CompressedLog.indexFile(log).length();
+    }
+
+    /**
+     * @param target eg name/repo/branch
+     * @return The file in storage, which is never outside the output directory
+     */
+    File resolve(String target) throws FileNotFoundException {
         File root = new File(outputDirectory);
+        File file = root;
         for (String subdirectory : target.split("/")) {
-            root = new File(root, subdirectory);
+            file = new File(file, subdirectory);
         }
-        if (!root.exists()) {
+        if (!key(file).startsWith(key(root))) {
             throw new FileNotFoundException();
-        } else if (root.isFile()) {
-            if (!FilenameUtils.getExtension(root.getName()).equalsIgnoreCase("log")) {
-                // Cant read non log files, as that is a security issue
-                throw new FileNotFoundException();
-            }
-            return new LogData(root);
-        }
-        try (Stream<Path> stream = Files.list(root.toPath())) {
-            return stream.map(Path::toFile).filter(x -> x.isDirectory() || (x.isFile() && FilenameUtils.getExtension(x.getName()).equalsIgnoreCase("json"))).map(item -> {
-                try {
-                    return item.isDirectory() ? item : new BuildData(item);
-                } catch (Exception e) {
-                    // Json errors
-                    e.printStackTrace();
-                    return null;
-                }
-            }).filter(Objects::nonNull).toArray();
         }
+        return file;
+    }
+
+    /**
+     * @param target eg name/repo/branch/commit.log
+     * @return The plain log file, it may belong to a running build or be stored compressed
+     */
+    public File getLogFile(String target) throws FileNotFoundException {
+        File file = resolve(target);
+        if (!(file.isFile() || CompressedLog.exists(file)) || !FilenameUtils.getExtension(file.getName()).equalsIgnoreCase("log")) {
+            // Cant read non log files, as that is a security issue
+            throw new FileNotFoundException();
+        }
+        return file;
     }
 
     /***
@@ -174,16 +827,6 @@ public class Filesystem {
      * @return The content of the file
      */
     public static String readFileToEnd(File file) throws IOException {
-        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
-            StringBuilder sb = new StringBuilder();
-            String line = reader.readLine();
-
-            while (line != null) {
-                sb.append(line);
-                sb.append(System.lineSeparator());
-                line = reader.readLine();
-            }
-            return sb.toString();
-        }
+        return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
     }
 }
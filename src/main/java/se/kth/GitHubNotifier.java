@@ -0,0 +1,286 @@
+package se.kth;
+
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Sends commit statuses to GitHub. All requests share one HttpClient, so connections are kept alive (and HTTP/2 is
+ * used when possible). Updates are sent in the background, in order for every commit, and retried with backoff.
+ * When the rate limit is used up no request is sent until it is reset.
+ */
+public class GitHubNotifier {
+    static final String DEFAULT_API_URL = "https://api.github.com";
+    // how many commits are remembered to have a final status queued
+    static final int FINISHED_HISTORY = 1000;
+    static final long MAX_BACKOFF = 60_000;
+
+    /**
+     * A status that is waiting to be sent
+     */
+    record Update(String commitId, String ownerName, String repoName, Filesystem.BuildStatus status,
+                  CompletableFuture<Boolean> result) {
+    }
+
+    final HttpClient client;
+    final String apiUrl;
+    final String token;
+    int maxAttempts = Config.getInt("CI_NOTIFY_ATTEMPTS", 5);
+    // the wait before the first retry, doubled for every retry
+    long backoffMillis = 1000;
+    // updates waiting to be sent, by owner/repo/commit, every commit has at most one thread sending
+    final Map<String, ArrayDeque<Update>> queued = new HashMap<>();
+    // commits that have their final status queued, oldest first
+    final Set<String> finished = Collections.newSetFromMap(new LinkedHashMap<>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > FINISHED_HISTORY;
+        }
+    });
+    // no request is sent before this time, set when the rate limit is used up
+    volatile long pausedUntil;
+
+    /**
+     * @param apiUrl The GitHub api, e.g. https://api.github.com
+     * @param token  The token used for all requests, may be null in which case nothing is sent
+     */
+    GitHubNotifier(String apiUrl, String token) {
+        this.apiUrl = apiUrl.endsWith("/") ? apiUrl.substring(0, apiUrl.length() - 1) : apiUrl;
+        this.token = token;
+        this.client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .connectTimeout(Duration.ofSeconds(10))
+                .build();
+    }
+
+    /**
+     * @return A notifier for GITHUB_API_URL with GITHUB_TOKEN
+     */
+    static GitHubNotifier fromConfig() {
+        return new GitHubNotifier(Config.getString("GITHUB_API_URL", DEFAULT_API_URL), Config.getString("GITHUB_TOKEN", null));
+    }
+
+    /**
+     * Converts a build status to a GitHub commit status
+     */
+    static JSONObject toJson(Filesystem.BuildStatus status) {
+        String state;
+        String description = switch (status) {
+            case SUCCESS -> {
+                state = "success";
+                yield "Build succeeded!";
+            }
+            case FAILED_TO_COMPILE -> {
+                state = "failure";
+                yield "Compilation failed!";
+            }
+            case FAILED_TO_TEST -> {
+                state = "failure";
+                yield "Tests failed!";
+            }
+            case PENDING -> {
+                state = "pending";
+                yield "Building in progress!";
+            }
+            case SUPERSEDED -> {
+                // there is no cancelled state, and a superseded commit is neither a success nor a failure
+                state = "error";
+                yield "Superseded by a newer commit!";
+            }
+            case FAILED_SETUP -> {
+                state = "error";
+                yield "CI setup failed!";
+            }
+        };
+        JSONObject json = new JSONObject();
+        json.put("state", state);
+        json.put("description", description);
+        return json;
+    }
+
+    /**
+     * Queues a status update, it is sent after all earlier updates of the same commit. A pending status is dropped
+     * if the final status of the commit is already queued, unless the commit is built again, see building.
+     *
+     * @return Completed with whether the status was sent
+     */
+    public CompletableFuture<Boolean> notify(String commitId, String ownerName, String repoName, Filesystem.BuildStatus status) {
+        Update update = new Update(commitId, ownerName, repoName, status, new CompletableFuture<>());
+        String key = ownerName + "/" + repoName + "/" + commitId;
+        boolean start;
+        synchronized (queued) {
+            ArrayDeque<Update> queue = queued.get(key);
+            if (status == Filesystem.BuildStatus.PENDING) {
+                if (finished.contains(key)) {
+                    update.result().complete(false);
+                    return update.result();
+                }
+            } else {
+                finished.add(key);
+                if (queue != null) {
+                    queue.removeIf(other -> other.status() == Filesystem.BuildStatus.PENDING && other.result().complete(false));
+                }
+            }
+            start = queue == null;
+            if (start) {
+                queue = new ArrayDeque<>();
+                queued.put(key, queue);
+            }
+            queue.add(update);
+        }
+        if (start) {
+            Thread.ofVirtual().name("github-notifier").start(() -> drain(key));
+        }
+        return update.result();
+    }
+
+    /**
+     * Forgets the final status of a commit that is built again, so the pending status of the new build is sent.
+     * It is called before the build is queued, so a final status of the new build that is queued before its
+     * pending status still drops it.
+     */
+    public void building(String commitId, String ownerName, String repoName) {
+        synchronized (queued) {
+            finished.remove(ownerName + "/" + repoName + "/" + commitId);
+        }
+    }
+
+    /**
+     * Sends the updates of a commit until there are none left
+     */
+    void drain(String key) {
+        while (true) {
+            Update update;
+            synchronized (queued) {
+                update = queued.get(key).poll();
+                if (update == null) {
+                    queued.remove(key);
+                    return;
+                }
+            }
+            try {
+                update.result().complete(send(update.commitId(), update.ownerName(), update.repoName(), update.status()));
+            } catch (Throwable t) {
+                update.result().completeExceptionally(t);
+            }
+        }
+    }
+
+    /**
+     * Sends a status and waits for it, retrying with backoff
+     *
+     * @return If GitHub accepted the status
+     */
+    public boolean send(String commitId, String ownerName, String repoName, Filesystem.BuildStatus status) {
+        if (token == null || token.isBlank()) {
+            System.err.println("No GITHUB_TOKEN set, not sending " + status + " for " + commitId);
+            return false;
+        }
+        // https://docs.github.com/en/rest/commits/statuses?apiVersion=2022-11-28#create-a-commit-status
+        HttpRequest request = HttpRequest.newBuilder(URI.create(apiUrl + "/repos/%s/%s/statuses/%s".formatted(ownerName, repoName, commitId)))
+                .timeout(Duration.ofSeconds(30))
+                .header("Accept", "application/vnd.github+json")
+                .header("Authorization", "Bearer " + token)
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(toJson(status).toString()))
+                .build();
+
+        long backoff = backoffMillis;
+        for (int attempt = 1; ; attempt++) {
+            long delay;
+            try {
+                waitForRateLimit();
+                HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+                if (response.statusCode() == 201) {
+                    updateRateLimit(response);
+                    return true;
+                }
+                Metrics.githubErrors.increment();
+                delay = getRetryDelay(response, backoff);
+                if (delay < 0) {
+                    System.err.println("Failed to update status on GitHub, Response Code: " + response.statusCode() + " " + response.body());
+                    return false;
+                }
+                System.err.println("GitHub answered " + response.statusCode() + " for " + commitId + ", attempt " + attempt);
+            } catch (IOException e) {
+                Metrics.githubErrors.increment();
+                System.err.println("Could not reach GitHub for " + commitId + ", attempt " + attempt + ": " + e);
+                delay = backoff;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            if (attempt >= maxAttempts) {
+                return false;
+            }
+            try {
+                // spread out retries of many commits
+                Thread.sleep(delay + (delay > 0 ? ThreadLocalRandom.current().nextLong(delay / 4 + 1) : 0));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            backoff = Math.min(MAX_BACKOFF, backoff * 2);
+        }
+    }
+
+    /**
+     * @return How long to wait before retrying, or -1 if the request cannot succeed
+     */
+    long getRetryDelay(HttpResponse<?> response, long backoff) {
+        int code = response.statusCode();
+        boolean limited = updateRateLimit(response);
+        if (limited && (code == 403 || code == 429)) {
+            // waitForRateLimit waits until it is reset
+            return 0;
+        }
+        if (code == 429 || code >= 500) {
+            return backoff;
+        }
+        return -1;
+    }
+
+    /**
+     * Reads the rate limit headers of a response
+     *
+     * @return If requests have to wait for the rate limit
+     */
+    boolean updateRateLimit(HttpResponse<?> response) {
+        long now = System.currentTimeMillis();
+        long until = 0;
+        Optional<String> retryAfter = response.headers().firstValue("Retry-After");
+        if (retryAfter.isPresent()) {
+            try {
+                until = now + Long.parseLong(retryAfter.get().trim()) * 1000;
+            } catch (NumberFormatException _) {
+            }
+        }
+        if (response.headers().firstValue("X-RateLimit-Remaining").map(String::trim).orElse("").equals("0")) {
+            try {
+                until = Math.max(until, Long.parseLong(response.headers().firstValue("X-RateLimit-Reset").orElse("").trim()) * 1000);
+            } catch (NumberFormatException _) {
+            }
+        }
+        if (until > now) {
+            pausedUntil = Math.max(pausedUntil, until);
+            return true;
+        }
+        return false;
+    }
+
+    void waitForRateLimit() throws InterruptedException {
+        long wait = pausedUntil - System.currentTimeMillis();
+        if (wait > 0) {
+            System.err.println("GitHub rate limit reached, waiting " + wait + " ms");
+            Thread.sleep(wait);
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package se.kth;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+
+/**
+ * Renders the history pages of the web interface straight to the response. The templates of Webb are split at their
+ * placeholders once, and every row is written as soon as it is rendered, so nothing of the page is built in memory.
+ */
+public class HistoryRenderer {
+    // DateTimeFormatter is immutable, so one instance is shared by all requests
+    static final DateTimeFormatter buildDate = DateTimeFormatter.ofPattern("MMM dd,yyyy HH:mm").withZone(ZoneId.systemDefault());
+
+    static final Template layout = Template.compile(Webb.template);
+    static final Template buildRow = Template.compile(Webb.buildRow);
+    static final Template dirRow = Template.compile(Webb.dirRow);
+    static final Template pageRow = Template.compile(Webb.pageRow);
+    static final Template pageLink = Template.compile(Webb.pageLink);
+    static final Template searchForm = Template.compile(Webb.searchForm);
+    static final Template searchRow = Template.compile(Webb.searchRow);
+    static final Template snippetLine = Template.compile(Webb.snippetLine);
+    static final Template messageRow = Template.compile(Webb.messageRow);
+
+    /**
+     * A template split at its placeholders: %s is escaped text and %d a number
+     */
+    static class Template {
+        // the text between the placeholders, one more than there are placeholders
+        final String[] parts;
+        final char[] kinds;
+
+        Template(String[] parts, char[] kinds) {
+            this.parts = parts;
+            this.kinds = kinds;
+        }
+
+        static Template compile(String text) {
+            ArrayList<String> parts = new ArrayList<>();
+            StringBuilder kinds = new StringBuilder();
+            int start = 0;
+            for (int i = 0; i < text.length() - 1; i++) {
+                char kind = text.charAt(i + 1);
+                if (text.charAt(i) == '%' && (kind == 's' || kind == 'd')) {
+                    parts.add(text.substring(start, i));
+                    kinds.append(kind);
+                    start = i + 2;
+                    i++;
+                }
+            }
+            parts.add(text.substring(start));
+            return new Template(parts.toArray(String[]::new), kinds.toString().toCharArray());
+        }
+
+        /**
+         * Writes the template with a value for every placeholder
+         */
+        void write(Writer out, Object... values) throws IOException {
+            for (int i = 0; i < kinds.length; i++) {
+                out.write(parts[i]);
+                String value = String.valueOf(values[i]);
+                if (kinds[i] == 's') {
+                    escape(value, out);
+                } else {
+                    out.write(value);
+                }
+            }
+            out.write(parts[kinds.length]);
+        }
+
+        /**
+         * Writes the text in front of a placeholder, for templates that are filled in while they are written
+         */
+        void writePart(Writer out, int part) throws IOException {
+            out.write(parts[part]);
+        }
+    }
+
+    /**
+     * Writes text escaped for html content and attributes
+     */
+    static void escape(String text, Writer out) throws IOException {
+        int start = 0;
+        for (int i = 0; i < text.length(); i++) {
+            String replacement = switch (text.charAt(i)) {
+                case '<' -> "&lt;";
+                case '>' -> "&gt;";
+                case '&' -> "&amp;";
+                case '"' -> "&quot;";
+                case '\'' -> "&#39;";
+                default -> null;
+            };
+            if (replacement != null) {
+                out.write(text, start, i - start);
+                out.write(replacement);
+                start = i + 1;
+            }
+        }
+        out.write(text, start, text.length() - start);
+    }
+
+    static String getStatusText(Filesystem.BuildStatus status) {
+        return switch (status) {
+            case SUCCESS -> "Build successful";
+            case PENDING -> "Build in progress";
+            case FAILED_SETUP -> "Unable to complete job";
+            case FAILED_TO_COMPILE -> "Failed to compile";
+            case FAILED_TO_TEST -> "Failed tests";
+            case SUPERSEDED -> "Superseded by a newer commit";
+        };
+    }
+
+    final Filesystem fileSystem;
+
+    HistoryRenderer(Filesystem fileSystem) {
+        this.fileSystem = fileSystem;
+    }
+
+    /**
+     * Writes a page of the build history. The start of the page is flushed before the rows are rendered.
+     *
+     * @param directory The builds and directories, from getDirectory
+     * @param page      The shown page, from 0
+     * @param pages     How many pages of builds there are
+     */
+    void render(Writer out, Object[] directory, int page, int pages) throws IOException {
+        boolean hasBuilds = false;
+        boolean hasDirs = false;
+        for (Object entry : directory) {
+            hasBuilds |= entry instanceof Filesystem.BuildData;
+            hasDirs |= entry instanceof File;
+        }
+
+        layout.writePart(out, 0);
+        out.flush();
+        if (hasBuilds) {
+            out.write(Webb.buildHeader);
+        }
+        // the builds of a page share their directory, so its path is only computed when it changes
+        File directoryOfPath = null;
+        String path = null;
+        for (Object entry : directory) {
+            if (!(entry instanceof Filesystem.BuildData build)) {
+                continue;
+            }
+            String log;
+            if (build.log != null) {
+                log = fileSystem.sanitizeFilepath(build.log);
+            } else {
+                if (!build.directory.equals(directoryOfPath)) {
+                    directoryOfPath = build.directory;
+                    path = fileSystem.sanitizeFilepath(build.directory);
+                }
+                log = path + "/" + build.commit + ".log";
+            }
+            buildRow.write(out, build.commit, getStatusText(build.status), buildDate.format(Instant.ofEpochMilli(build.time)), log);
+        }
+        if (pages > 1) {
+            writePageRow(out, page, pages);
+        }
+        if (!hasBuilds && !hasDirs) {
+            out.write(Webb.nothingFound);
+        }
+
+        layout.writePart(out, 1);
+        if (hasDirs) {
+            out.write(Webb.dirHeader);
+        }
+        for (Object entry : directory) {
+            if (entry instanceof File dir) {
+                dirRow.write(out, fileSystem.sanitizeFilepath(dir), dir.getName());
+            }
+        }
+        layout.writePart(out, 2);
+        out.flush();
+    }
+
+    /**
+     * Writes the search page
+     *
+     * @param query   The query in the search field
+     * @param results The matching builds, or null if nothing was searched
+     * @param error   Why the query could not be run, or null
+     */
+    void renderSearch(Writer out, String query, SearchIndex.Results results, String error) throws IOException {
+        layout.writePart(out, 0);
+        searchForm.write(out, query);
+        if (error != null) {
+            messageRow.write(out, error);
+        } else if (results != null && results.builds().isEmpty()) {
+            out.write(Webb.nothingFound);
+        } else if (results != null) {
+            out.write(Webb.searchHeader);
+            for (SearchIndex.Result result : results.builds()) {
+                Filesystem.BuildData build = result.build();
+                String path = result.log().substring(0, result.log().lastIndexOf('/'));
+                searchRow.write(out, result.log(), path + " " + build.commit, getStatusText(build.status),
+                        buildDate.format(Instant.ofEpochMilli(build.time)));
+                for (SearchIndex.Snippet snippet : result.snippets()) {
+                    snippetLine.write(out, result.log(), snippet.line(), snippet.text());
+                }
+                out.write(Webb.searchRowEnd);
+            }
+            if (results.truncated()) {
+                messageRow.write(out, "More builds match, narrow the search to see them");
+            }
+        }
+        layout.writePart(out, 1);
+        layout.writePart(out, 2);
+        out.flush();
+    }
+
+    void writePageRow(Writer out, int page, int pages) throws IOException {
+        pageRow.writePart(out, 0);
+        if (page > 0) {
+            pageLink.write(out, page - 1, "Previous");
+        }
+        pageRow.writePart(out, 1);
+        out.write(Integer.toString(page + 1));
+        pageRow.writePart(out, 2);
+        out.write(Integer.toString(pages));
+        pageRow.writePart(out, 3);
+        if (page + 1 < pages) {
+            pageLink.write(out, page + 1, "Next");
+        }
+        pageRow.writePart(out, 4);
+    }
+}
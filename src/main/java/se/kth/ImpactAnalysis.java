@@ -0,0 +1,167 @@
+package se.kth;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Finds the test classes that a change can affect. The dependencies between the classes of a project are read from
+ * the constant pools of the compiled classes, and a test is affected if it depends, directly or through other
+ * classes, on a changed source file. Constants that javac copies into other classes are not seen, so a full run
+ * still has to happen now and then.
+ */
+public class ImpactAnalysis {
+    static final String CLASSES = "classes";
+    static final String TEST_CLASSES = "test-classes";
+    // a class in a type descriptor or signature, e.g. Lse/kth/Foo; or Ljava/util/List<Lse/kth/Foo;>;
+    static final Pattern descriptorClass = Pattern.compile("L([\\w/$]+)[;<]");
+
+    /**
+     * @param changedFiles The changed files of the repository, with / as separator
+     * @return The classes of the changed java sources, or null if a change can affect any test, e.g. pom.xml or
+     * a resource. Files outside the sources, e.g. README.md, are ignored.
+     */
+    static Set<String> getChangedClasses(List<String> changedFiles) {
+        TreeSet<String> classes = new TreeSet<>();
+        for (String file : changedFiles) {
+            String name = file.substring(file.lastIndexOf('/') + 1);
+            int sources = Math.max(file.lastIndexOf("src/main/java/"), file.lastIndexOf("src/test/java/"));
+            if (file.endsWith(".java") && sources >= 0 && (sources == 0 || file.charAt(sources - 1) == '/')) {
+                String path = file.substring(sources + "src/main/java/".length(), file.length() - ".java".length());
+                classes.add(path.replace('/', '.'));
+            } else if (name.equals("pom.xml") || file.startsWith("src/") || file.contains("/src/")) {
+                return null;
+            }
+        }
+        return classes;
+    }
+
+    /**
+     * Reads the dependencies of all compiled classes of all modules, inner classes are part of their outer class
+     *
+     * @param project The checked out project after mvn test-compile
+     * @return The classes every class uses, by class name
+     */
+    static Map<String, Set<String>> readDependencies(File project) throws IOException {
+        HashMap<String, Set<String>> dependencies = new HashMap<>();
+        ArrayList<Path> directories = new ArrayList<>(TestShards.findTargetDirectories(project, CLASSES));
+        directories.addAll(TestShards.findTargetDirectories(project, TEST_CLASSES));
+        for (Path directory : directories) {
+            try (Stream<Path> files = Files.walk(directory)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    String relative = directory.relativize(file).toString().replace(File.separatorChar, '/');
+                    if (!relative.endsWith(".class")) {
+                        continue;
+                    }
+                    String name = getOuterClass(relative.substring(0, relative.length() - ".class".length()));
+                    Set<String> uses = dependencies.computeIfAbsent(name, _ -> new HashSet<>());
+                    try (InputStream in = new BufferedInputStream(new FileInputStream(file.toFile()))) {
+                        for (String used : readReferences(in)) {
+                            uses.add(getOuterClass(used));
+                        }
+                    }
+                }
+            }
+        }
+        return dependencies;
+    }
+
+    /**
+     * @param name A class name with / or . as separator, e.g. se/kth/Foo$Bar
+     * @return The name of its outer class with . as separator, e.g. se.kth.Foo
+     */
+    static String getOuterClass(String name) {
+        int inner = name.indexOf('$');
+        return (inner < 0 ? name : name.substring(0, inner)).replace('/', '.');
+    }
+
+    /**
+     * Reads the classes a class file refers to from its constant pool, both the classes it uses and the classes in
+     * its type descriptors and signatures
+     *
+     * @return The class names with / as separator
+     */
+    static Set<String> readReferences(InputStream stream) throws IOException {
+        DataInputStream in = new DataInputStream(stream);
+        if (in.readInt() != 0xCAFEBABE) {
+            throw new IOException("Not a class file");
+        }
+        in.readUnsignedShort();
+        in.readUnsignedShort();
+        int count = in.readUnsignedShort();
+        String[] strings = new String[count];
+        int[] classes = new int[count];
+        int classCount = 0;
+        for (int i = 1; i < count; i++) {
+            int tag = in.readUnsignedByte();
+            switch (tag) {
+                case 1 -> strings[i] = in.readUTF();
+                case 7 -> classes[classCount++] = in.readUnsignedShort();
+                case 8, 16, 19, 20 -> in.skipNBytes(2);
+                case 15 -> in.skipNBytes(3);
+                case 3, 4, 9, 10, 11, 12, 17, 18 -> in.skipNBytes(4);
+                case 5, 6 -> {
+                    in.skipNBytes(8);
+                    // takes two entries
+                    i++;
+                }
+                default -> throw new IOException("Unknown constant pool tag " + tag);
+            }
+        }
+
+        HashSet<String> references = new HashSet<>();
+        for (int i = 0; i < classCount; i++) {
+            String name = strings[classes[i]];
+            if (name != null && name.startsWith("[")) {
+                // an array class is written as a descriptor
+                Matcher matcher = descriptorClass.matcher(name);
+                if (matcher.find()) {
+                    references.add(matcher.group(1));
+                }
+            } else if (name != null) {
+                references.add(name);
+            }
+        }
+        for (String string : strings) {
+            if (string != null && string.indexOf('L') >= 0 && string.indexOf(';') >= 0) {
+                Matcher matcher = descriptorClass.matcher(string);
+                while (matcher.find()) {
+                    references.add(matcher.group(1));
+                }
+            }
+        }
+        return references;
+    }
+
+    /**
+     * @param dependencies   The classes every class uses
+     * @param changedClasses The changed classes
+     * @param tests          The test classes of the project
+     * @return The test classes that use a changed class, directly or through other classes, in the order of tests
+     */
+    static List<String> getAffectedTests(Map<String, Set<String>> dependencies, Set<String> changedClasses, List<String> tests) {
+        // who uses every class
+        HashMap<String, List<String>> users = new HashMap<>();
+        dependencies.forEach((name, uses) -> {
+            for (String used : uses) {
+                if (!used.equals(name)) {
+                    users.computeIfAbsent(used, _ -> new ArrayList<>()).add(name);
+                }
+            }
+        });
+        HashSet<String> affected = new HashSet<>(changedClasses);
+        ArrayDeque<String> pending = new ArrayDeque<>(changedClasses);
+        while (!pending.isEmpty()) {
+            for (String user : users.getOrDefault(pending.poll(), List.of())) {
+                if (affected.add(user)) {
+                    pending.add(user);
+                }
+            }
+        }
+        return tests.stream().filter(affected::contains).toList();
+    }
+}
@@ -0,0 +1,214 @@
+package se.kth;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Streams a build log as Server-Sent Events while the build is running. Every event carries the byte
+ * offset of the log as id, so a viewer that reconnects (EventSource sends Last-Event-ID) continues where it
+ * stopped. Viewers only read the part of the file that is new to them, which is served from the page cache.
+ */
+public class LiveTail {
+    static final int CHUNK_SIZE = 64 * 1024;
+    // how long to wait for new output before flushing the log ourselves
+    static final long POLL_MILLIS = 1000;
+    // a comment is sent when nothing happened for this long, so proxies keep the connection
+    static final long KEEPALIVE_MILLIS = 15_000;
+
+    final Filesystem filesystem;
+
+    LiveTail(Filesystem filesystem) {
+        this.filesystem = filesystem;
+    }
+
+    /**
+     * @param request The request, Last-Event-ID or ?offset= sets where to start
+     * @return The byte offset to start streaming from
+     */
+    static long getOffset(HttpServletRequest request) {
+        String offset = request.getHeader("Last-Event-ID");
+        if (offset == null) {
+            offset = request.getParameter("offset");
+        }
+        try {
+            return offset == null ? 0 : Math.max(0, Long.parseLong(offset.trim()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Shows the live log, as an event stream if the browser asks for it, otherwise a page that opens the stream
+     *
+     * @param target   eg name/repo/branch/commit.log
+     * @param request  The request
+     * @param response Where to send the response
+     */
+    public void show(String target, HttpServletRequest request, HttpServletResponse response) throws IOException, InterruptedException {
+        File file = filesystem.getLogFile(target);
+        String accept = request.getHeader("Accept");
+        if (accept == null || !accept.contains("text/event-stream")) {
+            response.setStatus(HttpServletResponse.SC_OK);
+            // the name is the commit id of the push, which anyone can send
+            String name = file.getName();
+            StringWriter title = new StringWriter();
+            Filesystem.escapeHtml(name.toCharArray(), name.length(), title);
+            response.getWriter().write(Webb.livePage.formatted(title));
+            return;
+        }
+
+        response.setContentType("text/event-stream;charset=utf-8");
+        response.setHeader("Cache-Control", "no-cache");
+        response.setStatus(HttpServletResponse.SC_OK);
+        stream(file, getOffset(request), response.getOutputStream());
+    }
+
+    /**
+     * Sends the log from the offset until its build has finished and everything is sent
+     *
+     * @param file   The log file
+     * @param offset The byte offset to start from
+     * @param out    The response stream, it is flushed after every event
+     */
+    void stream(File file, long offset, OutputStream out) throws IOException, InterruptedException {
+        if (filesystem.getRunningLog(file) == null && !file.isFile()) {
+            streamFinished(new Filesystem.LogData(file), offset, out);
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
+        long lastSent = System.currentTimeMillis();
+        // how much of the log was read, more than offset while the last line is not finished
+        long seen = offset;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            while (true) {
+                BuildLog running = filesystem.getRunningLog(file);
+                long length;
+                if (running != null && !running.isClosed()) {
+                    length = running.awaitGrowth(seen, POLL_MILLIS);
+                    if (length <= seen) {
+                        // something may be waiting in the write buffer
+                        running.flush();
+                        length = running.length;
+                    }
+                } else {
+                    running = null;
+                    length = channel.size();
+                }
+
+                if (length > offset) {
+                    buffer.clear();
+                    buffer.limit((int) Math.min(buffer.capacity(), length - offset));
+                    int read = channel.read(buffer, offset);
+                    // the rest of a finished log is sent even if its last line has no line end
+                    int end = chunkEnd(buffer.array(), read, read == buffer.capacity() || running == null);
+                    if (end > 0) {
+                        offset += end;
+                        seen = offset;
+                        writeEvent(out, offset, new String(buffer.array(), 0, end, StandardCharsets.UTF_8));
+                        lastSent = System.currentTimeMillis();
+                        continue;
+                    }
+                    // e.g. a prompt or a progress bar, it is sent with the rest of its line
+                    seen = offset + read;
+                }
+
+                if (running == null) {
+                    out.write("event: end\ndata: end\n\n".getBytes(StandardCharsets.UTF_8));
+                    out.flush();
+                    return;
+                }
+                if (System.currentTimeMillis() - lastSent > KEEPALIVE_MILLIS) {
+                    // also finds viewers that have left, as the write fails
+                    out.write(": keepalive\n\n".getBytes(StandardCharsets.UTF_8));
+                    out.flush();
+                    lastSent = System.currentTimeMillis();
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends a finished log that is stored compressed, in whole lines like a running log
+     */
+    void streamFinished(Filesystem.LogData log, long offset, OutputStream out) throws IOException {
+        try (InputStream in = log.open(offset)) {
+            byte[] buffer = new byte[CHUNK_SIZE];
+            // the bytes in the buffer, the start of a line that did not fit is carried over to the next chunk
+            int length = 0;
+            while (true) {
+                length += in.readNBytes(buffer, length, buffer.length - length);
+                if (length == 0) {
+                    break;
+                }
+                // readNBytes only reads less than asked at the end of the log
+                int end = chunkEnd(buffer, length, true);
+                offset += end;
+                writeEvent(out, offset, new String(buffer, 0, end, StandardCharsets.UTF_8));
+                System.arraycopy(buffer, end, buffer, 0, length - end);
+                length -= end;
+            }
+        }
+        out.write("event: end\ndata: end\n\n".getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    /**
+     * Finds how much of a chunk to send, so every event has whole lines and no event ends inside a character
+     *
+     * @param bytes    The chunk
+     * @param length   How many bytes of it are read
+     * @param complete If the bytes have to be sent even without a line end, as the chunk is full or nothing follows
+     * @return How many bytes to send, 0 to wait for the rest of the line
+     */
+    static int chunkEnd(byte[] bytes, int length, boolean complete) {
+        int lastLine = lastIndexOf(bytes, length, (byte) '\n');
+        if (lastLine >= 0) {
+            return lastLine + 1;
+        }
+        if (!complete || length == 0) {
+            return 0;
+        }
+        // a line longer than a chunk is split, before the last character if it is not whole
+        int start = length - 1;
+        while (start > 0 && (bytes[start] & 0xC0) == 0x80) {
+            start--;
+        }
+        int size = (bytes[start] & 0xE0) == 0xC0 ? 2 : (bytes[start] & 0xF0) == 0xE0 ? 3 : (bytes[start] & 0xF8) == 0xF0 ? 4 : 1;
+        return start > 0 && start + size > length ? start : length;
+    }
+
+    static int lastIndexOf(byte[] bytes, int length, byte value) {
+        for (int i = length - 1; i >= 0; i--) {
+            if (bytes[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Writes one event, every line of the text becomes a data line
+     */
+    static void writeEvent(OutputStream out, long offset, String text) throws IOException {
+        StringBuilder event = new StringBuilder(text.length() + 64);
+        event.append("id: ").append(offset).append('\n');
+        if (text.endsWith("\n")) {
+            text = text.substring(0, text.length() - 1);
+        }
+        for (String line : text.split("\r?\n|\r", -1)) {
+            event.append("data: ").append(line).append('\n');
+        }
+        event.append('\n');
+        out.write(event.toString().getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+}
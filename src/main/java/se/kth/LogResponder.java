@@ -0,0 +1,197 @@
+package se.kth;
+
+import org.eclipse.jetty.io.nio.DirectNIOBuffer;
+import org.eclipse.jetty.server.HttpConnection;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Sends build logs to the browser without reading them into memory. The html view is escaped while it is
+ * streamed, the raw view (?raw) supports Range requests and is sent from a memory mapped file,
+ * and both are gzip compressed when the browser accepts it and no range is asked for. Finished logs that are
+ * stored compressed are decompressed from the block that contains the start of the range.
+ */
+public class LogResponder {
+    static final int BUFFER_SIZE = 64 * 1024;
+    // larger ranges are copied through a channel instead of mapped
+    static final long MAX_MAPPED = 256L * 1024 * 1024;
+
+    /**
+     * A byte range of a log, both ends included
+     */
+    record Range(long start, long end) {
+        long length() {
+            return end - start + 1;
+        }
+    }
+
+    static final Range UNSATISFIABLE = new Range(-1, -2);
+
+    /**
+     * @param header The Range header, e.g. bytes=0-499, bytes=500- or bytes=-500
+     * @param length The size of the log
+     * @return The range, null to send everything, or UNSATISFIABLE
+     */
+    static Range parseRange(String header, long length) {
+        if (header == null || !header.startsWith("bytes=") || header.contains(",")) {
+            // several ranges are allowed to be answered with the whole content
+            return null;
+        }
+        String spec = header.substring("bytes=".length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+        try {
+            String first = spec.substring(0, dash).trim();
+            String last = spec.substring(dash + 1).trim();
+            long start;
+            long end;
+            if (first.isEmpty()) {
+                // the last n bytes
+                long suffix = Long.parseLong(last);
+                if (suffix <= 0) {
+                    return UNSATISFIABLE;
+                }
+                start = Math.max(0, length - suffix);
+                end = length - 1;
+            } else {
+                start = Long.parseLong(first);
+                end = last.isEmpty() ? length - 1 : Math.min(Long.parseLong(last), length - 1);
+            }
+            if (start >= length || start > end) {
+                return UNSATISFIABLE;
+            }
+            return new Range(start, end);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    static boolean acceptsGzip(HttpServletRequest request) {
+        String encoding = request.getHeader("Accept-Encoding");
+        return encoding != null && encoding.toLowerCase().contains("gzip");
+    }
+
+    /**
+     * Sends a log, as raw text if the request has ?raw otherwise as html
+     */
+    public void show(Filesystem.LogData log, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        if (request.getParameter("raw") != null) {
+            showRaw(log, request, response);
+        } else {
+            showHtml(log, request, response);
+        }
+    }
+
+    void showHtml(Filesystem.LogData log, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        response.setContentType("text/html;charset=utf-8");
+        response.setHeader("Vary", "Accept-Encoding");
+        response.setStatus(HttpServletResponse.SC_OK);
+        boolean gzip = acceptsGzip(request);
+        if (gzip) {
+            response.setHeader("Content-Encoding", "gzip");
+        }
+
+        OutputStream out = response.getOutputStream();
+        GZIPOutputStream compressed = gzip ? new GZIPOutputStream(out, BUFFER_SIZE) : null;
+        Writer writer = new BufferedWriter(new OutputStreamWriter(gzip ? compressed : out, StandardCharsets.UTF_8), BUFFER_SIZE);
+        log.writeHtml(writer);
+        writer.flush();
+        if (compressed != null) {
+            compressed.finish();
+        }
+    }
+
+    void showRaw(Filesystem.LogData log, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        long length = log.length();
+        response.setContentType("text/plain;charset=utf-8");
+        response.setHeader("Accept-Ranges", "bytes");
+        response.setHeader("Vary", "Accept-Encoding");
+
+        Range range = parseRange(request.getHeader("Range"), length);
+        if (range == UNSATISFIABLE) {
+            response.setHeader("Content-Range", "bytes */" + length);
+            response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+            return;
+        }
+        if (range != null) {
+            response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+            response.setHeader("Content-Range", "bytes " + range.start() + "-" + range.end() + "/" + length);
+        } else {
+            response.setStatus(HttpServletResponse.SC_OK);
+            range = new Range(0, length - 1);
+            if (acceptsGzip(request)) {
+                response.setHeader("Content-Encoding", "gzip");
+                GZIPOutputStream compressed = new GZIPOutputStream(response.getOutputStream(), BUFFER_SIZE);
+                copy(log, range, compressed);
+                compressed.finish();
+                return;
+            }
+        }
+
+        response.setHeader("Content-Length", Long.toString(range.length()));
+        if (range.length() <= 0) {
+            return;
+        }
+        OutputStream out = response.getOutputStream();
+        if (log.isCompressed()) {
+            // only the blocks from the start of the range are decompressed
+            copy(log, range, out);
+        } else if (out instanceof HttpConnection.Output jetty && range.length() <= MAX_MAPPED) {
+            // jetty writes the mapped file straight to the socket
+            try (FileChannel channel = FileChannel.open(log.file.toPath(), StandardOpenOption.READ)) {
+                MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, range.start(), range.length());
+                jetty.sendContent(new DirectNIOBuffer(mapped, true));
+            }
+        } else {
+            transfer(log.file, range, Channels.newChannel(out));
+        }
+    }
+
+    /**
+     * Copies a range of a log to a stream
+     */
+    static void copy(Filesystem.LogData log, Range range, OutputStream out) throws IOException {
+        if (!log.isCompressed()) {
+            transfer(log.file, range, Channels.newChannel(out));
+            return;
+        }
+        try (InputStream in = log.open(range.start())) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long remaining = range.length();
+            int read;
+            while (remaining > 0 && (read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining))) > 0) {
+                out.write(buffer, 0, read);
+                remaining -= read;
+            }
+        }
+    }
+
+    /**
+     * Copies a range of a file to a channel, without going through the java heap where the platform allows it
+     */
+    static void transfer(File file, Range range, WritableByteChannel target) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long position = range.start();
+            long end = range.end() + 1;
+            while (position < end) {
+                long sent = channel.transferTo(position, end - position, target);
+                if (sent <= 0) {
+                    // the file got shorter
+                    break;
+                }
+                position += sent;
+            }
+        }
+    }
+}
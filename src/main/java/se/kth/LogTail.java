@@ -0,0 +1,51 @@
+package se.kth;
+
+/**
+ * Keeps only the last characters written to it, used to summarize output that may be too large to keep in memory
+ */
+public class LogTail {
+    final char[] buffer;
+    // total number of characters ever appended
+    long written;
+
+    /**
+     * @param capacity How many characters are kept at most
+     */
+    LogTail(int capacity) {
+        this.buffer = new char[Math.max(1, capacity)];
+    }
+
+    public synchronized void append(char[] chars, int offset, int length) {
+        // only the end of a too large write can be kept
+        if (length > buffer.length) {
+            offset += length - buffer.length;
+            written += length - buffer.length;
+            length = buffer.length;
+        }
+        int start = (int) (written % buffer.length);
+        int first = Math.min(length, buffer.length - start);
+        System.arraycopy(chars, offset, buffer, start, first);
+        System.arraycopy(chars, offset + first, buffer, 0, length - first);
+        written += length;
+    }
+
+    public void append(String text) {
+        append(text.toCharArray(), 0, text.length());
+    }
+
+    /**
+     * @return If characters have been dropped from the start
+     */
+    public synchronized boolean isTruncated() {
+        return written > buffer.length;
+    }
+
+    @Override
+    public synchronized String toString() {
+        if (written <= buffer.length) {
+            return new String(buffer, 0, (int) written);
+        }
+        int start = (int) (written % buffer.length);
+        return new String(buffer, start, buffer.length - start) + new String(buffer, 0, start);
+    }
+}
@@ -4,8 +4,12 @@ import org.eclipse.jetty.server.Server;
 
 public class Main {
 
-    // used to start the CI server in command line
+    // used to start the CI server in command line, or a build worker with --worker <coordinator url>
     public static void main(String[] args) throws Exception {
+        if (args.length >= 2 && args[0].equals("--worker")) {
+            new Worker(args[1]).run();
+            return;
+        }
         Server server = new Server(8080);
         server.setHandler(new ContinuousIntegrationServer());
         server.start();
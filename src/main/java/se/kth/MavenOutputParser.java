@@ -0,0 +1,69 @@
+package se.kth;
+
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Reads the output of a single mvn test run line by line, and keeps track of which goal is running
+ * and which goal failed, so a failure can be classified as a compilation or a test failure.
+ */
+public class MavenOutputParser implements Consumer<String> {
+    // [INFO] --- compiler:3.11.0:compile (default-compile) @ main ---
+    // [INFO] --- maven-surefire-plugin:2.12.4:test (default-test) @ main ---
+    static final Pattern goalStart = Pattern.compile("^\\[INFO] --- ([\\w.-]+):([\\w.-]+):([\\w.-]+) .*---\\s*$");
+    // [ERROR] Failed to execute goal org.apache.maven.plugins:maven-compiler-plugin:3.11.0:testCompile (default-testCompile) on project main: ...
+    static final Pattern goalFailed = Pattern.compile("^\\[ERROR] Failed to execute goal (?:([\\w.-]+):([\\w.-]+):([\\w.-]+):([\\w.-]+) )?.*");
+    // the goals that mvn compile does not run
+    static final Set<String> testGoals = Set.of("testResources", "testCompile", "test");
+
+    String currentGoal;
+    String failedGoal;
+    boolean failed;
+    boolean testsStarted;
+    // the System.nanoTime() when the test goal started
+    long testsStartedAt;
+
+    @Override
+    public void accept(String line) {
+        Matcher matcher = goalStart.matcher(line);
+        if (matcher.matches()) {
+            currentGoal = matcher.group(3);
+            if (currentGoal.equals("test") && !testsStarted) {
+                testsStarted = true;
+                testsStartedAt = System.nanoTime();
+            }
+            return;
+        }
+
+        matcher = goalFailed.matcher(line);
+        if (matcher.matches() && !failed) {
+            failed = true;
+            // no goal means maven failed before running any plugin, e.g. missing dependencies
+            failedGoal = matcher.group(4);
+        }
+    }
+
+    /**
+     * @return If the surefire test goal has started running
+     */
+    public boolean hasStartedTests() {
+        return testsStarted;
+    }
+
+    /**
+     * @param exitedNormally If mvn exited with code 0
+     * @return The status that mvn compile followed by mvn test would have given
+     */
+    public Filesystem.BuildStatus getStatus(boolean exitedNormally) {
+        if (exitedNormally) {
+            return Filesystem.BuildStatus.SUCCESS;
+        }
+        String goal = failedGoal != null ? failedGoal : (failed ? null : currentGoal);
+        if (goal != null && testGoals.contains(goal)) {
+            return Filesystem.BuildStatus.FAILED_TO_TEST;
+        }
+        return Filesystem.BuildStatus.FAILED_TO_COMPILE;
+    }
+}
@@ -0,0 +1,170 @@
+package se.kth;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms of the server, shown in the Prometheus text format at /metrics. Recording a
+ * value only increments LongAdders, so it does not allocate and workers do not contend on a shared counter.
+ */
+public class Metrics {
+    /**
+     * The timed parts of a build
+     */
+    public enum Stage {
+        CLONE, COMPILE, TEST, PERSIST, NOTIFY;
+
+        String label() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    // upper bounds of the histogram buckets in seconds
+    static final double[] STAGE_BUCKETS = {0.1, 0.5, 1, 5, 10, 30, 60, 120, 300, 600, 1800};
+    static final double[] WEBHOOK_BUCKETS = {0.001, 0.005, 0.01, 0.05, 0.1, 0.5, 1, 5};
+
+    static final Histogram[] stages = new Histogram[Stage.values().length];
+    static final Histogram webhooks = new Histogram(WEBHOOK_BUCKETS);
+    static final LongAdder logBytes = new LongAdder();
+    static final LongAdder githubErrors = new LongAdder();
+    // by priority class
+    static final Map<Integer, Histogram> queueWaits = new ConcurrentSkipListMap<>();
+
+    static {
+        for (int i = 0; i < stages.length; i++) {
+            stages[i] = new Histogram(STAGE_BUCKETS);
+        }
+    }
+
+    /**
+     * A histogram with fixed buckets
+     */
+    public static class Histogram {
+        // upper bounds in nanoseconds, the last bucket has no bound
+        final long[] bounds;
+        final double[] seconds;
+        final LongAdder[] buckets;
+        final LongAdder sum = new LongAdder();
+
+        /**
+         * @param seconds The upper bounds of the buckets in seconds, ascending
+         */
+        Histogram(double... seconds) {
+            this.seconds = seconds;
+            this.bounds = new long[seconds.length];
+            this.buckets = new LongAdder[seconds.length + 1];
+            for (int i = 0; i < seconds.length; i++) {
+                bounds[i] = (long) (seconds[i] * 1e9);
+            }
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        /**
+         * @param nanos A duration in nanoseconds
+         */
+        public void record(long nanos) {
+            int bucket = 0;
+            while (bucket < bounds.length && nanos > bounds[bucket]) {
+                bucket++;
+            }
+            buckets[bucket].increment();
+            sum.add(nanos);
+        }
+
+        public long count() {
+            long count = 0;
+            for (LongAdder bucket : buckets) {
+                count += bucket.sum();
+            }
+            return count;
+        }
+
+        /**
+         * Writes the cumulative buckets, the sum and the count
+         *
+         * @param name   The metric name, e.g. ci_webhook_duration_seconds
+         * @param labels Labels of every line, e.g. stage="clone", or empty
+         */
+        void write(Writer out, String name, String labels) throws IOException {
+            String separator = labels.isEmpty() ? "" : ",";
+            long cumulative = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                cumulative += buckets[i].sum();
+                String bound = i < seconds.length ? Double.toString(seconds[i]) : "+Inf";
+                out.write(name + "_bucket{" + labels + separator + "le=\"" + bound + "\"} " + cumulative + "\n");
+            }
+            String suffix = labels.isEmpty() ? "" : "{" + labels + "}";
+            out.write(name + "_sum" + suffix + " " + sum.sum() / 1e9 + "\n");
+            out.write(name + "_count" + suffix + " " + cumulative + "\n");
+        }
+    }
+
+    /**
+     * @return The histogram of a build stage
+     */
+    static Histogram stage(Stage stage) {
+        return stages[stage.ordinal()];
+    }
+
+    /**
+     * @return The histogram of how long jobs of a priority class waited for a worker
+     */
+    static Histogram queueWait(int priority) {
+        return queueWaits.computeIfAbsent(priority, _ -> new Histogram(STAGE_BUCKETS));
+    }
+
+    /**
+     * Records a stage that started at start
+     *
+     * @param start The System.nanoTime() when the stage started
+     * @return The duration in milliseconds
+     */
+    static long record(Stage stage, long start) {
+        return record(stage, start, System.nanoTime());
+    }
+
+    /**
+     * Records a stage that ran from start to end, both from System.nanoTime()
+     *
+     * @return The duration in milliseconds
+     */
+    static long record(Stage stage, long start, long end) {
+        long nanos = end - start;
+        stage(stage).record(nanos);
+        return nanos / 1_000_000;
+    }
+
+    /**
+     * Writes all metrics in the Prometheus text format
+     *
+     * @param queue The build queue, for its depth and the active workers
+     */
+    static void write(Writer out, BuildQueue queue) throws IOException {
+        out.write("# HELP ci_queue_depth Jobs waiting for a worker.\n# TYPE ci_queue_depth gauge\n");
+        out.write("ci_queue_depth " + queue.getQueueDepth() + "\n");
+        out.write("# HELP ci_active_workers Workers that are building.\n# TYPE ci_active_workers gauge\n");
+        out.write("ci_active_workers " + queue.getActiveWorkers() + "\n");
+
+        out.write("# HELP ci_queue_wait_seconds Time jobs waited for a worker, by priority class.\n# TYPE ci_queue_wait_seconds histogram\n");
+        for (Map.Entry<Integer, Histogram> entry : queueWaits.entrySet()) {
+            entry.getValue().write(out, "ci_queue_wait_seconds", "priority=\"" + entry.getKey() + "\"");
+        }
+        out.write("# HELP ci_stage_duration_seconds Duration of the stages of a build.\n# TYPE ci_stage_duration_seconds histogram\n");
+        for (Stage stage : Stage.values()) {
+            stage(stage).write(out, "ci_stage_duration_seconds", "stage=\"" + stage.label() + "\"");
+        }
+        out.write("# HELP ci_webhook_duration_seconds Time to answer a webhook.\n# TYPE ci_webhook_duration_seconds histogram\n");
+        webhooks.write(out, "ci_webhook_duration_seconds", "");
+
+        out.write("# HELP ci_log_bytes_total Bytes of build logs written.\n# TYPE ci_log_bytes_total counter\n");
+        out.write("ci_log_bytes_total " + logBytes.sum() + "\n");
+        out.write("# HELP ci_github_errors_total Failed requests to the GitHub api.\n# TYPE ci_github_errors_total counter\n");
+        out.write("ci_github_errors_total " + githubErrors.sum() + "\n");
+    }
+}
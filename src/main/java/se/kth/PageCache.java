@@ -0,0 +1,115 @@
+package se.kth;
+
+import javax.servlet.http.HttpServletRequest;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A small LRU cache of rendered history pages, and the HTTP cache validation of pages and logs. Every page is
+ * stored with the version of the build index it was rendered at, and is only used while that version is current.
+ */
+public class PageCache {
+    /**
+     * A rendered page
+     *
+     * @param version The version tag of the build index when it was rendered
+     */
+    record Page(String version, String html) {
+        long size() {
+            return 2L * html.length();
+        }
+    }
+
+    // how many bytes of pages are kept at most
+    final long budget;
+    final LinkedHashMap<String, Page> pages = new LinkedHashMap<>(16, 0.75f, true);
+    long size;
+
+    /**
+     * @param budget How many bytes of pages are kept at most
+     */
+    PageCache(long budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * @param key     The page, e.g. /owner/repo/main?page=1
+     * @param version The current version tag of the build index
+     * @return The page if it was rendered at this version, otherwise null
+     */
+    public synchronized String get(String key, String version) {
+        Page page = pages.get(key);
+        if (page == null) {
+            return null;
+        }
+        if (!page.version().equals(version)) {
+            pages.remove(key);
+            size -= page.size();
+            return null;
+        }
+        return page.html();
+    }
+
+    /**
+     * Stores a page, the least recently used pages are removed to stay within the budget
+     */
+    public synchronized void put(String key, String version, String html) {
+        Page page = new Page(version, html);
+        if (page.size() > budget / 4) {
+            // one page should not push out all others
+            return;
+        }
+        Page old = pages.put(key, page);
+        if (old != null) {
+            size -= old.size();
+        }
+        size += page.size();
+        Iterator<Map.Entry<String, Page>> eldest = pages.entrySet().iterator();
+        while (size > budget && eldest.hasNext()) {
+            size -= eldest.next().getValue().size();
+            eldest.remove();
+        }
+    }
+
+    /**
+     * @param ifNoneMatch The If-None-Match header, may be null
+     * @param etag        The current ETag
+     * @return If the header contains the ETag, compared weakly as is allowed for If-None-Match
+     */
+    static boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        String opaque = etag.startsWith("W/") ? etag.substring(2) : etag;
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.equals("*") || (tag.startsWith("W/") ? tag.substring(2) : tag).equals(opaque)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param etag         The current ETag
+     * @param lastModified When the content last changed in milliseconds, or -1 if unknown
+     * @return If the browser has the current content, from If-None-Match or else If-Modified-Since
+     */
+    static boolean isNotModified(HttpServletRequest request, String etag, long lastModified) {
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            return matches(ifNoneMatch, etag);
+        }
+        if (lastModified < 0) {
+            return false;
+        }
+        try {
+            long since = request.getDateHeader("If-Modified-Since");
+            // http dates only have seconds
+            return since >= 0 && lastModified / 1000 <= since / 1000;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,320 @@
+package se.kth;
+
+import org.json.JSONTokener;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serial;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The fields of a GitHub push webhook that a build needs. The payload is parsed while it is read, only the wanted
+ * fields become strings and everything else (e.g. the commits array, which can be megabytes) is skipped byte by
+ * byte without creating any objects.
+ * https://docs.github.com/en/webhooks/webhook-events-and-payloads#push
+ */
+public class PushEvent {
+    // GitHub caps payloads at 25 MB
+    static final long DEFAULT_MAX_SIZE = 25L * 1024 * 1024;
+    // the refs of branches, other refs such as tags are not built
+    static final String BRANCH_PREFIX = "refs/heads/";
+
+    String ref;
+    String commitId;
+    String tree;
+    String cloneUrl;
+    String ownerName;
+    String ownerLogin;
+    String repoName;
+    String defaultBranch;
+    boolean deleted;
+
+    /**
+     * Thrown when a payload is larger than allowed
+     */
+    public static class TooLargeException extends IOException {
+        @Serial
+        private static final long serialVersionUID = 1L;
+
+        TooLargeException(long maxSize) {
+            super("Payload is larger than " + maxSize + " bytes");
+        }
+    }
+
+    // the objects that are parsed, every other value is skipped
+    static final Set<String> objects = Set.of("repository", "repository.owner", "head_commit");
+    // where every wanted value is stored
+    static final Map<String, Field> fields = Map.of(
+            "ref", (event, value) -> event.ref = value,
+            "deleted", (event, value) -> event.deleted = "true".equals(value),
+            "head_commit.id", (event, value) -> event.commitId = value,
+            "head_commit.tree_id", (event, value) -> event.tree = value,
+            "repository.clone_url", (event, value) -> event.cloneUrl = value,
+            "repository.name", (event, value) -> event.repoName = value,
+            "repository.default_branch", (event, value) -> event.defaultBranch = value,
+            "repository.owner.name", (event, value) -> event.ownerName = value,
+            "repository.owner.login", (event, value) -> event.ownerLogin = value
+    );
+
+    interface Field {
+        void set(PushEvent event, String value);
+    }
+
+    /**
+     * @return The branch that was pushed, the ref without refs/heads/, e.g. feature/login
+     */
+    public String getBranchName() {
+        return ref.substring(BRANCH_PREFIX.length());
+    }
+
+    /**
+     * @return The owner of the repository, push payloads have a name while others only have a login
+     */
+    public String getOwnerName() {
+        return ownerName != null ? ownerName : ownerLogin;
+    }
+
+    /**
+     * @return If the push can be built, e.g. a deleted branch has no commit and a tag is not a branch
+     */
+    public boolean isBuildable() {
+        return !deleted && ref != null && ref.startsWith(BRANCH_PREFIX) && isBranchPath(getBranchName())
+                && commitId != null && cloneUrl != null && getOwnerName() != null && repoName != null;
+    }
+
+    /**
+     * @return If the branch name can be a directory of the history, git never allows empty, . or .. parts
+     */
+    static boolean isBranchPath(String branch) {
+        return Arrays.stream(branch.split("/", -1)).noneMatch(part -> part.isEmpty() || part.equals(".") || part.equals(".."));
+    }
+
+    /**
+     * Parses a push payload
+     *
+     * @param in      The payload
+     * @param maxSize How many bytes the payload may have
+     */
+    public static PushEvent parse(InputStream in, long maxSize) throws IOException {
+        PushEvent event = new PushEvent();
+        Parser parser = new Parser(in, maxSize);
+        if (parser.next() != '{') {
+            throw parser.error("Expected an object");
+        }
+        parser.parseObject(event, "");
+        return event;
+    }
+
+    /**
+     * A JSON pull parser over UTF-8 bytes, all structural characters are ASCII so no decoding is needed to skip
+     */
+    static class Parser {
+        final InputStream in;
+        final long maxSize;
+        final byte[] buffer = new byte[16 * 1024];
+        int position;
+        int limit;
+        long read;
+        // the raw bytes of the current string
+        byte[] string = new byte[256];
+        int stringLength;
+
+        Parser(InputStream in, long maxSize) {
+            this.in = in;
+            this.maxSize = maxSize;
+        }
+
+        IOException error(String message) {
+            return new IOException(message + " at byte " + (read - limit + position));
+        }
+
+        int read() throws IOException {
+            if (position == limit) {
+                limit = in.read(buffer, 0, buffer.length);
+                position = 0;
+                if (limit <= 0) {
+                    limit = 0;
+                    return -1;
+                }
+                read += limit;
+                if (read > maxSize) {
+                    throw new TooLargeException(maxSize);
+                }
+            }
+            return buffer[position++] & 0xff;
+        }
+
+        /**
+         * @return The next byte that is not whitespace
+         */
+        int next() throws IOException {
+            int c;
+            do {
+                c = read();
+            } while (c == ' ' || c == '\n' || c == '\r' || c == '\t');
+            if (c < 0) {
+                throw error("Unexpected end");
+            }
+            return c;
+        }
+
+        /**
+         * Parses the members of an object, after its {
+         */
+        void parseObject(PushEvent event, String path) throws IOException {
+            int c = next();
+            if (c == '}') {
+                return;
+            }
+            while (true) {
+                if (c != '"') {
+                    throw error("Expected a key");
+                }
+                String key = readString();
+                if (next() != ':') {
+                    throw error("Expected :");
+                }
+                String memberPath = path.isEmpty() ? key : path + "." + key;
+                c = next();
+                Field field = fields.get(memberPath);
+                if (field != null) {
+                    field.set(event, readScalar(c));
+                } else if (c == '{' && objects.contains(memberPath)) {
+                    parseObject(event, memberPath);
+                } else {
+                    skip(c);
+                }
+
+                c = next();
+                if (c == '}') {
+                    return;
+                }
+                if (c != ',') {
+                    throw error("Expected , or }");
+                }
+                c = next();
+            }
+        }
+
+        /**
+         * @param c The first byte of the value
+         * @return A string, or the text of a number or literal, or null for null, objects and arrays
+         */
+        String readScalar(int c) throws IOException {
+            if (c == '"') {
+                return readString();
+            }
+            if (c == '{' || c == '[') {
+                skip(c);
+                return null;
+            }
+            StringBuilder literal = new StringBuilder().append((char) c);
+            while (position < limit || fill()) {
+                int next = buffer[position] & 0xff;
+                if (next == ',' || next == '}' || next == ']' || next == ' ' || next == '\n' || next == '\r' || next == '\t') {
+                    break;
+                }
+                literal.append((char) next);
+                position++;
+            }
+            String text = literal.toString();
+            return text.equals("null") ? null : text;
+        }
+
+        /**
+         * Reads more bytes without consuming any
+         *
+         * @return If there are more bytes
+         */
+        boolean fill() throws IOException {
+            if (read() < 0) {
+                return false;
+            }
+            position--;
+            return true;
+        }
+
+        /**
+         * Reads a string, after its opening quote
+         */
+        String readString() throws IOException {
+            stringLength = 0;
+            boolean escaped = false;
+            while (true) {
+                int c = read();
+                if (c < 0) {
+                    throw error("Unterminated string");
+                }
+                if (c == '"' && !escaped) {
+                    break;
+                }
+                escaped = c == '\\' && !escaped;
+                if (stringLength == string.length) {
+                    string = Arrays.copyOf(string, string.length * 2);
+                }
+                string[stringLength++] = (byte) c;
+            }
+            String raw = new String(string, 0, stringLength, StandardCharsets.UTF_8);
+            if (raw.indexOf('\\') < 0) {
+                return raw;
+            }
+            // escapes are rare in the wanted fields, so org.json handles them
+            return (String) new JSONTokener("\"" + raw + "\"").nextValue();
+        }
+
+        /**
+         * Skips a value
+         *
+         * @param c The first byte of the value
+         */
+        void skip(int c) throws IOException {
+            if (c != '{' && c != '[') {
+                if (c == '"') {
+                    skipString();
+                } else {
+                    readScalar(c);
+                }
+                return;
+            }
+            int depth = 1;
+            while (depth > 0) {
+                if (position == limit && !fill()) {
+                    throw error("Unexpected end");
+                }
+                switch (buffer[position++]) {
+                    case '{', '[' -> depth++;
+                    case '}', ']' -> depth--;
+                    case '"' -> skipString();
+                    default -> {
+                    }
+                }
+            }
+        }
+
+        /**
+         * Skips a string, after its opening quote
+         */
+        void skipString() throws IOException {
+            while (true) {
+                // scans the buffer directly, this is where a large payload spends its time
+                while (position < limit) {
+                    byte b = buffer[position++];
+                    if (b == '"') {
+                        return;
+                    }
+                    if (b == '\\') {
+                        if (read() < 0) {
+                            throw error("Unterminated string");
+                        }
+                    }
+                }
+                if (!fill()) {
+                    throw error("Unterminated string");
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,271 @@
+package se.kth;
+
+import org.apache.commons.io.FileUtils;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps a local bare mirror of every repository that has been built, so a build only has to
+ * fetch what is new instead of cloning everything again. Builds are checked out from the mirror.
+ */
+public class RepositoryCache {
+    /**
+     * How a build directory is checked out from the mirror
+     */
+    public static class CheckoutOptions {
+        // 0 is the full history
+        int depth;
+        boolean singleBranch;
+        // --filter=blob:none, only fetch the file content that is checked out
+        boolean partial;
+
+        CheckoutOptions() {
+        }
+
+        CheckoutOptions(JSONObject json) {
+            this.depth = json.optInt("depth", 0);
+            this.singleBranch = json.optBoolean("singleBranch", false);
+            this.partial = json.optBoolean("partial", false);
+        }
+
+        /**
+         * @return If the checkout can share the objects of the mirror instead of copying them
+         */
+        boolean isShared() {
+            return depth <= 0 && !partial;
+        }
+    }
+
+    final File root;
+    final Map<String, ReentrantLock> locks = new ConcurrentHashMap<>();
+    final Map<String, Long> lastFetch = new ConcurrentHashMap<>();
+    final Map<String, CheckoutOptions> options = new ConcurrentHashMap<>();
+    CheckoutOptions defaultOptions = new CheckoutOptions();
+
+    /**
+     * @param rootDirectory Where the mirrors are stored, e.g. .servercache
+     */
+    RepositoryCache(String rootDirectory) {
+        this.root = new File(rootDirectory).getAbsoluteFile();
+    }
+
+    /**
+     * Reads the checkout options from a json file of the form
+     * {"*": {"depth": 1}, "https://github.com/owner/repo.git": {"partial": true, "singleBranch": true}}
+     * where "*" is used for all repositories that are not listed
+     *
+     * @param file The json file, nothing happens if it does not exist
+     */
+    void loadOptions(File file) throws IOException {
+        if (!file.isFile()) {
+            return;
+        }
+        JSONObject json = new JSONObject(Filesystem.readFileToEnd(file));
+        for (String url : json.keySet()) {
+            CheckoutOptions value = new CheckoutOptions(json.getJSONObject(url));
+            if (url.equals("*")) {
+                defaultOptions = value;
+            } else {
+                options.put(url, value);
+            }
+        }
+    }
+
+    /**
+     * @param url The clone url of the repository
+     * @return The options used when checking out the repository
+     */
+    CheckoutOptions getOptions(String url) {
+        return options.getOrDefault(url, defaultOptions);
+    }
+
+    /**
+     * @param url The clone url of the repository
+     * @return The directory of the bare mirror
+     */
+    File getMirror(String url) {
+        String name = url.replaceFirst("^[a-zA-Z]+://", "").replaceAll("[^a-zA-Z0-9._-]", "_");
+        if (name.length() > 64) {
+            name = name.substring(name.length() - 64);
+        }
+        return new File(root, name + "-" + Integer.toHexString(url.hashCode()) + ".git");
+    }
+
+    /**
+     * Creates or updates the mirror of a repository. Jobs for the same repository wait for each other,
+     * and if a fetch was started after this call was made then the mirror is already new enough.
+     *
+     * @param log The logger
+     * @param url The clone url of the repository
+     * @return The directory of the bare mirror
+     */
+    public File update(Writer log, String url) throws InterruptedException, IOException, ProcessException {
+        long requested = System.nanoTime();
+        File mirror = getMirror(url);
+        ReentrantLock lock = locks.computeIfAbsent(url, _ -> new ReentrantLock());
+        lock.lockInterruptibly();
+        try {
+            Long fetched = lastFetch.get(url);
+            if (fetched != null && fetched - requested > 0) {
+                log.append("\n==== Repository mirror is up to date ====\n");
+                return mirror;
+            }
+            lastFetch.put(url, System.nanoTime());
+
+            if (new File(mirror, "HEAD").isFile()) {
+                log.append("\n==== Fetching repository mirror ====\n");
+                ContinuousIntegration.startProcess(log, null, "in git fetch due to: ", mirror.getPath(), "git", "fetch", "--prune", "origin");
+            } else {
+                log.append("\n==== Creating repository mirror ====\n");
+                FileUtils.deleteDirectory(mirror);
+                Boolean _ = root.mkdirs();
+                ContinuousIntegration.startProcess(log, null, "in git clone due to: ", null, "git", "clone", "--mirror", url, mirror.getPath());
+                // needed for partial checkouts from the mirror
+                ContinuousIntegration.startProcess("in git config due to: ", mirror.getPath(), "git", "config", "uploadpack.allowFilter", "true");
+            }
+            return mirror;
+        } catch (ProcessException | IOException e) {
+            // the next job has to fetch again
+            lastFetch.remove(url);
+            throw e;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Checks out a branch of a repository from its (updated) mirror
+     *
+     * @param log       The logger
+     * @param url       The clone url of the repository
+     * @param branch    The branch to check out, e.g. main
+     * @param commitId  The commit to check out, or null for the head of the branch
+     * @param directory The output folder directory, it must be empty or not exist
+     */
+    public void checkout(
+            Writer log,
+            String url,
+            String branch,
+            String commitId,
+            String directory
+    ) throws InterruptedException, IOException, ProcessException {
+        File mirror = update(log, url);
+        CheckoutOptions checkoutOptions = getOptions(url);
+
+        List<String> cmd = new ArrayList<>(List.of("git", "clone", "--branch", branch));
+        if (checkoutOptions.isShared()) {
+            // uses the objects of the mirror directly, so nothing is copied
+            cmd.add("--shared");
+            cmd.add(mirror.getPath());
+        } else {
+            if (checkoutOptions.depth > 0) {
+                cmd.add("--depth");
+                cmd.add(Integer.toString(checkoutOptions.depth));
+            }
+            if (checkoutOptions.partial) {
+                cmd.add("--filter=blob:none");
+            }
+            // depth and filter are ignored for plain local paths
+            cmd.add(mirror.toPath().toUri().toString());
+        }
+        if (checkoutOptions.singleBranch) {
+            cmd.add("--single-branch");
+        }
+        cmd.add(directory);
+
+        log.append("\n==== Checking out repository ====\n");
+        ContinuousIntegration.startProcess(log, null, "in git clone due to: ", null, cmd.toArray(new String[0]));
+
+        if (commitId != null) {
+            try {
+                checkoutCommit(directory, commitId);
+            } catch (ProcessException e) {
+                // e.g. not part of a shallow checkout, or no longer on a branch after a force push
+                log.append("Could not check out ").append(commitId).append(", fetching it\n");
+                fetchCommit(log, url, mirror, checkoutOptions, commitId, directory);
+                // building the head of the branch instead would report its status for this commit
+                checkoutCommit(directory, commitId);
+            }
+        }
+
+        // done after the checkout, so missing objects of a partial checkout come from the mirror
+        ContinuousIntegration.startProcess("in git remote due to: ", directory, "git", "remote", "set-url", "origin", url);
+    }
+
+    static void checkoutCommit(String directory, String commitId) throws InterruptedException, IOException, ProcessException {
+        ContinuousIntegration.startProcess("in git checkout due to: ", directory, "git", "-c", "advice.detachedHead=false", "checkout", "-q", commitId);
+    }
+
+    /**
+     * Fetches a single commit into a checkout of the mirror, and into the mirror first if it does not have it
+     *
+     * @param directory The checkout, its origin is still the mirror
+     */
+    void fetchCommit(Writer log, String url, File mirror, CheckoutOptions checkoutOptions, String commitId, String directory) throws InterruptedException, IOException, ProcessException {
+        if (readTree(mirror, commitId) == null) {
+            ReentrantLock lock = locks.computeIfAbsent(url, _ -> new ReentrantLock());
+            lock.lockInterruptibly();
+            try {
+                ContinuousIntegration.startProcess(log, null, "in git fetch due to: ", mirror.getPath(), "git", "fetch", "-q", "origin", commitId);
+            } finally {
+                lock.unlock();
+            }
+        }
+        List<String> cmd = new ArrayList<>(List.of("git", "fetch", "-q"));
+        if (checkoutOptions.depth > 0) {
+            cmd.add("--depth");
+            cmd.add(Integer.toString(checkoutOptions.depth));
+        }
+        if (checkoutOptions.partial) {
+            cmd.add("--filter=blob:none");
+        }
+        cmd.add("origin");
+        cmd.add(commitId);
+        ContinuousIntegration.startProcess(log, null, "in git fetch due to: ", directory, cmd.toArray(new String[0]));
+    }
+
+    /**
+     * @param log      The logger
+     * @param url      The clone url of the repository
+     * @param commitId The commit
+     * @return The git tree of the commit, or null if the commit is unknown. The mirror is only fetched if it does
+     * not have the commit yet, e.g. a new branch of an existing commit needs no fetch.
+     */
+    public String getTree(Writer log, String url, String commitId) throws InterruptedException, IOException, ProcessException {
+        File mirror = getMirror(url);
+        if (new File(mirror, "HEAD").isFile()) {
+            String tree = readTree(mirror, commitId);
+            if (tree != null) {
+                return tree;
+            }
+        }
+        return readTree(update(log, url), commitId);
+    }
+
+    static String readTree(File mirror, String commitId) throws InterruptedException, IOException {
+        try {
+            return ContinuousIntegration.startProcess("in git rev-parse due to: ", mirror.getPath(), "git", "rev-parse", "--verify", "-q", commitId + "^{tree}").trim();
+        } catch (ProcessException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param repository A repository that has both commits, e.g. a mirror or a full checkout
+     * @param base       The older commit
+     * @param commitId   The newer commit
+     * @return The paths of the files that differ between the commits, with / as separator
+     */
+    static List<String> getChangedFiles(File repository, String base, String commitId) throws InterruptedException, IOException, ProcessException {
+        String files = ContinuousIntegration.startProcess("in git diff due to: ", repository.getPath(), "git", "diff", "--name-only", "--no-renames", base, commitId);
+        return files.lines().filter(line -> !line.isBlank()).toList();
+    }
+}
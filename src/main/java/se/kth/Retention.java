@@ -0,0 +1,247 @@
+package se.kth;
+
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Removes old builds from the build history in the background. Every branch keeps at most its last builds and
+ * builds younger than a maximum age, as set for the branch, its repository or all repositories, and the logs of
+ * all builds together are kept within a byte budget by removing the least recently viewed builds first. The latest
+ * build of every branch is always kept.
+ * <p>
+ * A removed build is first taken out of the index and the store, so it is gone from every view at once, and its log
+ * is deleted afterwards if no other build reuses it.
+ */
+public class Retention {
+    static final long DAY = 24L * 60 * 60 * 1000;
+
+    /**
+     * How many builds of a branch are kept, 0 means no limit
+     */
+    public static class Policy {
+        int builds;
+        long maxAge;
+
+        Policy(int builds, long maxAge) {
+            this.builds = builds;
+            this.maxAge = maxAge;
+        }
+
+        /**
+         * @param json     e.g. {"builds": 100, "days": 30}
+         * @param fallback Used for what the json does not set
+         */
+        Policy(JSONObject json, Policy fallback) {
+            this.builds = json.optInt("builds", fallback.builds);
+            this.maxAge = json.has("days") ? (long) (json.getDouble("days") * DAY) : fallback.maxAge;
+        }
+
+        boolean isLimited() {
+            return builds > 0 || maxAge > 0;
+        }
+    }
+
+    final Filesystem filesystem;
+    Policy defaultPolicy = new Policy(Config.getInt("CI_RETENTION_BUILDS", 0), Config.getLong("CI_RETENTION_DAYS", 0) * DAY);
+    // by owner/repo or owner/repo/branch
+    final Map<String, Policy> policies = new HashMap<>();
+    // the most bytes all logs may take, 0 means no limit
+    long maxBytes = Config.getLong("CI_RETENTION_BYTES", 0);
+    // how long to wait between sweeps
+    long intervalMillis = Config.getLong("CI_RETENTION_INTERVAL", 3600) * 1000;
+    // the pause after every removed build and deleted log, so a sweep never competes with the builds for the disk
+    long pauseMillis = 10;
+
+    /**
+     * @param filesystem The build history
+     */
+    Retention(Filesystem filesystem) {
+        this.filesystem = filesystem;
+    }
+
+    /**
+     * Reads the policies from a json file of the form
+     * {"*": {"builds": 200, "days": 90}, "owner/repo": {"builds": 50}, "owner/repo/branch": {"days": 7}}
+     * where a branch uses the most specific entry, and what an entry does not set comes from "*"
+     *
+     * @param file The json file, nothing happens if it does not exist
+     */
+    void loadPolicies(File file) throws IOException {
+        if (!file.isFile()) {
+            return;
+        }
+        JSONObject json = new JSONObject(Filesystem.readFileToEnd(file));
+        if (json.has("*")) {
+            defaultPolicy = new Policy(json.getJSONObject("*"), defaultPolicy);
+        }
+        for (String path : json.keySet()) {
+            if (!path.equals("*")) {
+                policies.put(BuildIndex.normalize(path), new Policy(json.getJSONObject(path), defaultPolicy));
+            }
+        }
+    }
+
+    /**
+     * @param path The branch, e.g. owner/repo/branch
+     * @return The policy of the branch, its repository or the default
+     */
+    Policy getPolicy(String path) {
+        Policy policy = policies.get(path);
+        // the branch itself may have slashes, e.g. owner/repo/feature/login
+        int split = path.indexOf('/', path.indexOf('/') + 1);
+        if (policy == null && split >= 0) {
+            policy = policies.get(path.substring(0, split));
+        }
+        return policy != null ? policy : defaultPolicy;
+    }
+
+    /**
+     * @return If anything is ever removed
+     */
+    boolean isEnabled() {
+        return maxBytes > 0 || defaultPolicy.isLimited() || policies.values().stream().anyMatch(Policy::isLimited);
+    }
+
+    /**
+     * Starts sweeping in the background, on a thread with the lowest priority
+     */
+    void start() {
+        Thread.ofPlatform().name("retention").daemon().priority(Thread.MIN_PRIORITY).start(() -> {
+            while (true) {
+                try {
+                    int removed = sweep(System.currentTimeMillis());
+                    if (removed > 0) {
+                        System.out.println("Retention removed " + removed + " builds");
+                    }
+                    Thread.sleep(intervalMillis);
+                } catch (InterruptedException e) {
+                    return;
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+    }
+
+    /**
+     * Removes the builds that the policies and the byte budget do not keep, and deletes their logs
+     *
+     * @param now The current time in milliseconds
+     * @return How many builds were removed
+     */
+    int sweep(long now) throws IOException, InterruptedException {
+        List<Filesystem.BuildData> removed = new ArrayList<>();
+        // the builds that may be removed to stay within the budget
+        List<Filesystem.BuildData> candidates = new ArrayList<>();
+        for (BuildIndex.Node node : filesystem.index.nodes.values()) {
+            List<Filesystem.BuildData> builds = node.getBuilds();
+            Policy policy = getPolicy(node.path);
+            // the latest build is always kept
+            for (int i = 0; i < builds.size() - 1; i++) {
+                boolean tooMany = policy.builds > 0 && i < builds.size() - policy.builds;
+                boolean tooOld = policy.maxAge > 0 && now - builds.get(i).time > policy.maxAge;
+                (tooMany || tooOld ? removed : candidates).add(builds.get(i));
+            }
+        }
+        if (maxBytes > 0) {
+            removed.addAll(overBudget(removed, candidates));
+        }
+
+        int count = 0;
+        for (Filesystem.BuildData build : removed) {
+            if (filesystem.remove(build)) {
+                count++;
+                Thread.sleep(pauseMillis);
+            }
+        }
+        if (count == 0) {
+            return 0;
+        }
+
+        // marked before the builds that are left are read, so a build that reuses a log after that takes the mark off
+        Set<Path> marked = new HashSet<>();
+        for (Filesystem.BuildData build : removed) {
+            marked.add(Filesystem.key(build.getLogFile()));
+        }
+        synchronized (filesystem.deletingLogs) {
+            filesystem.deletingLogs.addAll(marked);
+        }
+        try {
+            // a log is only deleted when no build that is left uses it
+            Set<Path> used = new HashSet<>();
+            for (Filesystem.BuildData build : filesystem.store.builds.values()) {
+                used.add(Filesystem.key(build.getLogFile()));
+            }
+            for (Filesystem.BuildData build : removed) {
+                File log = build.getLogFile();
+                Path key = Filesystem.key(log);
+                if (used.contains(key)) {
+                    continue;
+                }
+                long deleted;
+                synchronized (filesystem.deletingLogs) {
+                    // also unmarked when it was deleted for an earlier build
+                    if (!filesystem.deletingLogs.remove(key)) {
+                        continue;
+                    }
+                    deleted = filesystem.deleteLog(log);
+                }
+                if (deleted > 0) {
+                    Thread.sleep(pauseMillis);
+                }
+            }
+        } finally {
+            synchronized (filesystem.deletingLogs) {
+                filesystem.deletingLogs.removeAll(marked);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Picks the least recently viewed builds whose logs have to be deleted for all logs to fit in the byte budget
+     *
+     * @param removed    The builds that are removed anyway
+     * @param candidates The builds that may be removed
+     * @return The builds to remove as well
+     */
+    List<Filesystem.BuildData> overBudget(List<Filesystem.BuildData> removed, List<Filesystem.BuildData> candidates) {
+        Set<Filesystem.BuildData> gone = Collections.newSetFromMap(new IdentityHashMap<>());
+        gone.addAll(removed);
+        // how many builds use every log, several builds share a log when a result is reused
+        Map<Path, Integer> users = new HashMap<>();
+        Map<Path, Long> sizes = new HashMap<>();
+        long total = 0;
+        for (Filesystem.BuildData build : filesystem.store.builds.values()) {
+            if (gone.contains(build)) {
+                continue;
+            }
+            File log = build.getLogFile();
+            Path key = Filesystem.key(log);
+            if (users.merge(key, 1, Integer::sum) == 1) {
+                long size = Filesystem.getStoredSize(log);
+                sizes.put(key, size);
+                total += size;
+            }
+        }
+
+        List<Filesystem.BuildData> picked = new ArrayList<>();
+        List<Filesystem.BuildData> byAccess = new ArrayList<>(candidates);
+        byAccess.sort(Comparator.comparingLong(Filesystem.BuildData::getLastAccess));
+        for (Filesystem.BuildData build : byAccess) {
+            if (total <= maxBytes) {
+                break;
+            }
+            picked.add(build);
+            Path key = Filesystem.key(build.getLogFile());
+            if (users.merge(key, -1, Integer::sum) == 0) {
+                total -= sizes.get(key);
+            }
+        }
+        return picked;
+    }
+}
@@ -0,0 +1,323 @@
+package se.kth;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.function.IntSupplier;
+
+/**
+ * Decides which queued job runs next. Jobs are grouped by repository, and the repositories share the workers by
+ * weighted fair queuing: every repository has a virtual time that grows by 1/weight for every job it starts, and the
+ * repository that is furthest behind goes next, so a repository with many pushes only slows down itself. A
+ * repository may be limited to a number of jobs running at once.
+ * <p>
+ * Every job has a priority class, by default the default branch is above all other branches. A higher class always
+ * goes first, but a waiting job rises one class for every aging interval it waited, so every job runs in the end.
+ */
+public class Scheduler {
+    // how many waits of every class are kept for the percentiles
+    static final int WAIT_HISTORY = 200;
+
+    /**
+     * How a repository is scheduled
+     */
+    public static class Policy {
+        double weight;
+        // 0 means no limit
+        int maxRunning;
+        // priority classes by branch name, a name ending in * matches every branch starting with it
+        final Map<String, Integer> branches = new LinkedHashMap<>();
+
+        Policy(double weight, int maxRunning) {
+            this.weight = weight;
+            this.maxRunning = maxRunning;
+        }
+
+        /**
+         * @param json     e.g. {"weight": 2, "maxRunning": 4, "branches": {"release/*": 2}}
+         * @param fallback Used for what the json does not set
+         */
+        Policy(JSONObject json, Policy fallback) {
+            this.weight = json.optDouble("weight", fallback.weight);
+            this.maxRunning = json.optInt("maxRunning", fallback.maxRunning);
+            this.branches.putAll(fallback.branches);
+            JSONObject branches = json.optJSONObject("branches");
+            if (branches != null) {
+                for (String branch : branches.keySet()) {
+                    this.branches.put(branch, branches.getInt(branch));
+                }
+            }
+            if (!(weight > 0)) {
+                throw new IllegalArgumentException("The weight must be positive: " + json);
+            }
+        }
+
+        /**
+         * @return The priority class set for the branch, or null
+         */
+        Integer getPriority(String branch) {
+            Integer priority = branches.get(branch);
+            if (priority != null) {
+                return priority;
+            }
+            for (Map.Entry<String, Integer> entry : branches.entrySet()) {
+                String pattern = entry.getKey();
+                if (pattern.endsWith("*") && branch.startsWith(pattern.substring(0, pattern.length() - 1))) {
+                    return entry.getValue();
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * The queued and running jobs of a repository
+     */
+    static class Flow {
+        final String key;
+        final Policy policy;
+        // in the order they were queued
+        final List<BuildQueue.BuildJob> queued = new ArrayList<>();
+        int running;
+        // the virtual time of the next job it starts
+        double pass;
+
+        Flow(String key, Policy policy, double pass) {
+            this.key = key;
+            this.policy = policy;
+            this.pass = pass;
+        }
+
+        boolean canStart() {
+            return !queued.isEmpty() && (policy.maxRunning <= 0 || running < policy.maxRunning);
+        }
+    }
+
+    Policy defaultPolicy = new Policy(1, Config.getInt("CI_REPO_MAX_RUNNING", 0));
+    // by owner/repo
+    final Map<String, Policy> policies = new HashMap<>();
+    // the class of the default branch, other branches are in class 0
+    int defaultBranchPriority = Config.getInt("CI_DEFAULT_BRANCH_PRIORITY", 1);
+    // a waiting job rises one class after this long, 0 turns aging off
+    long agingMillis = Config.getLong("CI_PRIORITY_AGING", 300) * 1000;
+    // how many jobs may run at once in total, e.g. the slots of the workers
+    IntSupplier limit = () -> Integer.MAX_VALUE;
+
+    // the repositories with queued or running jobs, by owner/repo
+    final Map<String, Flow> flows = new HashMap<>();
+    // the virtual time of the last started job
+    double virtualTime;
+    int running;
+    int size;
+    // the latest waits in milliseconds, by priority class
+    final Map<Integer, ArrayDeque<Long>> waits = new TreeMap<>();
+
+    /**
+     * Reads the policies from a json file of the form
+     * {"*": {"weight": 1, "maxRunning": 0, "branches": {"release/*": 2}}, "owner/repo": {"weight": 3, "maxRunning": 2}}
+     * where what a repository does not set comes from "*"
+     *
+     * @param file The json file, nothing happens if it does not exist
+     */
+    void loadPolicies(File file) throws IOException {
+        if (!file.isFile()) {
+            return;
+        }
+        JSONObject json = new JSONObject(Filesystem.readFileToEnd(file));
+        if (json.has("*")) {
+            defaultPolicy = new Policy(json.getJSONObject("*"), defaultPolicy);
+        }
+        for (String path : json.keySet()) {
+            if (!path.equals("*")) {
+                policies.put(BuildIndex.normalize(path), new Policy(json.getJSONObject(path), defaultPolicy));
+            }
+        }
+    }
+
+    /**
+     * @param key owner/repo
+     */
+    Policy getPolicy(String key) {
+        return policies.getOrDefault(key, defaultPolicy);
+    }
+
+    static String getRepoKey(BuildQueue.BuildJob job) {
+        return job.ownerName + "/" + job.repoName;
+    }
+
+    /**
+     * @param defaultBranch If the job builds the default branch of its repository
+     * @return The priority class of the job
+     */
+    int getPriority(BuildQueue.BuildJob job, boolean defaultBranch) {
+        Integer priority = getPolicy(getRepoKey(job)).getPriority(job.branchName);
+        if (priority != null) {
+            return priority;
+        }
+        return defaultBranch ? defaultBranchPriority : 0;
+    }
+
+    /**
+     * @return The class of the job after aging
+     */
+    long getEffectivePriority(BuildQueue.BuildJob job, long now) {
+        return job.priority + (agingMillis > 0 ? Math.max(0, now - job.queuedTime) / agingMillis : 0);
+    }
+
+    synchronized void add(BuildQueue.BuildJob job) {
+        String key = getRepoKey(job);
+        // a repository that was idle starts at the current virtual time, it has no credit from before
+        Flow flow = flows.computeIfAbsent(key, _ -> new Flow(key, getPolicy(key), virtualTime));
+        if (flow.queued.isEmpty()) {
+            flow.pass = Math.max(flow.pass, virtualTime);
+        }
+        flow.queued.add(job);
+        size++;
+        notifyAll();
+    }
+
+    /**
+     * @return If the job was queued, it is not started any more
+     */
+    synchronized boolean remove(BuildQueue.BuildJob job) {
+        Flow flow = flows.get(getRepoKey(job));
+        if (flow == null || !flow.queued.remove(job)) {
+            return false;
+        }
+        size--;
+        forget(flow);
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Waits for the next job that may start, and counts it as running until done is called
+     */
+    synchronized BuildQueue.BuildJob take() throws InterruptedException {
+        while (true) {
+            BuildQueue.BuildJob job = next(System.currentTimeMillis());
+            if (job != null) {
+                return job;
+            }
+            // the limit can change without a notification, e.g. when a worker registers
+            wait(1000);
+        }
+    }
+
+    /**
+     * Starts the job that goes next
+     *
+     * @return The job, or null if none may start now
+     */
+    synchronized BuildQueue.BuildJob next(long now) {
+        if (running >= limit.getAsInt()) {
+            return null;
+        }
+        Flow bestFlow = null;
+        BuildQueue.BuildJob best = null;
+        long bestPriority = Long.MIN_VALUE;
+        for (Flow flow : flows.values()) {
+            if (!flow.canStart()) {
+                continue;
+            }
+            // the first job of the highest class of the repository
+            BuildQueue.BuildJob job = null;
+            long priority = Long.MIN_VALUE;
+            for (BuildQueue.BuildJob queued : flow.queued) {
+                long effective = getEffectivePriority(queued, now);
+                if (effective > priority) {
+                    job = queued;
+                    priority = effective;
+                }
+            }
+            boolean better = bestFlow == null || priority > bestPriority
+                    || priority == bestPriority && (flow.pass < bestFlow.pass || flow.pass == bestFlow.pass && job.id < best.id);
+            if (better) {
+                bestFlow = flow;
+                best = job;
+                bestPriority = priority;
+            }
+        }
+        if (best == null) {
+            return null;
+        }
+        bestFlow.queued.remove(best);
+        bestFlow.running++;
+        virtualTime = Math.max(virtualTime, bestFlow.pass);
+        bestFlow.pass += 1 / bestFlow.policy.weight;
+        running++;
+        size--;
+
+        long wait = Math.max(0, now - best.queuedTime);
+        Metrics.queueWait(best.priority).record(wait * 1_000_000);
+        ArrayDeque<Long> latest = waits.computeIfAbsent(best.priority, _ -> new ArrayDeque<>());
+        latest.addLast(wait);
+        if (latest.size() > WAIT_HISTORY) {
+            latest.removeFirst();
+        }
+        return best;
+    }
+
+    /**
+     * Called when a job that was taken finished
+     */
+    synchronized void done(BuildQueue.BuildJob job) {
+        Flow flow = flows.get(getRepoKey(job));
+        if (flow != null) {
+            flow.running--;
+            forget(flow);
+        }
+        running--;
+        notifyAll();
+    }
+
+    /**
+     * Removes a repository that has nothing to do, unless it is ahead of the others and has to wait for them
+     */
+    void forget(Flow flow) {
+        if (flow.queued.isEmpty() && flow.running == 0 && flow.pass <= virtualTime) {
+            flows.remove(flow.key);
+        }
+    }
+
+    /**
+     * @return How many jobs are queued
+     */
+    synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @return The wait times of the latest started jobs and the queued jobs of every repository
+     */
+    synchronized JSONObject toJson() {
+        long now = System.currentTimeMillis();
+        JSONObject classes = new JSONObject();
+        for (Map.Entry<Integer, ArrayDeque<Long>> entry : waits.entrySet()) {
+            long[] sorted = entry.getValue().stream().mapToLong(Long::longValue).sorted().toArray();
+            classes.put(Integer.toString(entry.getKey()), new JSONObject()
+                    .put("count", sorted.length)
+                    .put("p50", sorted[(sorted.length - 1) / 2])
+                    .put("p95", sorted[(int) Math.ceil(sorted.length * 0.95) - 1])
+                    .put("max", sorted[sorted.length - 1]));
+        }
+        JSONArray repositories = new JSONArray();
+        for (Flow flow : flows.values()) {
+            if (flow.queued.isEmpty() && flow.running == 0) {
+                continue;
+            }
+            long oldest = flow.queued.stream().mapToLong(job -> job.queuedTime).min().orElse(now);
+            repositories.put(new JSONObject()
+                    .put("repository", flow.key)
+                    .put("weight", flow.policy.weight)
+                    .put("maxRunning", flow.policy.maxRunning)
+                    .put("running", flow.running)
+                    .put("queued", flow.queued.size())
+                    .put("longestWait", now - oldest));
+        }
+        return new JSONObject().put("waits", classes).put("repositories", repositories);
+    }
+}
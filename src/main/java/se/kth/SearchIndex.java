@@ -0,0 +1,634 @@
+package se.kth;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Full-text search over the build logs. An inverted index maps every token of the logs to the logs that contain it,
+ * so a query only reads the logs that have all its tokens, newest first, to check its phrases and to find the
+ * matching lines. A log is indexed in the background when its build is saved.
+ * <p>
+ * The index is stored in .search as an append-only file of records in the format of the BuildStore, one record with
+ * the distinct tokens of every log and a tombstone for every deleted log, and read back into memory at startup.
+ * Logs that are not in it yet, e.g. from before the index existed, are indexed at startup.
+ */
+public class SearchIndex {
+    static final String DIRECTORY = ".search";
+    static final String FILE_NAME = "index.dat";
+    // longer tokens are cut, e.g. hashes and paths
+    static final int MAX_TOKEN = 64;
+    // how many distinct tokens of a single log are indexed
+    static final int MAX_TOKENS = 100_000;
+    static final int MAX_RECORD = 16 * 1024 * 1024;
+    // compaction only runs when there are at least this many replaced records
+    static final int COMPACT_MIN_GARBAGE = 1000;
+    // the lines shown for every build, and how much of a line
+    static final int SNIPPETS = 3;
+    static final int SNIPPET_LENGTH = 300;
+    // a query reads at most this many logs
+    static final int MAX_SCANNED = 500;
+    static final Pattern QUERY_PART = Pattern.compile("\"([^\"]*)\"?|(\\S+)");
+
+    /**
+     * A line of a log that matches a query
+     *
+     * @param line The line number, from 1
+     */
+    record Snippet(int line, String text) {
+    }
+
+    /**
+     * A build whose log matches a query
+     *
+     * @param log The log, e.g. owner/repo/branch/commit.log
+     */
+    record Result(Filesystem.BuildData build, String log, List<Snippet> snippets) {
+    }
+
+    /**
+     * @param truncated If there may be more matches in logs that were not read
+     */
+    record Results(List<Result> builds, boolean truncated) {
+    }
+
+    /**
+     * A parsed query, e.g. NullPointerException "connection refused" repo:owner/repo status:failed_to_test
+     */
+    static class Query {
+        // every token has to be in the log
+        final List<String> terms = new ArrayList<>();
+        // the tokens of every phrase have to follow each other on a line
+        final List<List<String>> phrases = new ArrayList<>();
+        // owner/repo
+        String repository;
+        String branch;
+        Filesystem.BuildStatus status;
+        // the time of the build, in milliseconds
+        long after = Long.MIN_VALUE;
+        long before = Long.MAX_VALUE;
+
+        /**
+         * @param text The query, filters are repo:, branch:, status:, after: and before: with a date as 2024-12-31
+         * @throws IllegalArgumentException For a filter that cannot be read
+         */
+        static Query parse(String text) {
+            Query query = new Query();
+            Matcher matcher = QUERY_PART.matcher(text);
+            while (matcher.find()) {
+                String word = matcher.group(2);
+                int colon = word == null ? -1 : word.indexOf(':');
+                if (colon > 0 && query.setFilter(word.substring(0, colon).toLowerCase(Locale.ROOT), word.substring(colon + 1))) {
+                    continue;
+                }
+                // a word like se.kth.FooTest is searched for as a phrase
+                List<String> tokens = tokenize(word != null ? word : matcher.group(1));
+                if (tokens.size() == 1) {
+                    query.terms.add(tokens.getFirst());
+                } else if (tokens.size() > 1) {
+                    query.phrases.add(tokens);
+                }
+            }
+            return query;
+        }
+
+        boolean setFilter(String name, String value) {
+            switch (name) {
+                case "repo" -> repository = BuildIndex.normalize(value);
+                case "branch" -> branch = value;
+                case "status" -> status = parseStatus(value);
+                case "after" -> after = parseDate(value);
+                case "before" -> before = parseDate(value);
+                default -> {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        static Filesystem.BuildStatus parseStatus(String value) {
+            try {
+                return Filesystem.BuildStatus.valueOf(value.toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Not a status: " + value + ", one of " + Arrays.toString(Filesystem.BuildStatus.values()));
+            }
+        }
+
+        static long parseDate(String value) {
+            try {
+                return LocalDate.parse(value).atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli();
+            } catch (RuntimeException e) {
+                throw new IllegalArgumentException("Not a date: " + value);
+            }
+        }
+
+        /**
+         * @return All tokens a log has to contain
+         */
+        List<String> getTokens() {
+            LinkedHashSet<String> tokens = new LinkedHashSet<>(terms);
+            phrases.forEach(tokens::addAll);
+            return new ArrayList<>(tokens);
+        }
+
+        /**
+         * @param path The branch of the build, e.g. owner/repo/branch
+         * @return If the build passes the filters
+         */
+        boolean accepts(String path, Filesystem.BuildData build) {
+            if (repository != null && !path.startsWith(repository + "/")) {
+                return false;
+            }
+            if (branch != null) {
+                int split = path.indexOf('/', path.indexOf('/') + 1);
+                if (split < 0 || !path.substring(split + 1).equals(branch)) {
+                    return false;
+                }
+            }
+            return (status == null || build.status == status) && build.time >= after && build.time < before;
+        }
+    }
+
+    /**
+     * The ids of the logs that contain a token, in ascending order
+     */
+    static class Postings {
+        int[] ids = new int[4];
+        int size;
+
+        void add(int id) {
+            if (size > 0 && ids[size - 1] >= id) {
+                return;
+            }
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            ids[size++] = id;
+        }
+    }
+
+    final Filesystem filesystem;
+    final File directory;
+    final File file;
+    FileChannel channel;
+    // the indexed logs, by id and by path
+    final Map<Integer, String> paths = new HashMap<>();
+    final Map<String, Integer> ids = new HashMap<>();
+    final Map<String, Postings> postings = new HashMap<>();
+    int nextId;
+    // all records in the file, including replaced ones
+    long records;
+    boolean compacting;
+    // held while the file is rewritten, so only one compaction runs at a time
+    final Object compaction = new Object();
+    // logs are read and indexed one at a time, in the background
+    final ExecutorService indexer = Executors.newSingleThreadExecutor(Thread.ofVirtual().name("search-indexer").factory());
+
+    /**
+     * @param filesystem The build history, the index is kept in the .search directory of its output directory
+     */
+    SearchIndex(Filesystem filesystem) {
+        this.filesystem = filesystem;
+        this.directory = new File(filesystem.outputDirectory, DIRECTORY);
+        this.file = new File(directory, FILE_NAME);
+    }
+
+    /**
+     * Reads the index, and starts indexing the logs of the build history that are not in it
+     */
+    synchronized void load() throws IOException {
+        Boolean _ = directory.mkdirs();
+        if (file.isFile()) {
+            long valid = BuildStore.read(file, MAX_RECORD, this::apply);
+            if (valid < file.length()) {
+                System.err.println("Ignoring a broken record at " + valid + " in " + file);
+                try (FileChannel broken = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                    broken.truncate(valid);
+                }
+            }
+        }
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+
+        List<Filesystem.BuildData> missing = new ArrayList<>();
+        for (Filesystem.BuildData build : filesystem.store.builds.values()) {
+            if (build.log == null && !ids.containsKey(filesystem.store.relative(build.getLogFile()))) {
+                missing.add(build);
+            }
+        }
+        missing.sort(Comparator.comparingLong(build -> build.time));
+        missing.forEach(this::submit);
+    }
+
+    void apply(JSONObject record) {
+        String path = record.getString("path");
+        Integer old = ids.remove(path);
+        if (old != null) {
+            paths.remove(old);
+        }
+        records++;
+        if (record.optBoolean("deleted")) {
+            return;
+        }
+        int id = record.getInt("id");
+        nextId = Math.max(nextId, id + 1);
+        paths.put(id, path);
+        ids.put(path, id);
+        String tokens = record.getString("tokens");
+        if (tokens.isEmpty()) {
+            return;
+        }
+        for (String token : tokens.split(" ")) {
+            postings.computeIfAbsent(token, _ -> new Postings()).add(id);
+        }
+    }
+
+    /**
+     * Indexes the log of a build in the background, a reused result has the log of an earlier build which is
+     * already indexed
+     */
+    void submit(Filesystem.BuildData build) {
+        if (build.log != null) {
+            return;
+        }
+        indexer.execute(() -> {
+            try {
+                add(build.getLogFile());
+            } catch (FileNotFoundException _) {
+                // removed in the meantime
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+    }
+
+    /**
+     * Indexes a log, replacing an earlier log of the same path
+     *
+     * @param log The plain log file, which may be stored compressed
+     */
+    void add(File log) throws IOException {
+        Set<String> tokens = readTokens(new Filesystem.LogData(log));
+        String path = filesystem.store.relative(log);
+        synchronized (this) {
+            JSONObject record = new JSONObject()
+                    .put("id", nextId)
+                    .put("path", path)
+                    .put("tokens", String.join(" ", tokens));
+            write(BuildStore.encode(record));
+            apply(record);
+            compactIfNeeded();
+        }
+    }
+
+    /**
+     * Removes a deleted log from the index
+     *
+     * @param log The plain log file
+     */
+    synchronized void remove(File log) throws IOException {
+        String path = filesystem.store.relative(log);
+        if (!ids.containsKey(path)) {
+            return;
+        }
+        JSONObject record = new JSONObject().put("path", path).put("deleted", true);
+        write(BuildStore.encode(record));
+        apply(record);
+        compactIfNeeded();
+    }
+
+    void write(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * @return The distinct tokens of a log
+     */
+    static Set<String> readTokens(Filesystem.LogData log) throws IOException {
+        Set<String> tokens = new HashSet<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(log.open(0), StandardCharsets.UTF_8), 64 * 1024)) {
+            String line;
+            while ((line = reader.readLine()) != null && tokens.size() < MAX_TOKENS) {
+                tokens.addAll(tokenize(line));
+            }
+        }
+        return tokens;
+    }
+
+    /**
+     * Splits text into lower case tokens of letters, digits and underscores
+     */
+    static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean word = i < text.length() && (Character.isLetterOrDigit(text.charAt(i)) || text.charAt(i) == '_');
+            if (word && start < 0) {
+                start = i;
+            } else if (!word && start >= 0) {
+                tokens.add(text.substring(start, Math.min(i, start + MAX_TOKEN)).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+        return tokens;
+    }
+
+    /**
+     * Starts a compaction on the indexer if most records are replaced or removed
+     */
+    synchronized void compactIfNeeded() {
+        if (compacting || records - paths.size() <= Math.max(COMPACT_MIN_GARBAGE, paths.size())) {
+            return;
+        }
+        compacting = true;
+        indexer.execute(() -> {
+            try {
+                compact();
+            } catch (Exception e) {
+                e.printStackTrace();
+            } finally {
+                synchronized (this) {
+                    compacting = false;
+                }
+            }
+        });
+    }
+
+    /**
+     * Rewrites the file with only the latest record of every log, and drops the removed logs from the postings. The
+     * file is read without the lock, so searches go on, and the records written in the meantime are copied after it.
+     */
+    void compact() throws IOException {
+        synchronized (compaction) {
+            long end;
+            long before;
+            Map<String, Integer> live;
+            synchronized (this) {
+                end = channel.size();
+                before = records;
+                live = new HashMap<>(ids);
+            }
+
+            File temporary = new File(file.getPath() + ".tmp");
+            try (FileChannel compacted = FileChannel.open(temporary.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                IOException[] failed = new IOException[1];
+                BuildStore.read(file, end, MAX_RECORD, record -> {
+                    if (failed[0] != null || record.optBoolean("deleted")) {
+                        return;
+                    }
+                    if (Integer.valueOf(record.getInt("id")).equals(live.get(record.getString("path")))) {
+                        try {
+                            ByteBuffer buffer = BuildStore.encode(record);
+                            while (buffer.hasRemaining()) {
+                                compacted.write(buffer);
+                            }
+                        } catch (IOException e) {
+                            failed[0] = e;
+                        }
+                    }
+                });
+                if (failed[0] != null) {
+                    throw failed[0];
+                }
+
+                synchronized (this) {
+                    try (FileChannel old = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                        long position = end;
+                        long size = old.size();
+                        while (position < size) {
+                            position += old.transferTo(position, size - position, compacted);
+                        }
+                    }
+                    compacted.force(true);
+                    channel.close();
+                    Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                    channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                    records = live.size() + records - before;
+
+                    Iterator<Postings> iterator = postings.values().iterator();
+                    while (iterator.hasNext()) {
+                        Postings list = iterator.next();
+                        int size = 0;
+                        for (int i = 0; i < list.size; i++) {
+                            if (paths.containsKey(list.ids[i])) {
+                                list.ids[size++] = list.ids[i];
+                            }
+                        }
+                        list.size = size;
+                        if (size == 0) {
+                            iterator.remove();
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The paths of the logs that contain all tokens, newest first
+     */
+    synchronized List<String> findLogs(List<String> tokens) {
+        List<Postings> lists = new ArrayList<>();
+        for (String token : tokens) {
+            Postings list = postings.get(token);
+            if (list == null) {
+                return List.of();
+            }
+            lists.add(list);
+        }
+        if (lists.isEmpty()) {
+            return List.of();
+        }
+        // the shortest list first, the others only remove from it
+        lists.sort(Comparator.comparingInt(list -> list.size));
+        int[] candidates = Arrays.copyOf(lists.getFirst().ids, lists.getFirst().size);
+        int size = candidates.length;
+        for (int i = 1; i < lists.size() && size > 0; i++) {
+            size = intersect(candidates, size, lists.get(i));
+        }
+        List<String> logs = new ArrayList<>();
+        for (int i = size - 1; i >= 0; i--) {
+            String path = paths.get(candidates[i]);
+            if (path != null) {
+                logs.add(path);
+            }
+        }
+        return logs;
+    }
+
+    /**
+     * Keeps the ids that are also in the postings
+     *
+     * @return How many ids are left at the start of the array
+     */
+    static int intersect(int[] ids, int size, Postings other) {
+        int kept = 0;
+        int j = 0;
+        for (int i = 0; i < size; i++) {
+            // galloping would be faster for very different lengths, the shortest list is usually short
+            while (j < other.size && other.ids[j] < ids[i]) {
+                j++;
+            }
+            if (j < other.size && other.ids[j] == ids[i]) {
+                ids[kept++] = ids[i];
+            }
+        }
+        return kept;
+    }
+
+    /**
+     * Finds the builds whose logs match a query, newest first
+     *
+     * @param limit How many builds to return at most
+     */
+    Results search(Query query, int limit) throws IOException {
+        List<String> tokens = query.getTokens();
+        if (tokens.isEmpty()) {
+            return filter(query, limit);
+        }
+        List<Result> results = new ArrayList<>();
+        int scanned = 0;
+        for (String log : findLogs(tokens)) {
+            if (results.size() >= limit) {
+                return new Results(results, true);
+            }
+            int slash = log.lastIndexOf('/');
+            String path = log.substring(0, slash);
+            Filesystem.BuildData build = filesystem.store.get(path, log.substring(slash + 1, log.length() - ".log".length()));
+            if (build == null || !query.accepts(path, build)) {
+                continue;
+            }
+            if (++scanned > MAX_SCANNED) {
+                return new Results(results, true);
+            }
+            List<Snippet> snippets;
+            try {
+                snippets = match(query, new Filesystem.LogData(filesystem.resolve(log)));
+            } catch (FileNotFoundException e) {
+                // deleted in the meantime
+                continue;
+            }
+            if (snippets != null) {
+                results.add(new Result(build, log, snippets));
+            }
+        }
+        return new Results(results, false);
+    }
+
+    /**
+     * Finds the builds that pass the filters of a query that has nothing to search for, newest first, without reading
+     * their logs
+     *
+     * @param limit How many builds to return at most
+     */
+    Results filter(Query query, int limit) {
+        int wanted = Math.min(limit, MAX_SCANNED);
+        // the newest builds that pass, the oldest of them first
+        PriorityQueue<Filesystem.BuildData> newest = new PriorityQueue<>(Comparator.comparingLong(build -> build.time));
+        int accepted = 0;
+        for (Filesystem.BuildData build : filesystem.store.builds.values()) {
+            // a reused result has the log of another build, as in the index
+            if (build.log != null || !query.accepts(filesystem.store.path(build), build)) {
+                continue;
+            }
+            accepted++;
+            newest.add(build);
+            if (newest.size() > wanted) {
+                newest.poll();
+            }
+        }
+        List<Result> results = new ArrayList<>();
+        while (!newest.isEmpty()) {
+            Filesystem.BuildData build = newest.poll();
+            results.add(new Result(build, filesystem.store.relative(build.getLogFile()), List.of()));
+        }
+        Collections.reverse(results);
+        return new Results(results, accepted > results.size());
+    }
+
+    /**
+     * Reads a log until every term and phrase of the query was found on a line, and enough lines are found
+     *
+     * @return The first matching lines, or null if the log does not match
+     */
+    static List<Snippet> match(Query query, Filesystem.LogData log) throws IOException {
+        Set<String> terms = new HashSet<>();
+        boolean[] phrases = new boolean[query.phrases.size()];
+        int phrasesFound = 0;
+        List<Snippet> snippets = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(log.open(0), StandardCharsets.UTF_8), 64 * 1024)) {
+            String line;
+            int number = 0;
+            while ((line = reader.readLine()) != null) {
+                number++;
+                List<String> tokens = tokenize(line);
+                boolean matches = false;
+                for (String term : query.terms) {
+                    if (tokens.contains(term)) {
+                        terms.add(term);
+                        matches = true;
+                    }
+                }
+                for (int i = 0; i < phrases.length; i++) {
+                    if (Collections.indexOfSubList(tokens, query.phrases.get(i)) >= 0) {
+                        if (!phrases[i]) {
+                            phrases[i] = true;
+                            phrasesFound++;
+                        }
+                        matches = true;
+                    }
+                }
+                if (matches && snippets.size() < SNIPPETS) {
+                    snippets.add(new Snippet(number, line.length() > SNIPPET_LENGTH ? line.substring(0, SNIPPET_LENGTH) : line));
+                }
+                if (snippets.size() >= SNIPPETS && terms.size() == query.terms.size() && phrasesFound == phrases.length) {
+                    break;
+                }
+            }
+        }
+        return terms.size() == query.terms.size() && phrasesFound == phrases.length ? snippets : null;
+    }
+
+    /**
+     * @return The results for the search api
+     */
+    static JSONObject toJson(Results results) {
+        JSONArray builds = new JSONArray();
+        for (Result result : results.builds()) {
+            JSONArray matches = new JSONArray();
+            for (Snippet snippet : result.snippets()) {
+                matches.put(new JSONObject().put("line", snippet.line()).put("text", snippet.text()));
+            }
+            builds.put(new JSONObject()
+                    .put("path", result.log().substring(0, result.log().lastIndexOf('/')))
+                    .put("commit", result.build().commit)
+                    .put("status", result.build().status)
+                    .put("time", result.build().time)
+                    .put("log", "/" + result.log())
+                    .put("matches", matches));
+        }
+        return new JSONObject().put("builds", builds).put("truncated", results.truncated());
+    }
+
+    synchronized void close() throws IOException {
+        indexer.shutdownNow();
+        if (channel != null) {
+            channel.close();
+        }
+    }
+}
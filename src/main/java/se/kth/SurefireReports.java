@@ -0,0 +1,162 @@
+package se.kth;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+/**
+ * Reads the XML reports that surefire writes for every test class (target/surefire-reports/TEST-*.xml) with a
+ * streaming parser, into a summary that is small enough to store with every build: how long each class took,
+ * how many tests ran, failed and were skipped, and which tests failed or were flaky.
+ */
+public class SurefireReports {
+    static final String REPORTS = "surefire-reports";
+    // at most this many failed and flaky tests are stored, a build where everything fails does not need them all
+    static final int MAX_STORED_TESTS = 100;
+
+    static final XMLInputFactory xmlFactory = XMLInputFactory.newFactory();
+
+    static {
+        // reports are never allowed to load anything
+        xmlFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        xmlFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    }
+
+    /**
+     * The results of the tests of a build
+     */
+    public static class Summary {
+        // how long each test class took in milliseconds, by class name
+        final Map<String, Long> durations = new TreeMap<>();
+        // class#method of the tests that failed or had an error
+        final Set<String> failed = new LinkedHashSet<>();
+        // class#method of the tests that failed and then passed when surefire ran them again
+        final Set<String> flaky = new LinkedHashSet<>();
+        int run;
+        int failures;
+        int skipped;
+
+        void add(Set<String> tests, String test) {
+            if (tests.size() < MAX_STORED_TESTS) {
+                tests.add(test);
+            }
+        }
+    }
+
+    /**
+     * @param project The checked out project after the tests ran
+     * @return The results of all reports of all modules
+     */
+    static Summary read(File project) throws IOException {
+        Summary summary = new Summary();
+        for (Path directory : TestShards.findTargetDirectories(project, REPORTS)) {
+            try (Stream<Path> files = Files.list(directory)) {
+                for (Path file : (Iterable<Path>) files.sorted()::iterator) {
+                    String name = file.getFileName().toString();
+                    if (name.startsWith("TEST-") && name.endsWith(".xml")) {
+                        read(file.toFile(), summary);
+                    }
+                }
+            }
+        }
+        return summary;
+    }
+
+    /**
+     * Renames the reports that were written so far, so a later surefire run of the same classes does not replace
+     * them, e.g. TEST-se.kth.FooTest.xml to TEST-se.kth.FooTest-first.xml
+     *
+     * @param project The checked out project
+     * @param suffix  Added to the name of every report
+     */
+    static void rename(File project, String suffix) throws IOException {
+        for (Path directory : TestShards.findTargetDirectories(project, REPORTS)) {
+            try (Stream<Path> files = Files.list(directory)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    String name = file.getFileName().toString();
+                    if (name.startsWith("TEST-") && name.endsWith(".xml") && !name.endsWith("-" + suffix + ".xml")) {
+                        Files.move(file, file.resolveSibling(name.substring(0, name.length() - 4) + "-" + suffix + ".xml"));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds the results of one report to the summary
+     */
+    static void read(File report, Summary summary) throws IOException {
+        try (InputStream in = new FileInputStream(report)) {
+            XMLStreamReader reader = xmlFactory.createXMLStreamReader(in);
+            try {
+                read(reader, summary);
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException | NumberFormatException e) {
+            // a report of a killed fork can be cut off, what was read before is kept
+            System.err.println("Could not read " + report + ": " + e.getMessage());
+        }
+    }
+
+    static void read(XMLStreamReader reader, Summary summary) throws XMLStreamException {
+        // the test case that is being read
+        String test = null;
+        boolean failed = false;
+        boolean flaky = false;
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                switch (reader.getLocalName()) {
+                    case "testsuite" -> {
+                        String name = reader.getAttributeValue(null, "name");
+                        String time = reader.getAttributeValue(null, "time");
+                        if (name != null && time != null) {
+                            // a class that ran in two parts has two reports
+                            summary.durations.merge(name, parseMillis(time), Long::sum);
+                        }
+                    }
+                    case "testcase" -> {
+                        test = reader.getAttributeValue(null, "classname") + "#" + reader.getAttributeValue(null, "name");
+                        failed = false;
+                        flaky = false;
+                        summary.run++;
+                    }
+                    case "failure", "error" -> failed = true;
+                    case "flakyFailure", "flakyError" -> flaky = true;
+                    case "skipped" -> summary.skipped++;
+                    // the output of the test, which can be long, is skipped as text events
+                    default -> {
+                    }
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT && reader.getLocalName().equals("testcase")) {
+                if (failed) {
+                    summary.failures++;
+                    summary.add(summary.failed, test);
+                } else if (flaky) {
+                    summary.add(summary.flaky, test);
+                }
+                test = null;
+            }
+        }
+    }
+
+    /**
+     * @param seconds A surefire time, e.g. 1.234 or 1,234.5
+     */
+    static long parseMillis(String seconds) {
+        return Math.round(Double.parseDouble(seconds.replace(",", "")) * 1000);
+    }
+}
@@ -0,0 +1,156 @@
+package se.kth;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Stream;
+
+/**
+ * Splits the test classes of a project into shards that take about the same time, so they can run in parallel.
+ * Classes are found in the compiled test classes, how long they took before comes from the surefire reports.
+ */
+public class TestShards {
+    static final String TEST_CLASSES = "test-classes";
+    // how deep modules are searched for target directories
+    static final int MAX_DEPTH = 8;
+    // the time of a class that has never run, when there is no history at all
+    static final long DEFAULT_DURATION = 1000;
+
+    /**
+     * @param name The simple name of a class
+     * @return If surefire runs it by default, e.g. FooTest, TestFoo, FooTests and FooTestCase
+     */
+    static boolean isTestClass(String name) {
+        return name.startsWith("Test") || name.endsWith("Test") || name.endsWith("Tests") || name.endsWith("TestCase");
+    }
+
+    /**
+     * @param project The checked out project
+     * @return The directories of all modules with the given name in target, e.g. test-classes
+     */
+    static List<Path> findTargetDirectories(File project, String name) throws IOException {
+        try (Stream<Path> paths = Files.find(project.toPath(), MAX_DEPTH, (path, attributes) -> attributes.isDirectory()
+                && path.getFileName().toString().equals(name)
+                && path.getParent() != null && path.getParent().getFileName().toString().equals("target"))) {
+            return paths.filter(path -> !path.toString().contains(File.separator + ".git" + File.separator)).toList();
+        }
+    }
+
+    /**
+     * Finds the test classes of a compiled project, inner classes are run by their outer class
+     *
+     * @param project The checked out project after mvn test-compile
+     * @return The fully qualified names of the test classes, sorted
+     */
+    static List<String> discover(File project) throws IOException {
+        TreeSet<String> classes = new TreeSet<>();
+        for (Path directory : findTargetDirectories(project, TEST_CLASSES)) {
+            try (Stream<Path> files = Files.walk(directory)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    String name = file.getFileName().toString();
+                    if (!name.endsWith(".class") || name.contains("$")) {
+                        continue;
+                    }
+                    String simpleName = name.substring(0, name.length() - ".class".length());
+                    if (isTestClass(simpleName)) {
+                        String relative = directory.relativize(file).toString();
+                        classes.add(relative.substring(0, relative.length() - ".class".length()).replace(File.separatorChar, '.'));
+                    }
+                }
+            }
+        }
+        return new ArrayList<>(classes);
+    }
+
+    /**
+     * Splits classes into shards with the longest first, each to the shard with the least time so far
+     *
+     * @param classes The test classes
+     * @param history How long classes took before in milliseconds, classes without history get the median
+     * @param shards  How many shards there should be at most
+     * @return The non-empty shards
+     */
+    static List<List<String>> split(List<String> classes, Map<String, Long> history, int shards) {
+        long[] known = history.values().stream().mapToLong(Long::longValue).sorted().toArray();
+        long unknown = known.length == 0 ? DEFAULT_DURATION : known[known.length / 2];
+
+        ArrayList<String> sorted = new ArrayList<>(classes);
+        sorted.sort(Comparator.comparingLong((String name) -> history.getOrDefault(name, unknown)).reversed()
+                .thenComparing(Comparator.naturalOrder()));
+
+        int count = Math.max(1, Math.min(shards, classes.size()));
+        ArrayList<List<String>> result = new ArrayList<>();
+        // the shards by their total time, then by index so equal shards are filled in order
+        PriorityQueue<long[]> totals = new PriorityQueue<>(Comparator.<long[]>comparingLong(total -> total[0]).thenComparingLong(total -> total[1]));
+        for (int i = 0; i < count; i++) {
+            result.add(new ArrayList<>());
+            totals.add(new long[]{0, i});
+        }
+        for (String name : sorted) {
+            long[] total = totals.poll();
+            result.get((int) total[1]).add(name);
+            total[0] += history.getOrDefault(name, unknown);
+            totals.add(total);
+        }
+        result.removeIf(List::isEmpty);
+        return result;
+    }
+
+    /**
+     * @param tests   Tests as class#method
+     * @param classes The test classes of the project, tests of other classes are left out
+     * @return -Dtest patterns that run only these tests, e.g. se.kth.FooTest#a+b
+     */
+    static List<String> getPatterns(Collection<String> tests, Collection<String> classes) {
+        Set<String> known = new HashSet<>(classes);
+        // the methods of every class, null runs the whole class
+        LinkedHashMap<String, LinkedHashSet<String>> methods = new LinkedHashMap<>();
+        for (String test : tests) {
+            int hash = test.indexOf('#');
+            String className = hash < 0 ? test : test.substring(0, hash);
+            if (!known.contains(className)) {
+                continue;
+            }
+            String method = hash < 0 ? "" : getMethodName(test.substring(hash + 1));
+            if (method.isEmpty()) {
+                methods.put(className, null);
+            } else if (!methods.containsKey(className) || methods.get(className) != null) {
+                methods.computeIfAbsent(className, _ -> new LinkedHashSet<>()).add(method);
+            }
+        }
+        ArrayList<String> patterns = new ArrayList<>();
+        methods.forEach((className, names) -> patterns.add(names == null ? className : className + "#" + String.join("+", names)));
+        return patterns;
+    }
+
+    /**
+     * @param shard The test classes of a shard
+     * @param ran   The -Dtest patterns of tests that already ran, from getPatterns
+     * @return The -Dtest value of the shard without the tests that already ran, e.g. se.kth.FooTest,!se.kth.FooTest#a
+     */
+    static String exclude(List<String> shard, List<String> ran) {
+        List<String> patterns = new ArrayList<>(shard);
+        Set<String> classes = new HashSet<>(shard);
+        for (String pattern : ran) {
+            int hash = pattern.indexOf('#');
+            if (hash > 0 && classes.contains(pattern.substring(0, hash))) {
+                patterns.add("!" + pattern);
+            }
+        }
+        return String.join(",", patterns);
+    }
+
+    /**
+     * @param name The name of a test in a report, e.g. test, test[1] or test(int)
+     * @return The method name, or empty if it cannot be selected by name
+     */
+    static String getMethodName(String name) {
+        int end = 0;
+        while (end < name.length() && Character.isJavaIdentifierPart(name.charAt(end))) {
+            end++;
+        }
+        return end > 0 && Character.isJavaIdentifierStart(name.charAt(0)) ? name.substring(0, end) : "";
+    }
+}
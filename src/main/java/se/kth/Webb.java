@@ -24,6 +24,43 @@ public class Webb {
                 <td>%s</td>
                 <td><a href="/%s">Log</a></td>
             </tr>""";
+    static String pageRow = """
+            <tr>
+                <td colspan="4">%s Page %d of %d %s</td>
+            </tr>""";
+    static String pageLink = """
+            <a href="?page=%d">%s</a>""";
+    static String searchForm = """
+            <tr>
+                <td colspan="4">
+                    <form action="/search">
+                        <input type="text" name="q" size="80" value="%s" placeholder="e.g. NullPointerException &quot;connection refused&quot; repo:owner/repo status:failed_to_test after:2024-01-01">
+                        <input type="submit" value="Search">
+                    </form>
+                </td>
+            </tr>""";
+    static String searchHeader = """
+            <tr id="headerDesign">
+                        <th>Build</th>
+                        <th>Status</th>
+                        <th>Build Date</th>
+                        <th>Matching Lines</th>
+                    </tr>""";
+    static String searchRow = """
+            <tr>
+                <td><a href="/%s">%s</a></td>
+                <td>%s</td>
+                <td>%s</td>
+                <td>""";
+    static String searchRowEnd = """
+            </td>
+            </tr>""";
+    static String snippetLine = """
+            <a href="/%s">%d</a>: %s<br>""";
+    static String messageRow = """
+            <tr>
+                <td colspan="4">%s</td>
+            </tr>""";
     static String dirRow = """
             <tr>
                 <td><a href="/%s">%s</a></td>
@@ -80,4 +117,23 @@ public class Webb {
             
             </body>
             </html>""";
+
+    static String livePage = """
+            <!DOCTYPE html>
+            <html lang="en">
+            <meta charset="UTF-8">
+            <title>%s</title>
+            <body>
+            <pre id="log"></pre>
+            <script>
+                const log = document.getElementById("log");
+                const source = new EventSource(location.pathname);
+                source.onmessage = event => {
+                    log.appendChild(document.createTextNode(event.data + "\\n"));
+                    window.scrollTo(0, document.body.scrollHeight);
+                };
+                source.addEventListener("end", () => source.close());
+            </script>
+            </body>
+            </html>""";
 }
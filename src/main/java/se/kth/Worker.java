@@ -0,0 +1,346 @@
+package se.kth;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * A worker process of distributed builds (Main --worker url). It takes jobs from the coordinator when it has a free
+ * slot, builds them in its own workspaces and repository mirrors, streams the logs back and reports the results.
+ * The build history stays on the coordinator.
+ */
+public class Worker {
+    // a part of the log is sent when it is this large, or after BuildLog.FLUSH_INTERVAL
+    static final int LOG_CHUNK = 64 * 1024;
+    static final long RETRY_DELAY = 2_000;
+
+    final String coordinator;
+    final String name = Config.getString("CI_WORKER_NAME", getHostName() + "-" + ProcessHandle.current().pid());
+    final int slots = Config.getInt("CI_WORKER_SLOTS", Config.getInt("CI_WORKERS", Runtime.getRuntime().availableProcessors()));
+    final String token = Config.getString("CI_WORKER_TOKEN", null);
+    final HttpClient client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(10)).build();
+    final Semaphore free;
+    final WorkspacePool workspaces;
+    final RepositoryCache repositoryCache;
+    // the jobs being built, by job id
+    final Map<Long, Running> running = new ConcurrentHashMap<>();
+    long heartbeatMillis = WorkerPool.HEARTBEAT_INTERVAL;
+    // set by register
+    volatile String id;
+
+    /**
+     * A job that is being built, with the attempt the coordinator gave it
+     */
+    record Running(BuildQueue.BuildJob job, int attempt, RemoteLog log) {
+    }
+
+    /**
+     * @param coordinator The url of the coordinator, e.g. http://ci.example.com:8080
+     */
+    Worker(String coordinator) {
+        this.coordinator = coordinator.endsWith("/") ? coordinator.substring(0, coordinator.length() - 1) : coordinator;
+        this.free = new Semaphore(Math.max(1, slots));
+        // several workers on one machine need their own directories
+        File directory = new File(Config.getString("CI_WORKER_DIRECTORY", ".worker"));
+        this.workspaces = new WorkspacePool(new File(directory, "build").getPath(), Math.max(1, slots));
+        this.repositoryCache = new RepositoryCache(new File(directory, "cache").getPath());
+        try {
+            repositoryCache.loadOptions(new File(Config.getString("CI_CHECKOUT_OPTIONS", "checkout.json")));
+        } catch (Exception e) {
+            // keep the default options
+            e.printStackTrace();
+        }
+    }
+
+    static String getHostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (IOException e) {
+            return "worker";
+        }
+    }
+
+    /**
+     * Takes and builds jobs until the thread is interrupted
+     */
+    void run() throws InterruptedException {
+        register();
+        Thread.ofVirtual().name("worker-heartbeat").start(this::sendHeartbeats);
+        while (!Thread.currentThread().isInterrupted()) {
+            free.acquire();
+            JSONObject job = null;
+            try {
+                HttpResponse<String> response = send("/poll", HttpRequest.BodyPublishers.noBody(), "GET");
+                if (response.statusCode() == 200) {
+                    job = new JSONObject(response.body());
+                } else if (response.statusCode() == 404) {
+                    register();
+                }
+            } catch (IOException e) {
+                System.err.println("Could not reach the coordinator: " + e);
+                Thread.sleep(RETRY_DELAY);
+            } finally {
+                if (job == null) {
+                    free.release();
+                }
+            }
+            if (job != null) {
+                JSONObject description = job;
+                Thread.ofVirtual().name("worker-job-" + job.getLong("id")).start(() -> {
+                    try {
+                        build(description);
+                    } finally {
+                        free.release();
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Registers with the coordinator, retrying until it answers. Jobs of an earlier registration are given up,
+     * the coordinator builds them again.
+     */
+    void register() throws InterruptedException {
+        while (true) {
+            try {
+                id = null;
+                HttpResponse<String> response = send("/register", HttpRequest.BodyPublishers.ofString(
+                        new JSONObject().put("name", name).put("slots", slots).toString()), "POST");
+                if (response.statusCode() == 200) {
+                    JSONObject json = new JSONObject(response.body());
+                    id = json.getString("id");
+                    heartbeatMillis = json.optLong("heartbeat", heartbeatMillis);
+                    System.out.println("Registered with " + coordinator + " as " + name + " with " + slots + " slots");
+                    running.values().forEach(job -> job.job().supersede(job.job()));
+                    return;
+                }
+                System.err.println("The coordinator answered " + response.statusCode() + " to the registration");
+            } catch (IOException e) {
+                System.err.println("Could not reach the coordinator: " + e);
+            }
+            Thread.sleep(RETRY_DELAY);
+        }
+    }
+
+    void sendHeartbeats() {
+        while (true) {
+            try {
+                Thread.sleep(heartbeatMillis);
+                if (id == null) {
+                    continue;
+                }
+                // a quiet build still shows its latest output
+                for (Running job : running.values()) {
+                    job.log().flush();
+                }
+                JSONArray ids = new JSONArray();
+                running.keySet().forEach(ids::put);
+                HttpResponse<String> response = send("/heartbeat", HttpRequest.BodyPublishers.ofString(
+                        new JSONObject().put("running", ids).toString()), "POST");
+                if (response.statusCode() != 200) {
+                    // 404 registers again at the next poll
+                    continue;
+                }
+                JSONObject cancel = new JSONObject(response.body()).getJSONObject("cancel");
+                for (String jobId : cancel.keySet()) {
+                    Running job = running.get(Long.parseLong(jobId));
+                    if (job != null) {
+                        BuildQueue.BuildJob newer = new BuildQueue.BuildJob(0, job.job().repository, job.job().ownerName,
+                                job.job().repoName, job.job().branchName, cancel.getString(jobId));
+                        job.job().supersede(newer);
+                    }
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                System.err.println("Heartbeat failed: " + e);
+            }
+        }
+    }
+
+    /**
+     * Builds a job and reports the result
+     *
+     * @param description The job from the coordinator
+     */
+    void build(JSONObject description) {
+        BuildQueue.BuildJob job = new BuildQueue.BuildJob(description.getLong("id"), description.getString("repository"),
+                description.getString("owner"), description.getString("repo"), description.getString("branch"),
+                description.getString("commit"));
+        int attempt = description.getInt("attempt");
+        String path = "/jobs/" + job.id;
+        RemoteLog log = new RemoteLog(path, attempt);
+        running.put(job.id, new Running(job, attempt, log));
+        File workspace = null;
+        BuildQueue.current.set(job);
+        try {
+            workspace = workspaces.acquire();
+            ContinuousIntegration ci = new ContinuousIntegration(workspace.getPath(), repositoryCache);
+            configure(ci, description);
+            // one shard for this job and one for every slot that has nothing to do
+            ci.shards = Math.max(1, Math.min(ContinuousIntegrationServer.maxTestShards, 1 + free.availablePermits()));
+            log.append("==== Building on worker ").append(name).append(" ====\n");
+            Filesystem.BuildStatus status = ci.runBuild(log, job.repository, job.branchName, job.commitId);
+
+            Filesystem.BuildData build = new Filesystem.BuildData(workspace, status, job.commitId);
+            ci.describe(build);
+            log.close();
+            HttpResponse<String> response = send(path + "/result?attempt=" + attempt,
+                    HttpRequest.BodyPublishers.ofString(build.toJson().toString()), "POST");
+            if (response.statusCode() != 204) {
+                System.err.println("The coordinator did not take the result of job " + job.id + ": " + response.statusCode());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            // the coordinator builds it again when it notices that this worker is not building it
+            System.err.println("Could not finish job " + job.id + ": " + e);
+        } finally {
+            BuildQueue.current.remove();
+            running.remove(job.id);
+            if (workspace != null) {
+                workspaces.release(workspace);
+            }
+        }
+    }
+
+    /**
+     * Sets what the coordinator knows from the build history
+     */
+    static void configure(ContinuousIntegration ci, JSONObject description) {
+        ci.tree = description.optString("tree", null);
+        JSONObject history = description.optJSONObject("testHistory");
+        if (history != null) {
+            ci.testHistory = new HashMap<>();
+            for (String name : history.keySet()) {
+                ci.testHistory.put(name, history.getLong(name));
+            }
+        }
+        JSONArray priority = description.optJSONArray("priorityTests");
+        if (priority != null) {
+            List<String> tests = new ArrayList<>();
+            for (int i = 0; i < priority.length(); i++) {
+                tests.add(priority.getString(i));
+            }
+            ci.priorityTests = tests;
+        }
+        ci.impactBase = description.optString("impactBase", null);
+    }
+
+    /**
+     * What a worker needs to know to build a job, the inverse of configure
+     *
+     * @param ci The build prepared from the build history
+     */
+    static JSONObject describe(BuildQueue.BuildJob job, ContinuousIntegration ci) {
+        JSONObject json = new JSONObject()
+                .put("id", job.id)
+                .put("repository", job.repository)
+                .put("owner", job.ownerName)
+                .put("repo", job.repoName)
+                .put("branch", job.branchName)
+                .put("commit", job.commitId)
+                .put("tree", job.tree);
+        if (!ci.testHistory.isEmpty()) {
+            json.put("testHistory", new JSONObject(ci.testHistory));
+        }
+        if (!ci.priorityTests.isEmpty()) {
+            json.put("priorityTests", new JSONArray(ci.priorityTests));
+        }
+        return json.put("impactBase", ci.impactBase);
+    }
+
+    HttpResponse<String> send(String path, HttpRequest.BodyPublisher body, String method) throws IOException, InterruptedException {
+        String worker = path.equals("/register") ? "" : "/" + id;
+        HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(coordinator + "/workers" + worker + path))
+                .timeout(Duration.ofMillis(WorkerPool.POLL_TIMEOUT + 30_000))
+                .method(method, body);
+        if (token != null) {
+            request.header("Authorization", "Bearer " + token);
+        }
+        return client.send(request.build(), HttpResponse.BodyHandlers.ofString());
+    }
+
+    /**
+     * The log of a job, sent to the coordinator in parts. A part that could not be sent is sent again with the next
+     * one. When the coordinator no longer accepts the log the job was given to another worker, and it is stopped.
+     */
+    class RemoteLog extends Writer {
+        final String path;
+        final int attempt;
+        final StringBuilder buffer = new StringBuilder();
+        // how many bytes the coordinator has
+        long sent;
+        long lastSend = System.nanoTime();
+        boolean lost;
+
+        RemoteLog(String path, int attempt) {
+            this.path = path;
+            this.attempt = attempt;
+        }
+
+        @Override
+        public synchronized void write(char[] chars, int offset, int length) throws IOException {
+            if (lost) {
+                return;
+            }
+            buffer.append(chars, offset, length);
+            if (buffer.length() >= LOG_CHUNK || System.nanoTime() - lastSend > BuildLog.FLUSH_INTERVAL) {
+                flush();
+            }
+        }
+
+        @Override
+        public synchronized void flush() throws IOException {
+            if (lost || buffer.isEmpty()) {
+                return;
+            }
+            lastSend = System.nanoTime();
+            byte[] bytes = buffer.toString().getBytes(StandardCharsets.UTF_8);
+            HttpResponse<String> response;
+            try {
+                response = send(path + "/log?attempt=" + attempt + "&offset=" + sent, HttpRequest.BodyPublishers.ofByteArray(bytes), "POST");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            } catch (IOException e) {
+                // kept for the next flush
+                System.err.println("Could not send the log: " + e);
+                return;
+            }
+            if (response.statusCode() == 204) {
+                sent += bytes.length;
+                buffer.setLength(0);
+            } else if (response.statusCode() == 409 || response.statusCode() == 404) {
+                lost = true;
+                Running job = running.get(Long.parseLong(path.substring("/jobs/".length())));
+                if (job != null) {
+                    // another worker builds it now, nobody reads this build any more
+                    job.job().supersede(job.job());
+                }
+            }
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            flush();
+        }
+    }
+}
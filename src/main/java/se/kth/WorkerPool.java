@@ -0,0 +1,412 @@
+package se.kth;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * The coordinator side of distributed builds. Worker processes (Main --worker url) register over HTTP and pull jobs
+ * with long polling, stream the log of every build back while it runs and report its result, while the coordinator
+ * keeps the build history and sends the commit statuses. A worker that misses its heartbeats is dropped and its jobs
+ * are built again by another worker, as a new attempt so anything the old worker still sends is rejected.
+ * <p>
+ * Endpoints, all under /workers/:
+ * POST register {"name", "slots"} -> {"id", "heartbeat"};
+ * GET {id}/poll -> a job or 204;
+ * POST {id}/heartbeat {"running": [job ids]} -> {"cancel": {job id: newer commit}};
+ * POST {id}/jobs/{job}/log?attempt=&offset= with the next part of the log;
+ * POST {id}/jobs/{job}/result?attempt= with the build as json.
+ * An unknown worker is answered 404 and has to register again, a stale attempt 409.
+ */
+public class WorkerPool {
+    // how long a poll waits for a job
+    static final long POLL_TIMEOUT = 20_000;
+    // how often workers send a heartbeat
+    static final long HEARTBEAT_INTERVAL = 5_000;
+    // a job is given up as failed after this many workers died building it
+    static final int MAX_ATTEMPTS = 3;
+
+    /**
+     * A registered worker process
+     */
+    static class RemoteWorker {
+        final String id;
+        final String name;
+        final int slots;
+        volatile long lastSeen = System.currentTimeMillis();
+        final Set<Assignment> running = ConcurrentHashMap.newKeySet();
+
+        RemoteWorker(String id, String name, int slots) {
+            this.id = id;
+            this.name = name;
+            this.slots = slots;
+        }
+    }
+
+    /**
+     * A job handed to the workers, with the attempt of the worker that builds it
+     */
+    static class Assignment {
+        final BuildQueue.BuildJob job;
+        // what the worker needs to build it
+        final JSONObject description;
+        final BuildLog log;
+        final CompletableFuture<Filesystem.BuildData> result = new CompletableFuture<>();
+        int attempt = 1;
+        RemoteWorker worker;
+        long assignedTime;
+        // how many bytes of the log the current attempt has sent
+        long received;
+
+        Assignment(BuildQueue.BuildJob job, JSONObject description, BuildLog log) {
+            this.job = job;
+            this.description = description;
+            this.log = log;
+        }
+    }
+
+    final Map<String, RemoteWorker> workers = new ConcurrentHashMap<>();
+    // by job id
+    final Map<Long, Assignment> assignments = new ConcurrentHashMap<>();
+    // jobs waiting for a worker, requeued jobs go first
+    final LinkedBlockingDeque<Assignment> pending = new LinkedBlockingDeque<>();
+    // a worker is dropped when it was not heard from for this long
+    long timeoutMillis = Config.getLong("CI_WORKER_TIMEOUT", 30) * 1000;
+    // every request of a worker has to send it
+    final String token;
+
+    /**
+     * @param token The shared secret of the workers. It is required, as a worker reports the results that are
+     *              sent to GitHub and the workers are answered on the port of the webhook
+     */
+    WorkerPool(String token) {
+        if (token == null || token.isBlank()) {
+            throw new IllegalArgumentException("CI_WORKER_TOKEN has to be set for distributed builds");
+        }
+        this.token = token;
+    }
+
+    /**
+     * @param authorization The Authorization header of a request, may be null
+     * @return If it has the token of the workers
+     */
+    boolean isAuthorized(String authorization) {
+        // compared in constant time, so the token cannot be guessed byte by byte
+        return authorization != null && MessageDigest.isEqual(authorization.getBytes(StandardCharsets.UTF_8),
+                ("Bearer " + token).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Drops the workers that stopped sending heartbeats, in the background
+     */
+    void start() {
+        Thread.ofVirtual().name("worker-reaper").start(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(1000);
+                    reap(System.currentTimeMillis());
+                } catch (InterruptedException e) {
+                    return;
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+    }
+
+    RemoteWorker register(String name, int slots) {
+        RemoteWorker worker = new RemoteWorker(UUID.randomUUID().toString(), name, Math.max(1, slots));
+        workers.put(worker.id, worker);
+        System.out.println("Worker " + name + " registered with " + worker.slots + " slots");
+        return worker;
+    }
+
+    /**
+     * @return How many jobs all registered workers can build at once
+     */
+    int getSlots() {
+        int slots = 0;
+        for (RemoteWorker worker : workers.values()) {
+            slots += worker.slots;
+        }
+        return slots;
+    }
+
+    /**
+     * Builds a job on a worker, blocks until it is done
+     *
+     * @param description What the worker needs to build it
+     * @param log         Where the log of the build is written
+     * @return The build as the worker reported it, only its status and measurements are used
+     */
+    Filesystem.BuildData build(BuildQueue.BuildJob job, JSONObject description, BuildLog log) throws InterruptedException {
+        Assignment assignment = new Assignment(job, description, log);
+        assignments.put(job.id, assignment);
+        pending.addLast(assignment);
+        try {
+            while (true) {
+                try {
+                    return assignment.result.get(1, TimeUnit.SECONDS);
+                } catch (TimeoutException e) {
+                    // a worker is told on its next heartbeat, a job that no worker has yet is finished here
+                    if (job.isSuperseded() && pending.remove(assignment)) {
+                        log.append("\n==== Superseded by ").append(job.supersededBy.commitId).append(" before a worker took it ====\n");
+                        return result(job, Filesystem.BuildStatus.SUPERSEDED);
+                    }
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException(e.getCause());
+                }
+            }
+        } catch (IOException e) {
+            return result(job, Filesystem.BuildStatus.FAILED_SETUP);
+        } finally {
+            assignments.remove(job.id);
+        }
+    }
+
+    static Filesystem.BuildData result(BuildQueue.BuildJob job, Filesystem.BuildStatus status) {
+        Filesystem.BuildData build = new Filesystem.BuildData(null, status, job.commitId);
+        build.tree = job.tree;
+        return build;
+    }
+
+    /**
+     * Waits for a job for a worker
+     *
+     * @return The job, or null if there was none
+     */
+    Assignment poll(RemoteWorker worker, long timeoutMillis) throws InterruptedException {
+        long end = System.currentTimeMillis() + timeoutMillis;
+        long wait;
+        while ((wait = end - System.currentTimeMillis()) > 0) {
+            worker.lastSeen = System.currentTimeMillis();
+            Assignment assignment = pending.pollFirst(Math.min(wait, 1000), TimeUnit.MILLISECONDS);
+            if (assignment == null) {
+                continue;
+            }
+            synchronized (assignment) {
+                if (!workers.containsKey(worker.id)) {
+                    // dropped while it was waiting
+                    pending.addFirst(assignment);
+                    return null;
+                }
+                if (assignment.job.isSuperseded()) {
+                    // e.g. requeued after a newer push, it does not have to be built again
+                    assignment.result.complete(result(assignment.job, Filesystem.BuildStatus.SUPERSEDED));
+                    continue;
+                }
+                assignment.worker = worker;
+                assignment.assignedTime = System.currentTimeMillis();
+                assignment.received = 0;
+                worker.running.add(assignment);
+            }
+            return assignment;
+        }
+        return null;
+    }
+
+    /**
+     * @param running The jobs the worker is building
+     * @return The jobs the worker has to stop, by job id with the commit that superseded them
+     */
+    JSONObject heartbeat(RemoteWorker worker, Set<Long> running) {
+        long now = System.currentTimeMillis();
+        worker.lastSeen = now;
+        JSONObject cancel = new JSONObject();
+        for (Assignment assignment : worker.running) {
+            if (!running.contains(assignment.job.id) && now - assignment.assignedTime > timeoutMillis) {
+                // the worker never got the job, e.g. the poll response was lost
+                requeue(assignment, worker, "Worker " + worker.name + " is not building it");
+            } else if (assignment.job.isSuperseded()) {
+                cancel.put(Long.toString(assignment.job.id), assignment.job.supersededBy.commitId);
+            }
+        }
+        return cancel;
+    }
+
+    /**
+     * @return The assignment if the worker builds it in this attempt, otherwise null
+     */
+    Assignment get(RemoteWorker worker, long jobId, int attempt) {
+        Assignment assignment = assignments.get(jobId);
+        if (assignment == null || assignment.worker != worker || assignment.attempt != attempt || assignment.result.isDone()) {
+            return null;
+        }
+        return assignment;
+    }
+
+    /**
+     * Appends the next part of a log, a part that was already received is ignored
+     *
+     * @param offset Where the text starts in the log of the attempt, in bytes
+     * @return If the text was accepted
+     */
+    boolean appendLog(RemoteWorker worker, long jobId, int attempt, long offset, byte[] text) throws IOException {
+        Assignment assignment = get(worker, jobId, attempt);
+        if (assignment == null) {
+            return false;
+        }
+        synchronized (assignment) {
+            if (assignment.worker != worker || assignment.attempt != attempt || offset > assignment.received) {
+                return false;
+            }
+            // a retry of a part that arrived
+            int skip = (int) Math.min(text.length, assignment.received - offset);
+            if (skip < text.length) {
+                assignment.log.write(new String(text, skip, text.length - skip, StandardCharsets.UTF_8));
+                assignment.received += text.length - skip;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Finishes a job with the build the worker reported
+     *
+     * @return If the result was accepted
+     */
+    boolean finish(RemoteWorker worker, long jobId, int attempt, Filesystem.BuildData build) {
+        Assignment assignment = get(worker, jobId, attempt);
+        if (assignment == null) {
+            return false;
+        }
+        synchronized (assignment) {
+            if (assignment.worker != worker || assignment.attempt != attempt) {
+                return false;
+            }
+            worker.running.remove(assignment);
+            return assignment.result.complete(build);
+        }
+    }
+
+    /**
+     * Drops the workers that were not heard from for too long, their jobs go back to the front of the queue
+     */
+    void reap(long now) {
+        for (RemoteWorker worker : workers.values()) {
+            if (now - worker.lastSeen > timeoutMillis) {
+                workers.remove(worker.id);
+                System.err.println("Worker " + worker.name + " stopped responding");
+                for (Assignment assignment : worker.running) {
+                    requeue(assignment, worker, "Worker " + worker.name + " stopped responding");
+                }
+            }
+        }
+    }
+
+    void requeue(Assignment assignment, RemoteWorker worker, String reason) {
+        synchronized (assignment) {
+            worker.running.remove(assignment);
+            if (assignment.worker != worker || assignment.result.isDone()) {
+                return;
+            }
+            assignment.worker = null;
+            assignment.attempt++;
+            try {
+                if (assignment.attempt > MAX_ATTEMPTS) {
+                    assignment.log.append("\n==== ").append(reason).append(", giving up ====\n");
+                    assignment.result.complete(result(assignment.job, Filesystem.BuildStatus.FAILED_SETUP));
+                    return;
+                }
+                assignment.log.append("\n==== ").append(reason).append(", building again ====\n");
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            pending.addFirst(assignment);
+        }
+    }
+
+    /**
+     * Answers a request of a worker
+     *
+     * @param target The path after /workers/
+     */
+    void handle(String target, HttpServletRequest request, HttpServletResponse response) throws IOException, InterruptedException {
+        response.setContentType("application/json;charset=utf-8");
+        if (!isAuthorized(request.getHeader("Authorization"))) {
+            response.setStatus(HttpServletResponse.SC_UNAUTHORIZED);
+            return;
+        }
+        String[] parts = target.split("/");
+        if (parts.length == 1 && parts[0].equals("register")) {
+            JSONObject json = new JSONObject(new String(request.getInputStream().readAllBytes(), StandardCharsets.UTF_8));
+            RemoteWorker worker = register(json.optString("name", request.getRemoteAddr()), json.optInt("slots", 1));
+            respond(response, new JSONObject().put("id", worker.id).put("heartbeat", HEARTBEAT_INTERVAL));
+            return;
+        }
+        RemoteWorker worker = workers.get(parts[0]);
+        if (worker == null) {
+            response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+
+        if (parts.length == 2 && parts[1].equals("poll")) {
+            Assignment assignment = poll(worker, POLL_TIMEOUT);
+            if (assignment == null) {
+                response.setStatus(HttpServletResponse.SC_NO_CONTENT);
+            } else {
+                respond(response, new JSONObject(assignment.description.toMap()).put("attempt", assignment.attempt));
+            }
+        } else if (parts.length == 2 && parts[1].equals("heartbeat")) {
+            JSONObject json = new JSONObject(new String(request.getInputStream().readAllBytes(), StandardCharsets.UTF_8));
+            Set<Long> running = new HashSet<>();
+            JSONArray array = json.optJSONArray("running");
+            for (int i = 0; array != null && i < array.length(); i++) {
+                running.add(array.getLong(i));
+            }
+            respond(response, new JSONObject().put("cancel", heartbeat(worker, running)));
+        } else if (parts.length == 4 && parts[1].equals("jobs")) {
+            long jobId;
+            int attempt;
+            long offset;
+            try {
+                jobId = Long.parseLong(parts[2]);
+                attempt = Integer.parseInt(request.getParameter("attempt"));
+                offset = parts[3].equals("log") ? Long.parseLong(request.getParameter("offset")) : 0;
+            } catch (NumberFormatException e) {
+                response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+                return;
+            }
+            byte[] body = request.getInputStream().readAllBytes();
+            boolean accepted = switch (parts[3]) {
+                case "log" -> appendLog(worker, jobId, attempt, offset, body);
+                case "result" -> finish(worker, jobId, attempt,
+                        new Filesystem.BuildData(new JSONObject(new String(body, StandardCharsets.UTF_8)), null));
+                default -> false;
+            };
+            worker.lastSeen = System.currentTimeMillis();
+            response.setStatus(accepted ? HttpServletResponse.SC_NO_CONTENT : HttpServletResponse.SC_CONFLICT);
+        } else {
+            response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+        }
+    }
+
+    static void respond(HttpServletResponse response, JSONObject json) throws IOException {
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.getWriter().write(json.toString());
+    }
+
+    /**
+     * @return The workers and their jobs for the web interface
+     */
+    JSONObject toJson() {
+        JSONArray array = new JSONArray();
+        for (RemoteWorker worker : workers.values()) {
+            JSONArray running = new JSONArray();
+            worker.running.forEach(assignment -> running.put(assignment.job.id));
+            array.put(new JSONObject()
+                    .put("name", worker.name)
+                    .put("slots", worker.slots)
+                    .put("lastSeen", worker.lastSeen)
+                    .put("running", running));
+        }
+        return new JSONObject().put("workers", array).put("queued", pending.size());
+    }
+}
@@ -0,0 +1,117 @@
+package se.kth;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded pool of build directories, so every running build has its own checkout.
+ * Released directories are moved away and deleted in the background, so a build never waits on a delete.
+ */
+public class WorkspacePool {
+    final File root;
+    final File trash;
+    final BlockingQueue<File> free = new LinkedBlockingQueue<>();
+    final ExecutorService cleaner = Executors.newSingleThreadExecutor(Thread.ofVirtual().name("ci-workspace-cleaner").factory());
+    final AtomicLong trashCounter = new AtomicLong();
+    final int size;
+
+    /**
+     * @param rootDirectory The directory that will contain all workspaces, e.g. .serverbuild
+     * @param size          How many workspaces there are, this is how many builds can run at the same time
+     */
+    WorkspacePool(String rootDirectory, int size) {
+        this.root = new File(rootDirectory);
+        this.trash = new File(root, ".trash");
+        this.size = Math.max(1, size);
+
+        // anything left from a previous run is thrown away
+        File[] old = root.listFiles();
+        if (old != null) {
+            for (File file : old) {
+                if (!file.equals(trash)) {
+                    discard(file);
+                }
+            }
+        }
+        cleaner.submit(this::emptyTrash);
+
+        for (int i = 0; i < this.size; i++) {
+            File workspace = new File(root, Integer.toString(i));
+            Boolean _ = workspace.mkdirs();
+            free.add(workspace);
+        }
+    }
+
+    /**
+     * Takes a clean workspace, blocks if all of them are used
+     *
+     * @return An empty directory that only the caller uses until it is released
+     */
+    public File acquire() throws InterruptedException {
+        return free.take();
+    }
+
+    /**
+     * Gives back a workspace, its content is removed in the background
+     *
+     * @param workspace A directory from acquire()
+     */
+    public void release(File workspace) {
+        if (discard(workspace) && workspace.mkdirs()) {
+            free.add(workspace);
+            cleaner.submit(this::emptyTrash);
+        } else {
+            // could not move it, so clean it in place before it is reused
+            cleaner.submit(() -> {
+                try {
+                    FileUtils.cleanDirectory(workspace);
+                } catch (Throwable t) {
+                    t.printStackTrace();
+                }
+                Boolean _ = workspace.mkdirs();
+                free.add(workspace);
+            });
+        }
+    }
+
+    /**
+     * @return How many workspaces are not used by a build
+     */
+    public int getFreeCount() {
+        return free.size();
+    }
+
+    /**
+     * Moves a file into the trash directory, a rename is constant time unlike a recursive delete
+     *
+     * @return If the file no longer exists at its old place
+     */
+    boolean discard(File file) {
+        if (!file.exists()) {
+            return true;
+        }
+        Boolean _ = trash.mkdirs();
+        return file.renameTo(new File(trash, file.getName() + "-" + System.nanoTime() + "-" + trashCounter.getAndIncrement()));
+    }
+
+    /**
+     * Deletes everything in the trash directory
+     */
+    void emptyTrash() {
+        try {
+            if (trash.exists()) {
+                FileUtils.cleanDirectory(trash);
+            }
+        } catch (IOException e) {
+            // a later release will try again
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package se.kth;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class BuildIndexTest {
+    File root;
+
+    @Before
+    public void setUp() throws IOException {
+        root = Files.createTempDirectory("buildindex").toFile();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(root);
+    }
+
+    static void save(Filesystem filesystem, String branch, String commit) throws IOException {
+        filesystem.saveToFile("owner", "repo", branch, commit, new StringWriter(), Filesystem.BuildStatus.SUCCESS);
+    }
+
+    @Test
+    public void startupScanTest() throws IOException {
+        save(new Filesystem(root.getPath(), false), "main", "a");
+        Filesystem filesystem = new Filesystem(root.getPath(), false);
+        assertEquals(1, filesystem.getBuildCount("/owner/repo/main"));
+        Object[] items = (Object[]) filesystem.getDirectory("/owner");
+        assertEquals(new File(new File(root, "owner"), "repo"), items[0]);
+    }
+
+    @Test
+    public void paginationTest() throws IOException {
+        Filesystem filesystem = new Filesystem(root.getPath(), false);
+        for (int i = 0; i < 5; i++) {
+            save(filesystem, "main", "c" + i);
+        }
+        assertEquals(5, filesystem.getBuildCount("owner/repo/main"));
+        // the first page has the newest builds
+        Object[] page = (Object[]) filesystem.getDirectory("owner/repo/main", 0, 2);
+        assertEquals("c4", ((Filesystem.BuildData) page[0]).commit);
+        assertEquals("c3", ((Filesystem.BuildData) page[1]).commit);
+        page = (Object[]) filesystem.getDirectory("owner/repo/main", 4, 2);
+        assertEquals(1, page.length);
+        assertEquals("c0", ((Filesystem.BuildData) page[0]).commit);
+    }
+
+    static Filesystem.BuildData build(File branch, String commit, long time) {
+        Filesystem.BuildData build = new Filesystem.BuildData(branch, Filesystem.BuildStatus.SUCCESS, commit);
+        build.time = time;
+        return build;
+    }
+
+    static List<String> commits(BuildIndex.Node node) {
+        return node.getBuilds().stream().map(build -> build.commit).toList();
+    }
+
+    @Test
+    public void putAndRemoveTest() {
+        BuildIndex index = new BuildIndex(root);
+        File branch = new File(root, "owner/repo/main");
+        Filesystem.BuildData first = build(branch, "a", 1);
+        index.load(List.of(build(branch, "c", 3), first));
+        BuildIndex.Node node = index.get("owner/repo/main");
+        assertEquals(List.of("a", "c"), commits(node));
+
+        for (int i = 0; i < 20; i++) {
+            index.put(build(branch, "n" + i, 10 + i));
+        }
+        List<Filesystem.BuildData> before = node.getBuilds();
+        // out of order, and a new build of a commit that is there
+        index.put(build(branch, "b", 2));
+        Filesystem.BuildData rebuilt = build(branch, "c", 100);
+        index.put(rebuilt);
+        assertEquals(22, before.size());
+        assertEquals(23, node.getBuilds().size());
+        assertEquals(List.of("a", "b", "n0"), commits(node).subList(0, 3));
+        assertEquals("c", node.getBuilds().getLast().commit);
+
+        // the oldest build, one in the middle, and one that was replaced
+        index.remove(first);
+        index.remove(node.getBuilds().get(5));
+        index.remove(build(branch, "c", 3));
+        assertEquals(21, node.getBuilds().size());
+        assertEquals(List.of("b", "n0", "n1", "n2", "n3", "n5"), commits(node).subList(0, 6));
+        assertSame(rebuilt, node.getBuilds().getLast());
+        // a view that was read before does not change
+        assertEquals("a", before.getFirst().commit);
+    }
+}
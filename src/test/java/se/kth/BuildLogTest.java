@@ -0,0 +1,70 @@
+package se.kth;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+public class BuildLogTest {
+
+    @Test
+    public void tailKeepsEndTest() {
+        LogTail tail = new LogTail(4);
+        tail.append("ab");
+        assertEquals("ab", tail.toString());
+        assertFalse(tail.isTruncated());
+        tail.append("cdef");
+        assertEquals("cdef", tail.toString());
+        tail.append("g");
+        assertEquals("defg", tail.toString());
+        tail.append("0123456789");
+        assertEquals("6789", tail.toString());
+        assertTrue(tail.isTruncated());
+    }
+
+    @Test
+    public void logIsWrittenToFileTest() throws IOException {
+        File file = Files.createTempFile("build", ".log").toFile();
+        try (BuildLog log = new BuildLog(file)) {
+            for (int i = 0; i < BuildLog.TAIL_SIZE; i++) {
+                log.write("line\n");
+            }
+            log.write("last\n");
+            assertTrue(log.getTail().endsWith("line\nlast\n"));
+            assertEquals(BuildLog.TAIL_SIZE, log.getTail().length());
+        }
+        assertEquals(BuildLog.TAIL_SIZE * 5L + 5, file.length());
+        assertTrue(FileUtils.readFileToString(file, StandardCharsets.UTF_8).endsWith("last\n"));
+        Boolean _ = file.delete();
+    }
+
+    @Test
+    public void largeStderrDoesNotBlockTest() throws Exception {
+        File file = Files.createTempFile("build", ".log").toFile();
+        try (BuildLog log = new BuildLog(file)) {
+            // more than fits in a pipe, written before anything on stdout
+            ContinuousIntegration.startProcess(log, null, "failed", null, "sh", "-c", "i=0; while [ $i -lt 20000 ]; do echo error $i >&2; i=$((i+1)); done; echo done");
+        }
+        String content = FileUtils.readFileToString(file, StandardCharsets.UTF_8);
+        assertTrue(content.contains("] done\n"));
+        assertTrue(content.contains("[stderr] error 19999\n"));
+        Boolean _ = file.delete();
+    }
+
+    @Test
+    public void failedProcessKeepsTailTest() {
+        ProcessException e = assertThrows(ProcessException.class, () -> ContinuousIntegration.startProcess(new StringWriter(), null, "failed", null, "sh", "-c", "echo out; echo err >&2; exit 3"));
+        assertEquals(3, e.code);
+        assertEquals("out\n", e.stdout);
+        assertEquals("err\n", e.stderr);
+    }
+}
@@ -0,0 +1,127 @@
+package se.kth;
+
+import org.junit.Test;
+
+import java.io.Writer;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BuildQueueTest {
+
+    @Test
+    public void submitDoesNotWaitForBuildTest() throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        BuildQueue queue = new BuildQueue(1, job -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                return Filesystem.BuildStatus.FAILED_SETUP;
+            }
+            return Filesystem.BuildStatus.SUCCESS;
+        });
+
+        BuildQueue.BuildJob first = queue.submit("url", "owner", "repo", "main", "a");
+        BuildQueue.BuildJob second = queue.submit("url", "owner", "repo", "feature", "b");
+        assertEquals(Filesystem.BuildStatus.PENDING, first.status);
+
+        release.countDown();
+        waitFor(second);
+        assertEquals(Filesystem.BuildStatus.SUCCESS, first.status);
+        assertEquals(Filesystem.BuildStatus.SUCCESS, second.status);
+        assertEquals(0, queue.getQueueDepth());
+        queue.shutdown();
+    }
+
+    @Test
+    public void failingRunnerTest() throws InterruptedException {
+        BuildQueue queue = new BuildQueue(2, job -> {
+            throw new RuntimeException("broken");
+        });
+        BuildQueue.BuildJob job = queue.submit("url", "owner", "repo", "main", "a");
+        waitFor(job);
+        assertEquals(Filesystem.BuildStatus.FAILED_SETUP, job.status);
+        assertEquals(job, queue.getJob(job.id));
+        queue.shutdown();
+    }
+
+    @Test
+    public void queuedJobIsReplacedTest() throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        List<BuildQueue.BuildJob> superseded = new CopyOnWriteArrayList<>();
+        BuildQueue queue = new BuildQueue(1, job -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                return Filesystem.BuildStatus.FAILED_SETUP;
+            }
+            return Filesystem.BuildStatus.SUCCESS;
+        }, superseded::add);
+        queue.supersede = true;
+
+        BuildQueue.BuildJob blocking = queue.submit("url", "owner", "repo", "other", "x");
+        waitUntilRunning(blocking);
+        BuildQueue.BuildJob first = queue.submit("url", "owner", "repo", "main", "a");
+        BuildQueue.BuildJob second = queue.submit("url", "owner", "repo", "main", "b");
+        assertEquals(Filesystem.BuildStatus.SUPERSEDED, first.status);
+        assertEquals(second, first.supersededBy);
+        assertEquals(List.of(first), superseded);
+        assertEquals(1, queue.getQueueDepth());
+
+        release.countDown();
+        waitFor(second);
+        assertEquals(Filesystem.BuildStatus.SUCCESS, second.status);
+        queue.shutdown();
+    }
+
+    @Test
+    public void runningJobIsCancelledTest() throws InterruptedException {
+        BuildQueue queue = new BuildQueue(2, job -> {
+            try {
+                if (job.commitId.equals("a")) {
+                    // the shell starts sleep as a child, which also has to be killed for the output to close
+                    ContinuousIntegration.startProcess(Writer.nullWriter(), null, "sleep", null, "sh", "-c", "sleep 60; true");
+                }
+                return Filesystem.BuildStatus.SUCCESS;
+            } catch (CancellationException e) {
+                return Filesystem.BuildStatus.SUPERSEDED;
+            } catch (Exception e) {
+                return Filesystem.BuildStatus.FAILED_SETUP;
+            }
+        });
+        queue.supersede = true;
+
+        BuildQueue.BuildJob first = queue.submit("url", "owner", "repo", "main", "a");
+        waitUntilRunning(first);
+        while (first.processes.isEmpty()) {
+            Thread.sleep(5);
+        }
+        BuildQueue.BuildJob second = queue.submit("url", "owner", "repo", "main", "b");
+        waitFor(first);
+        waitFor(second);
+        assertEquals(Filesystem.BuildStatus.SUPERSEDED, first.status);
+        assertEquals(Filesystem.BuildStatus.SUCCESS, second.status);
+        queue.shutdown();
+    }
+
+    static void waitUntilRunning(BuildQueue.BuildJob job) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (job.state == BuildQueue.JobState.QUEUED) {
+            assertTrue(System.nanoTime() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    static void waitFor(BuildQueue.BuildJob job) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (job.state != BuildQueue.JobState.FINISHED) {
+            assertTrue(System.nanoTime() < deadline);
+            Thread.sleep(5);
+        }
+    }
+}
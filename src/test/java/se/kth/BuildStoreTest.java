@@ -0,0 +1,215 @@
+package se.kth;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BuildStoreTest {
+    File root;
+
+    @Before
+    public void setUp() throws IOException {
+        root = Files.createTempDirectory("buildstore").toFile();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(root);
+    }
+
+    Filesystem.BuildData build(String branch, String commit, Filesystem.BuildStatus status, long time) {
+        Filesystem.BuildData build = new Filesystem.BuildData(new File(root, "owner/repo/" + branch), status, commit);
+        build.time = time;
+        return build;
+    }
+
+    BuildStore open() throws IOException {
+        BuildStore store = new BuildStore(root);
+        store.load();
+        return store;
+    }
+
+    @Test
+    public void reloadTest() throws IOException {
+        BuildStore store = open();
+        store.append(build("main", "a", Filesystem.BuildStatus.FAILED_TO_TEST, 10));
+        store.append(build("main", "b", Filesystem.BuildStatus.SUCCESS, 20));
+        store.append(build("main", "a", Filesystem.BuildStatus.SUCCESS, 30));
+        store.close();
+
+        BuildStore loaded = open();
+        assertEquals(2, loaded.builds.size());
+        Filesystem.BuildData a = loaded.get("owner/repo/main", "a");
+        assertEquals(Filesystem.BuildStatus.SUCCESS, a.status);
+        // the time of the build, not of when it was written
+        assertEquals(30L, (long) a.time);
+        assertEquals(new File(root, "owner/repo/main/a.log").getAbsoluteFile(), a.getLogFile().getAbsoluteFile());
+        loaded.close();
+    }
+
+    @Test
+    public void stagesTest() throws IOException {
+        Filesystem filesystem = new Filesystem(root.getPath(), false);
+        Filesystem.BuildData build = filesystem.saveToFile("owner", "repo", "main", "a", new StringWriter(), Filesystem.BuildStatus.SUCCESS,
+                null, null, saved -> {
+                    saved.stages.putAll(Map.of(Metrics.Stage.CLONE, 12L, Metrics.Stage.TEST, 3400L));
+                    saved.tests.put("se.kth.SomeTest", 1200L);
+                });
+        assertTrue(build.stages.containsKey(Metrics.Stage.PERSIST));
+        filesystem.recordStage(build, Metrics.Stage.NOTIFY, 56);
+        filesystem.close();
+
+        Filesystem.BuildData loaded = open().get("owner/repo/main", "a");
+        assertEquals(12L, (long) loaded.stages.get(Metrics.Stage.CLONE));
+        assertEquals(3400L, (long) loaded.stages.get(Metrics.Stage.TEST));
+        assertEquals(56L, (long) loaded.stages.get(Metrics.Stage.NOTIFY));
+        assertFalse(loaded.stages.containsKey(Metrics.Stage.COMPILE));
+        assertEquals(Map.of("se.kth.SomeTest", 1200L), loaded.tests);
+    }
+
+    @Test
+    public void brokenTailIsIgnoredTest() throws IOException {
+        BuildStore store = open();
+        store.append(build("main", "a", Filesystem.BuildStatus.SUCCESS, 10));
+        store.close();
+        File segment = store.segmentFile(store.activeId);
+        long valid = segment.length();
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            // a record that was only partly written
+            file.seek(valid);
+            file.writeInt(100);
+            file.writeInt(0);
+            file.write("{\"com".getBytes(StandardCharsets.UTF_8));
+        }
+
+        BuildStore loaded = open();
+        assertEquals(1, loaded.builds.size());
+        assertEquals(valid, segment.length());
+        loaded.append(build("main", "b", Filesystem.BuildStatus.SUCCESS, 20));
+        loaded.close();
+        assertEquals(2, open().builds.size());
+    }
+
+    @Test
+    public void compactTest() throws IOException {
+        BuildStore store = open();
+        for (int i = 0; i < 50; i++) {
+            store.append(build("main", "a", Filesystem.BuildStatus.SUCCESS, i));
+        }
+        store.append(build("feature", "b", Filesystem.BuildStatus.SUCCESS, 100));
+        long before = store.activeId;
+        store.compact();
+        assertEquals(1, store.segments().length);
+        assertFalse(store.segmentFile(before).exists());
+        assertEquals(2, store.records);
+        store.close();
+
+        BuildStore loaded = open();
+        assertEquals(49L, (long) loaded.get("owner/repo/main", "a").time);
+        assertEquals(2, loaded.records);
+        assertNull(loaded.get("owner/repo/main", "b"));
+        loaded.close();
+    }
+
+    @Test
+    public void appendDuringCompactionTest() throws Exception {
+        BuildStore store = open();
+        for (int i = 0; i < 2000; i++) {
+            store.append(build("main", "c" + i % 100, Filesystem.BuildStatus.SUCCESS, i));
+        }
+        Thread compaction = Thread.ofVirtual().start(() -> {
+            try {
+                store.compact();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        // appends are not held up by the compaction, and none is lost
+        for (int i = 0; i < 100; i++) {
+            store.append(build("main", "c" + i, Filesystem.BuildStatus.FAILED_TO_TEST, 5000 + i));
+        }
+        store.remove(store.get("owner/repo/main", "c0"));
+        compaction.join();
+        long records = store.records;
+        store.close();
+
+        BuildStore loaded = open();
+        assertEquals(records, loaded.records);
+        assertEquals(99, loaded.builds.size());
+        assertNull(loaded.get("owner/repo/main", "c0"));
+        assertEquals(5099L, (long) loaded.get("owner/repo/main", "c99").time);
+        assertEquals(Filesystem.BuildStatus.FAILED_TO_TEST, loaded.get("owner/repo/main", "c1").status);
+        loaded.close();
+    }
+
+    @Test
+    public void reusedResultTest() throws IOException {
+        Filesystem filesystem = new Filesystem(root.getPath(), false);
+        filesystem.saveToFile("owner", "repo", "main", "a", new StringWriter(), Filesystem.BuildStatus.FAILED_TO_TEST, "tree", "config");
+        filesystem.saveToFile("owner", "repo", "main", "b", new StringWriter(), Filesystem.BuildStatus.FAILED_SETUP, "other", "config");
+        assertNull(filesystem.findResult("tree", "changed"));
+        // a failed setup says nothing about the tree
+        assertNull(filesystem.findResult("other", "config"));
+
+        Filesystem.BuildData result = filesystem.findResult("tree", "config");
+        filesystem.saveReusedResult("owner", "repo", "feature", "c", result);
+        filesystem.close();
+
+        Filesystem loaded = new Filesystem(root.getPath(), false);
+        Filesystem.BuildData reused = loaded.store.get("owner/repo/feature", "c");
+        assertEquals(Filesystem.BuildStatus.FAILED_TO_TEST, reused.status);
+        assertEquals(new File(root, "owner/repo/main/a.log").getAbsoluteFile(), reused.getLogFile().getAbsoluteFile());
+        assertEquals("a", loaded.findResult("tree", "config").commit);
+        loaded.close();
+    }
+
+    @Test
+    public void failedResultTest() throws IOException {
+        Filesystem filesystem = new Filesystem(root.getPath(), false);
+        filesystem.saveToFile("owner", "repo", "main", "a", new StringWriter(), Filesystem.BuildStatus.FAILED_TO_TEST, "flaky", "config",
+                saved -> saved.flakyTests.add("se.kth.FooTest#test"));
+        // a flaky test may pass when the tree is built again
+        assertNull(filesystem.findResult("flaky", "config"));
+
+        filesystem.saveToFile("owner", "repo", "main", "b", new StringWriter(), Filesystem.BuildStatus.FAILED_TO_TEST, "old", "config",
+                saved -> saved.time = System.currentTimeMillis() - 2000);
+        filesystem.saveToFile("owner", "repo", "main", "c", new StringWriter(), Filesystem.BuildStatus.SUCCESS, "passed", "config",
+                saved -> saved.time = System.currentTimeMillis() - 2000);
+        filesystem.store.failedResultMillis = 1000;
+        assertNull(filesystem.findResult("old", "config"));
+        assertEquals("c", filesystem.findResult("passed", "config").commit);
+        filesystem.store.failedResultMillis = 0;
+        assertEquals("b", filesystem.findResult("old", "config").commit);
+        filesystem.close();
+    }
+
+    @Test
+    public void migrateTest() throws IOException {
+        File branch = new File(root, "owner/repo/main");
+        Boolean _ = branch.mkdirs();
+        FileUtils.writeStringToFile(new File(branch, "abc.json"), "{\"commit\": \"abc\", \"time\": 1, \"status\": \"SUCCESS\"}", StandardCharsets.UTF_8);
+
+        Filesystem filesystem = new Filesystem(root.getPath(), false);
+        assertEquals(1, filesystem.getBuildCount("owner/repo/main"));
+        assertFalse(new File(branch, "abc.json").exists());
+        filesystem.close();
+
+        // only migrated once, and then read from the store
+        assertEquals(1, new Filesystem(root.getPath(), false).getBuildCount("owner/repo/main"));
+    }
+}
@@ -0,0 +1,88 @@
+package se.kth;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CompressedLogTest {
+    File root;
+
+    @Before
+    public void setUp() throws IOException {
+        root = Files.createTempDirectory("compressedlog").toFile();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(root);
+    }
+
+    static byte[] createLog(File file, int lines) throws IOException {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            builder.append("[INFO] line ").append(i).append('\n');
+        }
+        byte[] content = builder.toString().getBytes(StandardCharsets.UTF_8);
+        Files.write(file.toPath(), content);
+        return content;
+    }
+
+    @Test
+    public void randomAccessTest() throws IOException {
+        File log = new File(root, "abc.log");
+        byte[] content = createLog(log, 100_000);
+        assertTrue(content.length > 2 * CompressedLog.BLOCK_SIZE);
+
+        CompressedLog.compress(log);
+        assertFalse(log.exists());
+        assertTrue(CompressedLog.exists(log));
+
+        CompressedLog compressed = new CompressedLog(log);
+        assertEquals(content.length, compressed.length());
+        assertTrue(compressed.offsets.length > 2);
+        for (long offset : new long[]{0, 1, CompressedLog.BLOCK_SIZE - 1, CompressedLog.BLOCK_SIZE, CompressedLog.BLOCK_SIZE + 7, content.length - 3}) {
+            try (InputStream in = compressed.open(offset)) {
+                byte[] read = in.readNBytes(100);
+                int end = (int) Math.min(content.length, offset + 100);
+                assertArrayEquals(Arrays.copyOfRange(content, (int) offset, end), read);
+            }
+        }
+        try (InputStream in = compressed.open(content.length)) {
+            assertEquals(-1, in.read());
+        }
+
+        // still a normal gzip file
+        try (InputStream in = new GZIPInputStream(Files.newInputStream(CompressedLog.compressedFile(log).toPath()))) {
+            assertArrayEquals(content, in.readAllBytes());
+        }
+    }
+
+    @Test
+    public void savedLogIsCompressedTest() throws IOException {
+        Filesystem filesystem = new Filesystem(root.getPath(), false);
+        StringWriter log = new StringWriter();
+        log.write("<build> output");
+        filesystem.saveToFile("owner", "repo", "main", "abc", log, Filesystem.BuildStatus.SUCCESS);
+
+        Filesystem.LogData data = (Filesystem.LogData) filesystem.getDirectory("owner/repo/main/abc.log");
+        assertTrue(data.isCompressed());
+        assertEquals("<build> output", data.toString());
+        assertEquals(1, filesystem.getBuildCount("owner/repo/main"));
+        assertEquals("&lt;build&gt; output", data.toHtml());
+    }
+}
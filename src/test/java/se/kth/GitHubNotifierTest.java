@@ -0,0 +1,147 @@
+package se.kth;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class GitHubNotifierTest {
+    HttpServer server;
+    // the states that reached the stub, in order
+    final List<String> received = new CopyOnWriteArrayList<>();
+    // decides the response code of every request
+    volatile Function<HttpExchange, Integer> responder = _ -> 201;
+    GitHubNotifier notifier;
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        server.createContext("/", exchange -> {
+            String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+            assertEquals("Bearer token", exchange.getRequestHeaders().getFirst("Authorization"));
+            int code = responder.apply(exchange);
+            if (code == 201) {
+                received.add(exchange.getRequestURI().getPath() + " " + new JSONObject(body).getString("state"));
+            }
+            exchange.sendResponseHeaders(code, -1);
+            exchange.close();
+        });
+        server.start();
+        notifier = new GitHubNotifier("http://127.0.0.1:" + server.getAddress().getPort() + "/", "token");
+        notifier.backoffMillis = 10;
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    public void orderedPerCommitTest() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        responder = _ -> {
+            try {
+                release.await();
+            } catch (InterruptedException _) {
+            }
+            return 201;
+        };
+        CompletableFuture<Boolean> pending = notifier.notify("abc", "owner", "repo", Filesystem.BuildStatus.PENDING);
+        // the first pending status is being sent, the second comes after the final status was queued
+        while (notifier.queued.get("owner/repo/abc").size() > 0) {
+            Thread.sleep(1);
+        }
+        CompletableFuture<Boolean> success = notifier.notify("abc", "owner", "repo", Filesystem.BuildStatus.SUCCESS);
+        CompletableFuture<Boolean> late = notifier.notify("abc", "owner", "repo", Filesystem.BuildStatus.PENDING);
+        assertFalse(late.get(1, TimeUnit.SECONDS));
+
+        release.countDown();
+        assertTrue(pending.get(10, TimeUnit.SECONDS));
+        assertTrue(success.get(10, TimeUnit.SECONDS));
+        assertEquals(List.of("/repos/owner/repo/statuses/abc pending", "/repos/owner/repo/statuses/abc success"), received);
+    }
+
+    @Test
+    public void queuedPendingIsDroppedTest() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        responder = _ -> {
+            try {
+                release.await();
+            } catch (InterruptedException _) {
+            }
+            return 201;
+        };
+        CompletableFuture<Boolean> first = notifier.notify("abc", "owner", "repo", Filesystem.BuildStatus.FAILED_TO_TEST);
+        while (notifier.queued.get("owner/repo/abc").size() > 0) {
+            Thread.sleep(1);
+        }
+        notifier.finished.clear();
+        CompletableFuture<Boolean> pending = notifier.notify("abc", "owner", "repo", Filesystem.BuildStatus.PENDING);
+        CompletableFuture<Boolean> last = notifier.notify("abc", "owner", "repo", Filesystem.BuildStatus.SUCCESS);
+        release.countDown();
+        assertTrue(first.get(10, TimeUnit.SECONDS));
+        assertFalse(pending.get(10, TimeUnit.SECONDS));
+        assertTrue(last.get(10, TimeUnit.SECONDS));
+        assertEquals(2, received.size());
+    }
+
+    @Test
+    public void rebuildSendsPendingTest() throws Exception {
+        assertTrue(notifier.notify("abc", "owner", "repo", Filesystem.BuildStatus.FAILED_TO_TEST).get(10, TimeUnit.SECONDS));
+        // the same commit is built again, e.g. after its failed result expired
+        notifier.building("abc", "owner", "repo");
+        assertTrue(notifier.notify("abc", "owner", "repo", Filesystem.BuildStatus.PENDING).get(10, TimeUnit.SECONDS));
+        assertTrue(notifier.notify("abc", "owner", "repo", Filesystem.BuildStatus.SUCCESS).get(10, TimeUnit.SECONDS));
+        assertEquals(List.of("/repos/owner/repo/statuses/abc failure", "/repos/owner/repo/statuses/abc pending",
+                "/repos/owner/repo/statuses/abc success"), received);
+    }
+
+    @Test
+    public void retryTest() {
+        List<Integer> codes = new ArrayList<>(List.of(502, 500));
+        responder = _ -> codes.isEmpty() ? 201 : codes.removeFirst();
+        assertTrue(notifier.send("abc", "owner", "repo", Filesystem.BuildStatus.SUCCESS));
+        assertEquals(1, received.size());
+    }
+
+    @Test
+    public void rateLimitTest() {
+        List<Integer> codes = new ArrayList<>(List.of(429));
+        responder = exchange -> {
+            if (codes.isEmpty()) {
+                return 201;
+            }
+            exchange.getResponseHeaders().add("Retry-After", "1");
+            return codes.removeFirst();
+        };
+        long start = System.nanoTime();
+        assertTrue(notifier.send("abc", "owner", "repo", Filesystem.BuildStatus.SUCCESS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(900));
+    }
+
+    @Test
+    public void invalidCommitIsNotRetriedTest() {
+        responder = _ -> 422;
+        notifier.maxAttempts = 5;
+        assertFalse(notifier.send("bad", "owner", "repo", Filesystem.BuildStatus.SUCCESS));
+    }
+}
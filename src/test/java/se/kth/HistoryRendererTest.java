@@ -0,0 +1,84 @@
+package se.kth;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HistoryRendererTest {
+    File root;
+    Filesystem filesystem;
+
+    @Before
+    public void setUp() throws IOException {
+        root = Files.createTempDirectory("renderer").toFile();
+        filesystem = new Filesystem(root.getPath(), false);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        filesystem.close();
+        FileUtils.deleteDirectory(root);
+    }
+
+    @Test
+    public void templateTest() throws IOException {
+        HistoryRenderer.Template template = HistoryRenderer.Template.compile("<a href=\"?page=%d\">%s</a> 100%");
+        assertEquals(3, template.parts.length);
+        StringWriter out = new StringWriter();
+        template.write(out, 2, "<b>&\"'");
+        assertEquals("<a href=\"?page=2\">&lt;b&gt;&amp;&quot;&#39;</a> 100%", out.toString());
+    }
+
+    @Test
+    public void renderTest() throws IOException {
+        for (int i = 0; i < 3; i++) {
+            filesystem.saveToFile("owner", "repo", "main", "commit" + i, new StringWriter(), Filesystem.BuildStatus.SUCCESS);
+        }
+        filesystem.saveToFile("owner", "repo", "main", "<script>", new StringWriter(), Filesystem.BuildStatus.FAILED_TO_TEST);
+
+        StringWriter out = new StringWriter();
+        new HistoryRenderer(filesystem).render(out, (Object[]) filesystem.getDirectory("owner/repo/main", 0, 2), 0, 2);
+        String html = out.toString();
+        assertTrue(html.startsWith("<!DOCTYPE html>"));
+        assertTrue(html.endsWith("</html>"));
+        assertEquals(2, html.split("<td><a href=").length - 1);
+        // the newest builds are on the first page
+        assertTrue(html.contains("&lt;script&gt;"));
+        assertFalse(html.contains("<script>"));
+        assertTrue(html.indexOf("&lt;script&gt;") < html.indexOf("<td>commit2</td>"));
+        assertFalse(html.contains("commit0"));
+        assertTrue(html.contains("Page 1 of 2 <a href=\"?page=1\">Next</a>"));
+        assertFalse(html.contains("Previous"));
+
+        out = new StringWriter();
+        new HistoryRenderer(filesystem).render(out, (Object[]) filesystem.getDirectory("owner/repo/main", 2, 2), 1, 2);
+        html = out.toString();
+        assertTrue(html.contains("<td>commit0</td>"));
+        assertFalse(html.contains("script"));
+        assertTrue(html.contains("<a href=\"?page=0\">Previous</a> Page 2 of 2"));
+    }
+
+    @Test
+    public void directoriesTest() throws IOException {
+        filesystem.saveToFile("owner", "repo", "main", "a", new StringWriter(), Filesystem.BuildStatus.SUCCESS);
+        filesystem.saveToFile("owner", "repo", "feature", "b", new StringWriter(), Filesystem.BuildStatus.SUCCESS);
+
+        StringWriter out = new StringWriter();
+        new HistoryRenderer(filesystem).render(out, (Object[]) filesystem.getDirectory("owner/repo"), 0, 0);
+        String html = out.toString();
+        assertTrue(html.contains(Webb.dirHeader));
+        assertFalse(html.contains(Webb.buildHeader));
+        assertTrue(html.contains(">feature</a>"));
+        assertTrue(html.contains(">main</a>"));
+    }
+}
@@ -0,0 +1,115 @@
+package se.kth;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class ImpactAnalysisTest {
+    File project;
+
+    @Before
+    public void setUp() throws IOException {
+        project = Files.createTempDirectory("impact").toFile();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(project);
+    }
+
+    /**
+     * Copies a compiled class of this project into the fake project
+     */
+    void copy(Class<?> type, String directory) throws IOException {
+        String name = type.getName().replace('.', '/') + ".class";
+        File file = new File(project, directory + "/" + name);
+        Boolean _ = file.getParentFile().mkdirs();
+        try (InputStream in = type.getClassLoader().getResourceAsStream(name)) {
+            Files.copy(in, file.toPath());
+        }
+    }
+
+    @Test
+    public void changedClassesTest() {
+        assertEquals(Set.of("se.kth.Foo", "se.kth.FooTest"), ImpactAnalysis.getChangedClasses(List.of(
+                "src/main/java/se/kth/Foo.java", "src/test/java/se/kth/FooTest.java", "README.md", ".github/workflows/ci.yml")));
+        assertEquals(Set.of("a.B"), ImpactAnalysis.getChangedClasses(List.of("module/src/main/java/a/B.java")));
+        // anything that is part of the build can affect every test
+        assertNull(ImpactAnalysis.getChangedClasses(List.of("src/main/java/se/kth/Foo.java", "pom.xml")));
+        assertNull(ImpactAnalysis.getChangedClasses(List.of("module/src/test/resources/data.json")));
+    }
+
+    @Test
+    public void referencesTest() throws IOException {
+        try (InputStream in = ImpactAnalysis.class.getResourceAsStream("ImpactAnalysis.class")) {
+            Set<String> references = ImpactAnalysis.readReferences(in);
+            assertTrue(references.contains("se/kth/TestShards"));
+            assertTrue(references.contains("java/util/regex/Pattern"));
+        }
+    }
+
+    @Test
+    public void affectedTestsTest() throws IOException {
+        copy(ImpactAnalysis.class, "target/classes");
+        copy(TestShards.class, "target/classes");
+        copy(PushEvent.class, "target/classes");
+        copy(PushEvent.Parser.class, "target/classes");
+        copy(ImpactAnalysisTest.class, "target/test-classes");
+        copy(TestShardsTest.class, "target/test-classes");
+        copy(PushEventTest.class, "target/test-classes");
+        Map<String, Set<String>> dependencies = ImpactAnalysis.readDependencies(project);
+        // inner classes belong to their outer class
+        assertFalse(dependencies.containsKey("se.kth.PushEvent$Parser"));
+
+        List<String> tests = List.of("se.kth.ImpactAnalysisTest", "se.kth.PushEventTest", "se.kth.TestShardsTest");
+        // through ImpactAnalysis, which uses TestShards
+        assertEquals(List.of("se.kth.ImpactAnalysisTest", "se.kth.TestShardsTest"),
+                ImpactAnalysis.getAffectedTests(dependencies, Set.of("se.kth.TestShards"), tests));
+        // this test names the classes it copies
+        assertEquals(List.of("se.kth.ImpactAnalysisTest", "se.kth.PushEventTest"),
+                ImpactAnalysis.getAffectedTests(dependencies, Set.of("se.kth.PushEvent"), tests));
+        assertEquals(List.of("se.kth.TestShardsTest"), ImpactAnalysis.getAffectedTests(dependencies, Set.of("se.kth.TestShardsTest"),
+                List.of("se.kth.PushEventTest", "se.kth.TestShardsTest")));
+        assertEquals(List.of(), ImpactAnalysis.getAffectedTests(dependencies, Set.of("se.kth.Unused"), tests));
+    }
+
+    @Test
+    public void impactBaseTest() throws IOException {
+        Filesystem filesystem = new Filesystem(new File(project, "output").getPath(), false);
+        try {
+            assertNull(filesystem.getImpactBase("owner", "repo", "main", "config", 2));
+            save(filesystem, "a", Filesystem.BuildStatus.SUCCESS, null, 1000);
+            assertEquals("a", filesystem.getImpactBase("owner", "repo", "main", "config", 2));
+            // other settings can change every result
+            assertNull(filesystem.getImpactBase("owner", "repo", "main", "other", 2));
+
+            save(filesystem, "b", Filesystem.BuildStatus.FAILED_TO_TEST, "a", 2000);
+            assertEquals("a", filesystem.getImpactBase("owner", "repo", "main", "config", 2));
+            save(filesystem, "c", Filesystem.BuildStatus.SUCCESS, "a", 3000);
+            // two builds in a row only ran the affected tests
+            assertNull(filesystem.getImpactBase("owner", "repo", "main", "config", 2));
+            assertEquals("c", filesystem.getImpactBase("owner", "repo", "main", "config", 3));
+        } finally {
+            filesystem.close();
+        }
+    }
+
+    static void save(Filesystem filesystem, String commit, Filesystem.BuildStatus status, String impactBase, long time) throws IOException {
+        filesystem.saveToFile("owner", "repo", "main", commit, new StringWriter(), status, "tree" + commit, "config", saved -> {
+            saved.impactBase = impactBase;
+            saved.time = time;
+        });
+    }
+}
@@ -0,0 +1,148 @@
+package se.kth;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LiveTailTest {
+    File root;
+    Filesystem filesystem;
+
+    @Before
+    public void setUp() throws IOException {
+        root = Files.createTempDirectory("livetail").toFile();
+        filesystem = new Filesystem(root.getPath(), false);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(root);
+    }
+
+    @Test
+    public void followsRunningBuildTest() throws Exception {
+        BuildLog log = filesystem.createLog("owner", "repo", "main", "abc");
+        log.write("first\n");
+        log.flush();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Thread viewer = Thread.ofVirtual().start(() -> {
+            try {
+                new LiveTail(filesystem).stream(log.file, 0, out);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+
+        Thread.sleep(100);
+        log.write("second\n");
+        filesystem.saveToFile("owner", "repo", "main", "abc", log, Filesystem.BuildStatus.SUCCESS);
+        viewer.join(5000);
+
+        String events = out.toString(StandardCharsets.UTF_8);
+        assertTrue(events.startsWith("id: 6\ndata: first\n\n"));
+        assertTrue(events.contains("data: second\n"));
+        assertTrue(events.endsWith("event: end\ndata: end\n\n"));
+    }
+
+    @Test
+    public void waitsForUnfinishedLineTest() throws Exception {
+        BuildLog log = filesystem.createLog("owner", "repo", "main", "abc");
+        log.write("first\nDownloading 50%");
+        log.flush();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Thread viewer = Thread.ofPlatform().start(() -> {
+            try {
+                new LiveTail(filesystem).stream(log.file, 0, out);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+
+        Thread.sleep(500);
+        // the viewer waits for the rest of the line instead of reading it again and again
+        long cpuMillis = ManagementFactory.getThreadMXBean().getThreadCpuTime(viewer.threadId()) / 1_000_000;
+        assertTrue("busy for " + cpuMillis + " ms", cpuMillis < 100);
+        assertEquals("id: 6\ndata: first\n\n", out.toString(StandardCharsets.UTF_8));
+
+        log.write(", done\n");
+        filesystem.saveToFile("owner", "repo", "main", "abc", log, Filesystem.BuildStatus.SUCCESS);
+        viewer.join(5000);
+        assertTrue(out.toString(StandardCharsets.UTF_8).contains("data: Downloading 50%, done\n"));
+    }
+
+    @Test
+    public void resumeFromOffsetTest() throws Exception {
+        BuildLog log = filesystem.createLog("owner", "repo", "main", "abc");
+        log.write("first\nsecond\n");
+        filesystem.saveToFile("owner", "repo", "main", "abc", log, Filesystem.BuildStatus.SUCCESS);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new LiveTail(filesystem).stream(filesystem.getLogFile("owner/repo/main/abc.log"), 6, out);
+        assertEquals("id: 13\ndata: second\n\nevent: end\ndata: end\n\n", out.toString(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return The text the live page shows for the events, a line break after every event
+     */
+    static String shown(String events) {
+        StringBuilder text = new StringBuilder();
+        for (String line : events.split("\n")) {
+            if (line.startsWith("data: ") && !line.equals("data: end")) {
+                text.append(line.substring("data: ".length())).append('\n');
+            }
+        }
+        return text.toString();
+    }
+
+    @Test
+    public void finishedLogInWholeLinesTest() throws Exception {
+        // lines with two byte characters that do not fit a chunk evenly
+        StringBuilder lines = new StringBuilder();
+        for (int i = 0; lines.length() < 3 * LiveTail.CHUNK_SIZE; i++) {
+            lines.append("line ").append(i).append(" caf\u00e9 \u00e9t\u00e9\n");
+        }
+        String log = lines + "\u00e9".repeat(LiveTail.CHUNK_SIZE) + "\nlast";
+        File file = new File(root, "owner/repo/main/abc.log");
+        Boolean _ = file.getParentFile().mkdirs();
+        Files.writeString(file.toPath(), log);
+
+        for (boolean compressed : new boolean[]{false, true}) {
+            if (compressed) {
+                CompressedLog.compress(file);
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            new LiveTail(filesystem).stream(file, 0, out);
+            String shown = shown(out.toString(StandardCharsets.UTF_8));
+            // no line is broken, only the line longer than a chunk, and never inside a character
+            assertTrue(shown.startsWith(lines.toString()));
+            assertFalse(shown.contains("\ufffd"));
+            assertEquals(log.replace("\n", ""), shown.replace("\n", ""));
+        }
+    }
+
+    @Test
+    public void chunkEndTest() {
+        byte[] bytes = "ab\ncd\u00e9".getBytes(StandardCharsets.UTF_8);
+        assertEquals(3, LiveTail.chunkEnd(bytes, bytes.length, false));
+        assertEquals(3, LiveTail.chunkEnd(bytes, bytes.length, true));
+        assertEquals(0, LiveTail.chunkEnd(new byte[]{'a', 'b'}, 2, false));
+        // without a line end a full chunk is cut before a character that is not whole
+        byte[] line = "cd\u00e9".getBytes(StandardCharsets.UTF_8);
+        assertEquals(2, LiveTail.chunkEnd(line, 3, true));
+        assertEquals(4, LiveTail.chunkEnd(line, 4, true));
+    }
+}
@@ -0,0 +1,32 @@
+package se.kth;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class LogResponderTest {
+
+    @Test
+    public void parseRangeTest() {
+        assertEquals(new LogResponder.Range(0, 499), LogResponder.parseRange("bytes=0-499", 1000));
+        assertEquals(new LogResponder.Range(500, 999), LogResponder.parseRange("bytes=500-", 1000));
+        assertEquals(new LogResponder.Range(900, 999), LogResponder.parseRange("bytes=-100", 1000));
+        assertEquals(new LogResponder.Range(900, 999), LogResponder.parseRange("bytes=900-5000", 1000));
+        assertEquals(LogResponder.UNSATISFIABLE, LogResponder.parseRange("bytes=1000-", 1000));
+        assertNull(LogResponder.parseRange(null, 1000));
+        assertNull(LogResponder.parseRange("bytes=0-1,5-6", 1000));
+        assertNull(LogResponder.parseRange("bytes=a-b", 1000));
+    }
+
+    @Test
+    public void escapeHtmlTest() throws IOException {
+        StringWriter out = new StringWriter();
+        char[] text = "<b>\"a\" & 'b'\nnext".toCharArray();
+        Filesystem.escapeHtml(text, text.length, out);
+        assertEquals("&lt;b&gt;&quot;a&quot; &amp; &#39;b&#39;<br>\nnext", out.toString());
+    }
+}
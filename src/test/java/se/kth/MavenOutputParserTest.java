@@ -0,0 +1,63 @@
+package se.kth;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MavenOutputParserTest {
+
+    static MavenOutputParser parse(String output) {
+        MavenOutputParser parser = new MavenOutputParser();
+        output.lines().forEach(parser);
+        return parser;
+    }
+
+    @Test
+    public void successTest() {
+        MavenOutputParser parser = parse("""
+                [INFO] --- compiler:3.11.0:compile (default-compile) @ main ---
+                [INFO] --- surefire:3.2.2:test (default-test) @ main ---
+                [INFO] BUILD SUCCESS""");
+        assertTrue(parser.hasStartedTests());
+        assertEquals(Filesystem.BuildStatus.SUCCESS, parser.getStatus(true));
+    }
+
+    @Test
+    public void compileFailureTest() {
+        MavenOutputParser parser = parse("""
+                [INFO] --- maven-compiler-plugin:3.1:compile (default-compile) @ main ---
+                [ERROR] COMPILATION ERROR :
+                [INFO] BUILD FAILURE
+                [ERROR] Failed to execute goal org.apache.maven.plugins:maven-compiler-plugin:3.1:compile (default-compile) on project main: Compilation failure""");
+        assertFalse(parser.hasStartedTests());
+        assertEquals(Filesystem.BuildStatus.FAILED_TO_COMPILE, parser.getStatus(false));
+    }
+
+    @Test
+    public void testCompileFailureTest() {
+        MavenOutputParser parser = parse("""
+                [INFO] --- compiler:3.11.0:compile (default-compile) @ main ---
+                [INFO] --- compiler:3.11.0:testCompile (default-testCompile) @ main ---
+                [ERROR] Failed to execute goal org.apache.maven.plugins:maven-compiler-plugin:3.11.0:testCompile (default-testCompile) on project main: Compilation failure""");
+        assertEquals(Filesystem.BuildStatus.FAILED_TO_TEST, parser.getStatus(false));
+    }
+
+    @Test
+    public void testFailureTest() {
+        MavenOutputParser parser = parse("""
+                [INFO] --- compiler:3.11.0:compile (default-compile) @ main ---
+                [INFO] --- surefire:3.2.2:test (default-test) @ main ---
+                [ERROR] Tests run: 2, Failures: 1, Errors: 0, Skipped: 0
+                [ERROR] Failed to execute goal org.apache.maven.plugins:maven-surefire-plugin:3.2.2:test (default-test) on project main: There are test failures.""");
+        assertEquals(Filesystem.BuildStatus.FAILED_TO_TEST, parser.getStatus(false));
+    }
+
+    @Test
+    public void dependencyFailureTest() {
+        MavenOutputParser parser = parse("""
+                [ERROR] Failed to execute goal on project main: Could not resolve dependencies for project se.kth:main:jar:1.0-SNAPSHOT""");
+        assertEquals(Filesystem.BuildStatus.FAILED_TO_COMPILE, parser.getStatus(false));
+    }
+}
@@ -0,0 +1,50 @@
+package se.kth;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MetricsTest {
+
+    @Test
+    public void histogramTest() throws IOException {
+        Metrics.Histogram histogram = new Metrics.Histogram(0.001, 1);
+        histogram.record(500_000);
+        histogram.record(1_000_000);
+        histogram.record(2_000_000);
+        histogram.record(5_000_000_000L);
+        assertEquals(4, histogram.count());
+
+        StringWriter out = new StringWriter();
+        histogram.write(out, "test_seconds", "stage=\"clone\"");
+        // the buckets are cumulative and include their upper bound
+        assertEquals("""
+                test_seconds_bucket{stage="clone",le="0.001"} 2
+                test_seconds_bucket{stage="clone",le="1.0"} 3
+                test_seconds_bucket{stage="clone",le="+Inf"} 4
+                test_seconds_sum{stage="clone"} 5.0035
+                test_seconds_count{stage="clone"} 4
+                """, out.toString());
+    }
+
+    @Test
+    public void writeTest() throws IOException {
+        BuildQueue queue = new BuildQueue(1, _ -> Filesystem.BuildStatus.SUCCESS);
+        long before = Metrics.stage(Metrics.Stage.CLONE).count();
+        Metrics.record(Metrics.Stage.CLONE, System.nanoTime());
+        assertEquals(before + 1, Metrics.stage(Metrics.Stage.CLONE).count());
+
+        StringWriter out = new StringWriter();
+        Metrics.write(out, queue);
+        String text = out.toString();
+        assertTrue(text.contains("\nci_queue_depth 0\n"));
+        assertTrue(text.contains("# TYPE ci_stage_duration_seconds histogram\n"));
+        assertTrue(text.contains("ci_stage_duration_seconds_count{stage=\"clone\"} " + (before + 1) + "\n"));
+        assertTrue(text.contains("ci_webhook_duration_seconds_bucket{le=\"+Inf\"}"));
+        queue.shutdown();
+    }
+}
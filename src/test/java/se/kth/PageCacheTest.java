@@ -0,0 +1,83 @@
+package se.kth;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PageCacheTest {
+
+    @Test
+    public void versionTest() {
+        PageCache cache = new PageCache(1000);
+        cache.put("/a?page=0", "v1", "html");
+        assertEquals("html", cache.get("/a?page=0", "v1"));
+        // a build was recorded since it was rendered
+        assertNull(cache.get("/a?page=0", "v2"));
+        assertNull(cache.get("/a?page=0", "v1"));
+        assertEquals(0, cache.size);
+    }
+
+    @Test
+    public void budgetTest() {
+        PageCache cache = new PageCache(400);
+        // 100 bytes each
+        for (String key : new String[]{"a", "b", "c", "d"}) {
+            cache.put(key, "v", "x".repeat(50));
+        }
+        cache.get("a", "v");
+        cache.put("e", "v", "x".repeat(50));
+        // b is the least recently used
+        assertNull(cache.get("b", "v"));
+        assertTrue(cache.get("a", "v") != null && cache.get("e", "v") != null);
+        assertEquals(400, cache.size);
+
+        // larger than a quarter of the budget
+        cache.put("f", "v", "x".repeat(51));
+        assertNull(cache.get("f", "v"));
+    }
+
+    @Test
+    public void matchesTest() {
+        assertTrue(PageCache.matches("W/\"abc\"", "W/\"abc\""));
+        assertTrue(PageCache.matches("\"x\", \"abc\"", "W/\"abc\""));
+        assertTrue(PageCache.matches("*", "\"abc\""));
+        assertFalse(PageCache.matches("W/\"abd\"", "W/\"abc\""));
+        assertFalse(PageCache.matches(null, "W/\"abc\""));
+    }
+
+    @Test
+    public void finishedBuildTest() throws IOException {
+        File root = Files.createTempDirectory("pagecache").toFile();
+        try {
+            Filesystem filesystem = new Filesystem(root.getPath(), false);
+            String version = filesystem.getVersionTag();
+            BuildLog log = filesystem.createLog("owner", "repo", "main", "abc");
+            assertNull(filesystem.getFinishedBuild("/owner/repo/main/abc.log"));
+
+            filesystem.saveToFile("owner", "repo", "main", "abc", log, Filesystem.BuildStatus.SUCCESS);
+            assertNotEquals(version, filesystem.getVersionTag());
+            Filesystem.BuildData build = filesystem.getFinishedBuild("/owner/repo/main/abc.log");
+            assertEquals("abc", build.commit);
+            assertNull(filesystem.getFinishedBuild("/owner/repo/main/other.log"));
+            assertNull(filesystem.getFinishedBuild("/owner/repo/main"));
+
+            // a reused result links to the log of the earlier build
+            filesystem.saveReusedResult("owner", "repo", "feature", "def", build);
+            assertNull(filesystem.getFinishedBuild("/owner/repo/feature/def.log"));
+            filesystem.saveToFile("owner", "repo", "main", "b", new StringWriter(), Filesystem.BuildStatus.SUCCESS);
+            filesystem.close();
+        } finally {
+            FileUtils.deleteDirectory(root);
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package se.kth;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+public class PushEventTest {
+
+    /**
+     * @param commits How many commits the push has, every commit is about 1 KB like the ones GitHub sends
+     * @return A push payload shaped like the ones GitHub sends
+     */
+    static byte[] payload(int commits) {
+        JSONObject owner = new JSONObject()
+                .put("name", "owner")
+                .put("email", "owner@users.noreply.github.com")
+                .put("login", "owner")
+                .put("id", 123456)
+                .put("avatar_url", "https://avatars.githubusercontent.com/u/123456?v=4")
+                .put("type", "User")
+                .put("site_admin", false);
+        JSONObject repository = new JSONObject()
+                .put("id", 917349341)
+                .put("name", "repo")
+                .put("full_name", "owner/repo")
+                .put("private", false)
+                .put("owner", owner)
+                .put("description", "A \"quoted\" description with \\ and unicode åäö")
+                .put("fork", false)
+                .put("clone_url", "https://github.com/owner/repo.git")
+                .put("default_branch", "main")
+                .put("topics", new JSONArray().put("ci").put("java"))
+                .put("size", 1024);
+        JSONArray list = new JSONArray();
+        JSONObject head = null;
+        for (int i = 0; i < commits; i++) {
+            JSONArray modified = new JSONArray();
+            for (int j = 0; j < 20; j++) {
+                modified.put("src/main/java/se/kth/File" + j + ".java");
+            }
+            head = new JSONObject()
+                    .put("id", "%040x".formatted(i))
+                    .put("tree_id", "%040x".formatted(i + 1_000_000))
+                    .put("distinct", true)
+                    .put("message", "Commit " + i + "\n\nA longer message with {braces}, [brackets] and \"quotes\"")
+                    .put("timestamp", "2025-02-10T12:00:00+01:00")
+                    .put("url", "https://github.com/owner/repo/commit/" + "%040x".formatted(i))
+                    .put("author", new JSONObject().put("name", "Author").put("email", "author@example.com").put("username", "author"))
+                    .put("committer", new JSONObject().put("name", "GitHub").put("email", "noreply@github.com").put("username", "web-flow"))
+                    .put("added", new JSONArray().put("README.md"))
+                    .put("removed", new JSONArray())
+                    .put("modified", modified);
+            list.put(head);
+        }
+        JSONObject payload = new JSONObject()
+                .put("ref", "refs/heads/feature")
+                .put("before", "%040x".formatted(0))
+                .put("after", head == null ? "%040x".formatted(0) : head.getString("id"))
+                .put("repository", repository)
+                .put("pusher", new JSONObject().put("name", "owner").put("email", "owner@example.com"))
+                .put("created", false)
+                .put("deleted", false)
+                .put("forced", false)
+                .put("base_ref", JSONObject.NULL)
+                .put("compare", "https://github.com/owner/repo/compare/a...b")
+                .put("commits", list)
+                .put("head_commit", head == null ? JSONObject.NULL : head);
+        return payload.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    static PushEvent parse(byte[] payload) throws IOException {
+        return PushEvent.parse(new ByteArrayInputStream(payload), PushEvent.DEFAULT_MAX_SIZE);
+    }
+
+    @Test
+    public void parsePushTest() throws IOException {
+        byte[] payload = payload(1000);
+        assertTrue(payload.length > 1024 * 1024);
+        PushEvent push = parse(payload);
+        assertEquals("refs/heads/feature", push.ref);
+        assertEquals("feature", push.getBranchName());
+        assertEquals("%040x".formatted(999), push.commitId);
+        assertEquals("%040x".formatted(1_000_999), push.tree);
+        assertEquals("https://github.com/owner/repo.git", push.cloneUrl);
+        assertEquals("owner", push.getOwnerName());
+        assertEquals("repo", push.repoName);
+        assertEquals("main", push.defaultBranch);
+        assertTrue(push.isBuildable());
+    }
+
+    @Test
+    public void escapedValuesTest() throws IOException {
+        String json = "{\"ref\": \"refs/heads/a\\u00e5\\\"b\", \"skipped\": [1, {\"x\": \"}\\\\\"}], "
+                + "\"repository\": {\"name\": \"räpo\", \"owner\": {\"login\": \"me\"}, \"clone_url\": \"u\"}, "
+                + "\"head_commit\": {\"id\": \"c\"}}";
+        PushEvent push = parse(json.getBytes(StandardCharsets.UTF_8));
+        assertEquals("refs/heads/aå\"b", push.ref);
+        assertEquals("räpo", push.repoName);
+        assertEquals("me", push.getOwnerName());
+        assertEquals("c", push.commitId);
+    }
+
+    @Test
+    public void deletedBranchTest() throws IOException {
+        PushEvent push = parse("{\"ref\": \"refs/heads/old\", \"deleted\": true, \"head_commit\": null}".getBytes(StandardCharsets.UTF_8));
+        assertTrue(push.deleted);
+        assertNull(push.commitId);
+        assertFalse(push.isBuildable());
+    }
+
+    @Test
+    public void branchNameTest() throws IOException {
+        String json = "{\"ref\": \"%s\", \"repository\": {\"name\": \"repo\", \"owner\": {\"login\": \"me\"}, \"clone_url\": \"u\"}, "
+                + "\"head_commit\": {\"id\": \"c\"}}";
+        PushEvent push = parse(json.formatted("refs/heads/feature/login").getBytes(StandardCharsets.UTF_8));
+        // the whole name, so feature/login and bugfix/login are different branches
+        assertEquals("feature/login", push.getBranchName());
+        assertTrue(push.isBuildable());
+
+        assertFalse(parse(json.formatted("refs/tags/main").getBytes(StandardCharsets.UTF_8)).isBuildable());
+        assertFalse(parse(json.formatted("refs/heads/../main").getBytes(StandardCharsets.UTF_8)).isBuildable());
+    }
+
+    @Test
+    public void sizeLimitTest() {
+        byte[] payload = payload(100);
+        assertThrows(PushEvent.TooLargeException.class, () -> PushEvent.parse(new ByteArrayInputStream(payload), payload.length / 2));
+    }
+
+    @Test
+    public void brokenPayloadTest() {
+        assertThrows(IOException.class, () -> parse("{\"ref\": \"refs/heads/a\", \"commits\": [".getBytes(StandardCharsets.UTF_8)));
+        assertThrows(IOException.class, () -> parse("[]".getBytes(StandardCharsets.UTF_8)));
+    }
+}
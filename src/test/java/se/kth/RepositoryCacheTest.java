@@ -0,0 +1,170 @@
+package se.kth;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThrows;
+
+public class RepositoryCacheTest {
+    File root;
+    File origin;
+    String url;
+    RepositoryCache cache;
+
+    @Before
+    public void setUp() throws Exception {
+        root = Files.createTempDirectory("repositorycache").toFile();
+        origin = new File(root, "origin");
+        Boolean _ = origin.mkdirs();
+        git(origin, "init", "-q", "-b", "main");
+        commit("first");
+        url = origin.toPath().toUri().toString();
+        cache = new RepositoryCache(new File(root, "cache").getPath());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(root);
+    }
+
+    static String git(File directory, String... args) throws Exception {
+        String[] cmd = new String[args.length + 5];
+        cmd[0] = "git";
+        cmd[1] = "-c";
+        cmd[2] = "user.name=test";
+        cmd[3] = "-c";
+        cmd[4] = "user.email=test@test";
+        System.arraycopy(args, 0, cmd, 5, args.length);
+        return ContinuousIntegration.startProcess("git failed", directory.getPath(), cmd).trim();
+    }
+
+    String commit(String content) throws Exception {
+        FileUtils.writeStringToFile(new File(origin, "file.txt"), content, "UTF-8");
+        git(origin, "add", "file.txt");
+        git(origin, "commit", "-q", "-m", content);
+        return git(origin, "rev-parse", "HEAD");
+    }
+
+    String read(File checkout) throws IOException {
+        return FileUtils.readFileToString(new File(checkout, "file.txt"), "UTF-8");
+    }
+
+    @Test
+    public void checkoutFetchesNewCommitsTest() throws Exception {
+        File first = new File(root, "first");
+        cache.checkout(new StringWriter(), url, "main", null, first.getPath());
+        assertEquals("first", read(first));
+
+        String commitId = commit("second");
+        File second = new File(root, "second");
+        cache.checkout(new StringWriter(), url, "main", commitId, second.getPath());
+        assertEquals("second", read(second));
+        assertEquals(commitId, git(second, "rev-parse", "HEAD"));
+        assertEquals(url, git(second, "remote", "get-url", "origin"));
+    }
+
+    @Test
+    public void treeOfRevertedCommitTest() throws Exception {
+        String first = git(origin, "rev-parse", "HEAD");
+        commit("second");
+        String reverted = commit("first");
+        String tree = cache.getTree(new StringWriter(), url, first);
+        assertEquals(git(origin, "rev-parse", first + "^{tree}"), tree);
+        assertEquals(tree, cache.getTree(new StringWriter(), url, reverted));
+        assertNull(cache.getTree(new StringWriter(), url, "0000000000000000000000000000000000000000"));
+    }
+
+    @Test
+    public void checkoutOlderCommitTest() throws Exception {
+        String commitId = git(origin, "rev-parse", "HEAD");
+        commit("second");
+        File checkout = new File(root, "checkout");
+        cache.checkout(new StringWriter(), url, "main", commitId, checkout.getPath());
+        assertEquals("first", read(checkout));
+    }
+
+    @Test
+    public void shallowPartialCheckoutTest() throws Exception {
+        commit("second");
+        RepositoryCache.CheckoutOptions options = new RepositoryCache.CheckoutOptions();
+        options.depth = 1;
+        options.partial = true;
+        options.singleBranch = true;
+        cache.options.put(url, options);
+
+        File checkout = new File(root, "checkout");
+        cache.checkout(new StringWriter(), url, "main", null, checkout.getPath());
+        assertEquals("second", read(checkout));
+        assertEquals("true", git(checkout, "rev-parse", "--is-shallow-repository"));
+    }
+
+    @Test
+    public void checkoutOlderCommitOfShallowCheckoutTest() throws Exception {
+        String commitId = git(origin, "rev-parse", "HEAD");
+        commit("second");
+        RepositoryCache.CheckoutOptions options = new RepositoryCache.CheckoutOptions();
+        options.depth = 1;
+        options.singleBranch = true;
+        cache.options.put(url, options);
+
+        File checkout = new File(root, "checkout");
+        cache.checkout(new StringWriter(), url, "main", commitId, checkout.getPath());
+        assertEquals("first", read(checkout));
+        assertEquals(commitId, git(checkout, "rev-parse", "HEAD"));
+    }
+
+    @Test
+    public void checkoutForcePushedCommitTest() throws Exception {
+        cache.update(new StringWriter(), url);
+        String commitId = commit("second");
+        // the commit is no longer on the branch when the mirror is fetched
+        git(origin, "reset", "-q", "--hard", "HEAD~1");
+
+        File checkout = new File(root, "checkout");
+        cache.checkout(new StringWriter(), url, "main", commitId, checkout.getPath());
+        assertEquals("second", read(checkout));
+    }
+
+    @Test
+    public void checkoutUnknownCommitTest() {
+        // the head of the branch is not built instead
+        assertThrows(ProcessException.class, () -> cache.checkout(new StringWriter(), url, "main",
+                "0000000000000000000000000000000000000000", new File(root, "checkout").getPath()));
+    }
+
+    @Test
+    public void concurrentCheckoutTest() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<String>> results = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            File checkout = new File(root, "checkout" + i);
+            results.add(executor.submit(() -> {
+                cache.checkout(new StringWriter(), url, "main", null, checkout.getPath());
+                return read(checkout);
+            }));
+        }
+        for (Future<String> result : results) {
+            assertEquals("first", result.get());
+        }
+        executor.shutdown();
+    }
+
+    @Test
+    public void checkoutInvalidBranchTest() {
+        assertThrows(ProcessException.class, () -> cache.checkout(new StringWriter(), url, "nonExisting", null, new File(root, "checkout").getPath()));
+    }
+}
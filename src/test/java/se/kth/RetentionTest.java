@@ -0,0 +1,145 @@
+package se.kth;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class RetentionTest {
+    File root;
+    Filesystem filesystem;
+    Retention retention;
+
+    @Before
+    public void setUp() throws IOException {
+        root = Files.createTempDirectory("retention").toFile();
+        filesystem = new Filesystem(root.getPath(), false);
+        retention = new Retention(filesystem);
+        retention.defaultPolicy = new Retention.Policy(0, 0);
+        retention.maxBytes = 0;
+        retention.pauseMillis = 0;
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        filesystem.close();
+        FileUtils.deleteDirectory(root);
+    }
+
+    Filesystem.BuildData save(String branch, String commit, long time, int logSize) throws IOException {
+        StringWriter log = new StringWriter();
+        log.write("x".repeat(logSize));
+        return filesystem.saveToFile("owner", "repo", branch, commit, log, Filesystem.BuildStatus.SUCCESS, "tree" + commit, "config", saved -> saved.time = time);
+    }
+
+    List<String> commits(String branch) {
+        return filesystem.index.get("owner/repo/" + branch).getBuilds().stream().map(build -> build.commit).toList();
+    }
+
+    boolean hasLog(String branch, String commit) {
+        File log = new File(root, "owner/repo/" + branch + "/" + commit + ".log");
+        return log.isFile() || CompressedLog.exists(log);
+    }
+
+    @Test
+    public void keepBuildsTest() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            save("main", "c" + i, 1000 + i, 10);
+        }
+        save("dev", "d0", 1000, 10);
+        retention.policies.put("owner/repo/main", new Retention.Policy(2, 0));
+        assertEquals(3, retention.sweep(2000));
+        assertEquals(List.of("c3", "c4"), commits("main"));
+        assertEquals(List.of("d0"), commits("dev"));
+        assertFalse(hasLog("main", "c0"));
+        assertTrue(hasLog("main", "c4"));
+
+        // the tombstones keep them removed
+        filesystem.close();
+        filesystem = new Filesystem(root.getPath(), false);
+        assertEquals(List.of("c3", "c4"), commits("main"));
+        assertNull(filesystem.store.get("owner/repo/main", "c0"));
+    }
+
+    @Test
+    public void maxAgeTest() throws Exception {
+        save("main", "old", 1000, 10);
+        save("main", "older", 500, 10);
+        save("dev", "only", 0, 10);
+        retention.loadPolicies(writePolicies("{\"*\": {\"days\": 1}}"));
+        assertEquals(1, retention.sweep(Retention.DAY + 1000));
+        // the latest build of every branch is always kept
+        assertEquals(List.of("old"), commits("main"));
+        assertEquals(List.of("only"), commits("dev"));
+    }
+
+    @Test
+    public void reusedLogTest() throws Exception {
+        Filesystem.BuildData first = save("main", "a", 1000, 10);
+        save("main", "b", 2000, 10);
+        filesystem.saveReusedResult("owner", "repo", "dev", "a", first);
+        retention.defaultPolicy = new Retention.Policy(1, 0);
+        assertEquals(1, retention.sweep(3000));
+        assertEquals(List.of("b"), commits("main"));
+        // the build on dev still shows the log
+        assertTrue(hasLog("main", "a"));
+        assertNull(filesystem.findResult("treea", "config"));
+    }
+
+    @Test
+    public void reusedWhileDeletingTest() throws Exception {
+        save("main", "a", 1000, 10);
+        Filesystem.BuildData second = save("main", "b", 2000, 10);
+        save("main", "c", 3000, 10);
+        retention.defaultPolicy = new Retention.Policy(1, 0);
+        retention.pauseMillis = 500;
+        Thread sweep = Thread.ofVirtual().start(() -> {
+            try {
+                retention.sweep(4000);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        // the result of b was found before it was removed, and is reused while the logs are deleted
+        while (hasLog("main", "a")) {
+            Thread.sleep(10);
+        }
+        Filesystem.BuildData reused = filesystem.saveReusedResult("owner", "repo", "dev", "d", second);
+        sweep.join();
+        assertEquals(List.of("c"), commits("main"));
+        assertTrue(hasLog("main", "b"));
+        assertEquals(second.getLogFile(), reused.getLogFile());
+        assertTrue(filesystem.deletingLogs.isEmpty());
+    }
+
+    @Test
+    public void budgetTest() throws Exception {
+        filesystem.compressLogs = false;
+        save("main", "a", 1000, 100);
+        save("main", "b", 2000, 100);
+        save("main", "c", 3000, 100);
+        save("main", "d", 4000, 100);
+        // viewed recently, so b goes before a
+        filesystem.markAccessed("/owner/repo/main/a.log");
+        retention.maxBytes = 250;
+        assertEquals(2, retention.sweep(5000));
+        assertEquals(List.of("a", "d"), commits("main"));
+        assertFalse(hasLog("main", "b"));
+        // nothing more to do
+        assertEquals(0, retention.sweep(5000));
+    }
+
+    File writePolicies(String json) throws IOException {
+        File file = new File(root, "retention.json");
+        Files.writeString(file.toPath(), json);
+        return file;
+    }
+}
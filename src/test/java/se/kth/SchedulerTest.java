@@ -0,0 +1,136 @@
+package se.kth;
+
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SchedulerTest {
+    Scheduler scheduler;
+    long nextId;
+    long now;
+
+    @Before
+    public void setUp() {
+        scheduler = new Scheduler();
+        scheduler.defaultPolicy = new Scheduler.Policy(1, 0);
+        scheduler.defaultBranchPriority = 1;
+        scheduler.agingMillis = 60_000;
+        now = System.currentTimeMillis();
+    }
+
+    BuildQueue.BuildJob add(String repo, String branch, boolean defaultBranch) {
+        BuildQueue.BuildJob job = new BuildQueue.BuildJob(nextId++, "url", "owner", repo, branch, "c" + nextId);
+        job.priority = scheduler.getPriority(job, defaultBranch);
+        scheduler.add(job);
+        return job;
+    }
+
+    List<String> take(int count) {
+        List<String> repos = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            BuildQueue.BuildJob job = scheduler.next(now);
+            repos.add(job == null ? null : job.repoName);
+        }
+        return repos;
+    }
+
+    @Test
+    public void fairQueuingTest() {
+        for (int i = 0; i < 4; i++) {
+            add("busy", "b" + i, false);
+        }
+        add("quiet", "a", false);
+        add("quiet", "b", false);
+        // the quiet repository does not wait for all jobs of the busy one
+        assertEquals(List.of("busy", "quiet", "busy", "quiet", "busy", "busy"), take(6));
+        assertNull(scheduler.next(now));
+        assertEquals(0, scheduler.size());
+    }
+
+    @Test
+    public void weightTest() {
+        scheduler.policies.put("owner/heavy", new Scheduler.Policy(2, 0));
+        for (int i = 0; i < 4; i++) {
+            add("heavy", "b" + i, false);
+            add("light", "b" + i, false);
+        }
+        assertEquals(List.of("heavy", "light", "heavy", "light", "heavy", "heavy"), take(6));
+    }
+
+    @Test
+    public void idleRepositoryHasNoCreditTest() {
+        add("first", "a", false);
+        add("first", "b", false);
+        add("first", "c", false);
+        assertEquals(List.of("first", "first"), take(2));
+        // a repository that had nothing queued starts where the others are, not at 0 where it would go twice
+        add("second", "a", false);
+        add("second", "b", false);
+        assertEquals(List.of("second", "first", "second"), take(3));
+    }
+
+    @Test
+    public void priorityTest() {
+        BuildQueue.BuildJob feature = add("repo", "feature", false);
+        BuildQueue.BuildJob main = add("other", "main", true);
+        assertEquals(0, feature.priority);
+        assertEquals(1, main.priority);
+        assertSame(main, scheduler.next(now));
+        assertSame(feature, scheduler.next(now));
+    }
+
+    @Test
+    public void agingTest() throws InterruptedException {
+        scheduler.agingMillis = 50;
+        BuildQueue.BuildJob feature = add("repo", "feature", false);
+        Thread.sleep(120);
+        BuildQueue.BuildJob main = add("other", "main", true);
+        // the feature branch waited long enough to be above a new build of main
+        now = System.currentTimeMillis();
+        assertSame(feature, scheduler.next(now));
+        assertSame(main, scheduler.next(now));
+    }
+
+    @Test
+    public void branchPatternTest() throws Exception {
+        Scheduler.Policy policy = new Scheduler.Policy(new JSONObject("{\"branches\": {\"release/*\": 5, \"main\": 0}}"),
+                scheduler.defaultPolicy);
+        scheduler.policies.put("owner/repo", policy);
+        assertEquals(5, add("repo", "release/1.0", false).priority);
+        assertEquals(0, add("repo", "main", true).priority);
+        assertEquals(1, add("other", "main", true).priority);
+    }
+
+    @Test
+    public void limitsTest() {
+        scheduler.policies.put("owner/capped", new Scheduler.Policy(1, 1));
+        BuildQueue.BuildJob first = add("capped", "a", true);
+        add("capped", "b", true);
+        add("free", "a", false);
+        add("free", "b", false);
+        // the second job of the capped repository waits for the first, even with a higher priority
+        assertEquals(List.of("capped", "free", "free"), take(3));
+        assertNull(scheduler.next(now));
+        scheduler.done(first);
+        assertEquals("capped", scheduler.next(now).repoName);
+
+        add("free", "c", false);
+        scheduler.limit = () -> 3;
+        assertNull(scheduler.next(now));
+        assertEquals(1, scheduler.size());
+    }
+
+    @Test
+    public void removeTest() {
+        BuildQueue.BuildJob job = add("repo", "a", false);
+        assertTrue(scheduler.remove(job));
+        assertFalse(scheduler.remove(job));
+        assertNull(scheduler.next(now));
+        assertTrue(scheduler.flows.isEmpty());
+    }
+}
@@ -0,0 +1,206 @@
+package se.kth;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SearchIndexTest {
+    File root;
+    Filesystem filesystem;
+
+    @Before
+    public void setUp() throws IOException {
+        root = Files.createTempDirectory("search").toFile();
+        filesystem = new Filesystem(root.getPath(), true);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        filesystem.close();
+        FileUtils.deleteDirectory(root);
+    }
+
+    Filesystem.BuildData save(String repo, String branch, String commit, Filesystem.BuildStatus status, String log) throws Exception {
+        StringWriter writer = new StringWriter();
+        writer.write(log);
+        Filesystem.BuildData build = filesystem.saveToFile("owner", repo, branch, commit, writer, status);
+        waitForIndex();
+        return build;
+    }
+
+    void waitForIndex() throws Exception {
+        filesystem.search.indexer.submit(() -> {
+        }).get();
+    }
+
+    List<String> search(String query) throws IOException {
+        return filesystem.search.search(SearchIndex.Query.parse(query), 10).builds().stream()
+                .map(result -> result.build().commit).toList();
+    }
+
+    void saveBuilds() throws Exception {
+        save("repo", "main", "a", Filesystem.BuildStatus.SUCCESS, "Compiling\nTests run: 3, Failures: 0\n");
+        save("repo", "feature", "b", Filesystem.BuildStatus.FAILED_TO_TEST,
+                "Compiling\njava.net.ConnectException: Connection refused\n\tat se.kth.FooTest.test(FooTest.java:12)\n");
+        save("other", "main", "c", Filesystem.BuildStatus.FAILED_TO_TEST, "refused the connection\nTests run: 1, Failures: 1\n");
+    }
+
+    @Test
+    public void tokenizeTest() {
+        assertEquals(List.of("java", "net", "connectexception", "connection", "refused"),
+                SearchIndex.tokenize("java.net.ConnectException: Connection refused"));
+        assertEquals(List.of("at", "foo_bar", "12"), SearchIndex.tokenize("\tat foo_bar(12)"));
+        assertEquals(SearchIndex.MAX_TOKEN, SearchIndex.tokenize("x".repeat(100)).getFirst().length());
+    }
+
+    @Test
+    public void parseTest() {
+        SearchIndex.Query query = SearchIndex.Query.parse("Refused \"connection refused\" se.kth.FooTest repo:/owner/repo/ status:failed_to_test other:x");
+        assertEquals(List.of("refused"), query.terms);
+        // what is not a filter is searched for
+        assertEquals(List.of(List.of("connection", "refused"), List.of("se", "kth", "footest"), List.of("other", "x")), query.phrases);
+        assertEquals("owner/repo", query.repository);
+        assertEquals(Filesystem.BuildStatus.FAILED_TO_TEST, query.status);
+        assertThrows(IllegalArgumentException.class, () -> SearchIndex.Query.parse("status:broken"));
+        assertThrows(IllegalArgumentException.class, () -> SearchIndex.Query.parse("after:yesterday"));
+    }
+
+    @Test
+    public void searchTest() throws Exception {
+        saveBuilds();
+        // newest first
+        assertEquals(List.of("c", "b"), search("refused connection"));
+        // the phrase is only in one log
+        assertEquals(List.of("b"), search("\"connection refused\""));
+        assertEquals(List.of("b"), search("se.kth.FooTest"));
+        assertEquals(List.of(), search("missing"));
+        assertEquals(List.of("c", "a"), search("tests run"));
+
+        assertEquals(List.of("a"), search("tests branch:main repo:owner/repo"));
+        assertEquals(List.of("c"), search("tests status:FAILED_TO_TEST"));
+        assertEquals(List.of(), search("tests after:2999-01-01"));
+        assertEquals(List.of("c", "a"), search("tests before:2999-01-01"));
+
+        SearchIndex.Result result = filesystem.search.search(SearchIndex.Query.parse("connectexception"), 10).builds().getFirst();
+        assertEquals("owner/repo/feature/b.log", result.log());
+        assertEquals(List.of(new SearchIndex.Snippet(2, "java.net.ConnectException: Connection refused")), result.snippets());
+    }
+
+    @Test
+    public void filterOnlyTest() throws Exception {
+        long now = System.currentTimeMillis();
+        filesystem.saveToFile("owner", "repo", "main", "a", new StringWriter(), Filesystem.BuildStatus.SUCCESS, null, null, saved -> saved.time = now - 3000);
+        filesystem.saveToFile("owner", "repo", "feature", "b", new StringWriter(), Filesystem.BuildStatus.FAILED_TO_TEST, null, null, saved -> saved.time = now - 2000);
+        filesystem.saveToFile("owner", "other", "main", "c", new StringWriter(), Filesystem.BuildStatus.FAILED_TO_TEST, null, null, saved -> saved.time = now - 1000);
+        // nothing to search for, only the filters decide
+        assertEquals(List.of("c", "b"), search("status:failed_to_test"));
+        assertEquals(List.of("b"), search("status:failed_to_test repo:owner/repo"));
+        assertEquals(List.of("a"), search("branch:main repo:owner/repo"));
+
+        SearchIndex.Results results = filesystem.search.search(SearchIndex.Query.parse("repo:owner/repo"), 1);
+        assertEquals("owner/repo/feature/b.log", results.builds().getFirst().log());
+        assertTrue(results.truncated());
+    }
+
+    @Test
+    public void limitTest() throws Exception {
+        saveBuilds();
+        SearchIndex.Results results = filesystem.search.search(SearchIndex.Query.parse("compiling"), 1);
+        assertEquals(1, results.builds().size());
+        assertTrue(results.truncated());
+        assertFalse(filesystem.search.search(SearchIndex.Query.parse("compiling"), 2).truncated());
+    }
+
+    @Test
+    public void rebuiltAndDeletedTest() throws Exception {
+        saveBuilds();
+        // the same commit built again replaces its log
+        save("repo", "feature", "b", Filesystem.BuildStatus.SUCCESS, "all good\n");
+        assertEquals(List.of(), search("refused connection status:failed_to_test repo:owner/repo"));
+        assertEquals(List.of("b"), search("good"));
+
+        Filesystem.BuildData build = filesystem.store.get("owner/other/main", "c");
+        filesystem.remove(build);
+        filesystem.deleteLog(build.getLogFile());
+        assertEquals(List.of(), search("refused"));
+        assertFalse(filesystem.search.ids.containsKey("owner/other/main/c.log"));
+    }
+
+    @Test
+    public void persistenceTest() throws Exception {
+        saveBuilds();
+        filesystem.close();
+        filesystem = new Filesystem(root.getPath(), true);
+        // read back without reading any log
+        assertEquals(3, filesystem.search.paths.size());
+        assertEquals(List.of("b"), search("\"connection refused\""));
+
+        // an index that is lost is built again from the logs
+        filesystem.close();
+        FileUtils.deleteDirectory(new File(root, SearchIndex.DIRECTORY));
+        filesystem = new Filesystem(root.getPath(), true);
+        waitForIndex();
+        assertEquals(List.of("c", "b"), search("refused"));
+    }
+
+    @Test
+    public void compactTest() throws Exception {
+        saveBuilds();
+        File log = filesystem.store.get("owner/repo/main", "a").getLogFile();
+        for (int i = 0; i < SearchIndex.COMPACT_MIN_GARBAGE + 10; i++) {
+            filesystem.search.add(log);
+        }
+        // compacted once on the indexer, so far fewer records than were written
+        waitForIndex();
+        long records = filesystem.search.records;
+        assertTrue(records < SearchIndex.COMPACT_MIN_GARBAGE);
+        assertEquals(List.of("a", "b"), search("compiling"));
+
+        filesystem.close();
+        filesystem = new Filesystem(root.getPath(), true);
+        assertEquals(records, filesystem.search.records);
+        assertEquals(3, filesystem.search.paths.size());
+        assertEquals(List.of("a", "b"), search("compiling"));
+    }
+
+    @Test
+    public void addDuringCompactionTest() throws Exception {
+        saveBuilds();
+        File log = filesystem.store.get("owner/repo/main", "a").getLogFile();
+        File other = filesystem.store.get("owner/repo/feature", "b").getLogFile();
+        for (int i = 0; i < 2000; i++) {
+            filesystem.search.add(log);
+        }
+        waitForIndex();
+        Thread compaction = Thread.ofVirtual().start(() -> {
+            try {
+                filesystem.search.compact();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        // searches and new records go on while the file is rewritten
+        for (int i = 0; i < 100; i++) {
+            filesystem.search.add(other);
+            assertEquals(List.of("b", "a"), search("compiling"));
+        }
+        compaction.join();
+        long records = filesystem.search.records;
+
+        filesystem.close();
+        filesystem = new Filesystem(root.getPath(), true);
+        assertEquals(records, filesystem.search.records);
+        assertEquals(List.of("b", "a"), search("compiling"));
+        assertEquals(List.of("b"), search("\"connection refused\""));
+    }
+}
@@ -0,0 +1,121 @@
+package se.kth;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+
+public class SurefireReportsTest {
+    File project;
+    File reports;
+
+    @Before
+    public void setUp() throws IOException {
+        project = Files.createTempDirectory("reports").toFile();
+        reports = new File(project, "target/surefire-reports");
+        Boolean _ = reports.mkdirs();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(project);
+    }
+
+    @Test
+    public void readTest() throws IOException {
+        Files.writeString(new File(reports, "TEST-se.kth.FooTest.xml").toPath(), """
+                <?xml version="1.0" encoding="UTF-8"?>
+                <testsuite xmlns:xsi="http://www.w3.org/2001/XMLSchema-instance" name="se.kth.FooTest" time="1,234.5" tests="4">
+                  <properties><property name="failure" value="not a failure"/></properties>
+                  <testcase name="passes" classname="se.kth.FooTest" time="0.5"/>
+                  <testcase name="fails" classname="se.kth.FooTest" time="0.1">
+                    <failure message="expected" type="java.lang.AssertionError">stack</failure>
+                    <system-out><![CDATA[<error>]]></system-out>
+                  </testcase>
+                  <testcase name="flaky" classname="se.kth.FooTest" time="0.1">
+                    <flakyFailure message="once" type="java.lang.AssertionError"/>
+                  </testcase>
+                  <testcase name="skipped" classname="se.kth.FooTest" time="0"><skipped/></testcase>
+                </testsuite>
+                """);
+        Files.writeString(new File(reports, "TEST-se.kth.BarTest.xml").toPath(), """
+                <testsuite name="se.kth.BarTest" time="0.2">
+                  <testcase name="broken" classname="se.kth.BarTest" time="0.2"><error type="java.lang.NullPointerException"/></testcase>
+                </testsuite>
+                """);
+        // cut off by a killed fork
+        Files.writeString(new File(reports, "TEST-se.kth.BazTest.xml").toPath(), "<?xml version=\"1.0\"?><testsuite name=\"se.kth.BazTest\" time=\"3\"><testcase name=\"a\" classname=\"se.kth.BazTest\"><fail");
+        Files.writeString(new File(reports, "se.kth.FooTest.txt").toPath(), "not a report");
+
+        SurefireReports.Summary summary = SurefireReports.read(project);
+        assertEquals(Map.of("se.kth.FooTest", 1_234_500L, "se.kth.BarTest", 200L, "se.kth.BazTest", 3000L), summary.durations);
+        assertEquals(6, summary.run);
+        assertEquals(2, summary.failures);
+        assertEquals(1, summary.skipped);
+        assertEquals(List.of("se.kth.BarTest#broken", "se.kth.FooTest#fails"), List.copyOf(summary.failed));
+        assertEquals(List.of("se.kth.FooTest#flaky"), List.copyOf(summary.flaky));
+    }
+
+    @Test
+    public void renameTest() throws IOException {
+        Files.writeString(new File(reports, "TEST-se.kth.FooTest.xml").toPath(), """
+                <testsuite name="se.kth.FooTest" time="1">
+                  <testcase name="fails" classname="se.kth.FooTest" time="1"><failure/></testcase>
+                </testsuite>
+                """);
+        SurefireReports.rename(project, "first");
+        // the rest of the class ran later
+        Files.writeString(new File(reports, "TEST-se.kth.FooTest.xml").toPath(), """
+                <testsuite name="se.kth.FooTest" time="2">
+                  <testcase name="passes" classname="se.kth.FooTest" time="2"/>
+                </testsuite>
+                """);
+        SurefireReports.Summary summary = SurefireReports.read(project);
+        assertEquals(Set.of("se.kth.FooTest#fails"), summary.failed);
+        assertEquals(2, summary.run);
+        assertEquals(Map.of("se.kth.FooTest", 3000L), summary.durations);
+    }
+
+    @Test
+    public void historyTest() throws IOException {
+        File root = Files.createTempDirectory("history").toFile();
+        try {
+            Filesystem filesystem = new Filesystem(root.getPath(), false);
+            SurefireReports.Summary first = new SurefireReports.Summary();
+            first.run = 3;
+            first.failed.add("se.kth.OldTest#a");
+            SurefireReports.Summary second = new SurefireReports.Summary();
+            second.run = 3;
+            second.failed.add("se.kth.NewTest#b");
+            second.flaky.add("se.kth.OldTest#c");
+            filesystem.saveToFile("owner", "repo", "main", "a", new StringWriter(), Filesystem.BuildStatus.FAILED_TO_TEST, null, null, saved -> {
+                saved.setTestResults(first);
+                saved.time = 1000L;
+            });
+            filesystem.saveToFile("owner", "repo", "main", "b", new StringWriter(), Filesystem.BuildStatus.FAILED_TO_TEST, null, null, saved -> {
+                saved.setTestResults(second);
+                saved.time = 2000L;
+            });
+            filesystem.close();
+
+            // read back from the store, the latest build first
+            Filesystem loaded = new Filesystem(root.getPath(), false);
+            assertEquals(List.of("se.kth.NewTest#b", "se.kth.OldTest#c", "se.kth.OldTest#a"),
+                    List.copyOf(loaded.getRecentlyFailingTests("owner", "repo", "main")));
+            assertEquals(3, loaded.store.get("owner/repo/main", "b").testsRun);
+            loaded.close();
+        } finally {
+            FileUtils.deleteDirectory(root);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package se.kth;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestShardsTest {
+    File project;
+
+    @Before
+    public void setUp() throws IOException {
+        project = Files.createTempDirectory("shards").toFile();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(project);
+    }
+
+    void touch(String path) throws IOException {
+        File file = new File(project, path);
+        Boolean _ = file.getParentFile().mkdirs();
+        Files.write(file.toPath(), new byte[0]);
+    }
+
+    @Test
+    public void discoverTest() throws IOException {
+        touch("target/test-classes/se/kth/FooTest.class");
+        touch("target/test-classes/se/kth/FooTest$Inner.class");
+        touch("target/test-classes/se/kth/Helper.class");
+        touch("module/target/test-classes/TestBar.class");
+        touch("module/target/classes/se/kth/MainTest.class");
+        assertEquals(List.of("TestBar", "se.kth.FooTest"), TestShards.discover(project));
+    }
+
+    @Test
+    public void splitTest() {
+        Map<String, Long> history = Map.of("A", 100L, "B", 60L, "C", 50L, "D", 40L, "E", 10L);
+        List<List<String>> shards = TestShards.split(List.of("A", "B", "C", "D", "E"), history, 2);
+        // the longest first, each to the shard with the least time
+        assertEquals(List.of(List.of("A", "D"), List.of("B", "C", "E")), shards);
+
+        // classes without history count as the median, here 60 like B
+        assertEquals(List.of(List.of("A"), List.of("B", "E"), List.of("New")),
+                TestShards.split(List.of("New", "A", "B", "E"), Map.of("A", 100L, "B", 60L, "E", 10L), 3));
+        // never more shards than classes
+        assertEquals(1, TestShards.split(List.of("A"), history, 8).size());
+    }
+
+    @Test
+    public void patternsTest() {
+        List<String> tests = List.of("se.kth.FooTest#a", "se.kth.BarTest#b[1]", "se.kth.FooTest#c(int)", "se.kth.GoneTest#d",
+                "se.kth.BarTest#b[2]", "se.kth.BazTest#[1] display name", "se.kth.BazTest#e");
+        assertEquals(List.of("se.kth.FooTest#a+c", "se.kth.BarTest#b", "se.kth.BazTest"),
+                TestShards.getPatterns(tests, List.of("se.kth.BarTest", "se.kth.BazTest", "se.kth.FooTest")));
+    }
+
+    @Test
+    public void excludeTest() {
+        List<String> ran = List.of("se.kth.FooTest#a+c", "se.kth.BarTest");
+        assertEquals("se.kth.FooTest,se.kth.BazTest,!se.kth.FooTest#a+c",
+                TestShards.exclude(List.of("se.kth.FooTest", "se.kth.BazTest"), ran));
+        assertEquals("se.kth.BazTest", TestShards.exclude(List.of("se.kth.BazTest"), ran));
+    }
+
+    @Test
+    public void failFastStopsOtherShardsTest() throws Exception {
+        // a mvn that fails the shard with FailTest at once and runs the other one for a minute
+        File script = new File(project, "mvn");
+        Files.writeString(script.toPath(), "#!/bin/sh\ncase \"$*\" in\n*FailTest*) exit 1 ;;\nesac\nsleep 60\n");
+        assertTrue(script.setExecutable(true));
+        String mvn = ContinuousIntegration.mvn;
+        ContinuousIntegration.mvn = script.getPath();
+        try {
+            ContinuousIntegration ci = new ContinuousIntegration(project.getPath());
+            ci.failFast = true;
+            long start = System.nanoTime();
+            assertFalse(ci.runShards(new StringWriter(), List.of("SlowTest", "FailTest"), "shard"));
+            // the slow shard was killed instead of running to its end
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(30));
+        } finally {
+            ContinuousIntegration.mvn = mvn;
+        }
+    }
+}
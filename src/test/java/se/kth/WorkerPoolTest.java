@@ -0,0 +1,162 @@
+package se.kth;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.*;
+
+public class WorkerPoolTest {
+    File file;
+    BuildLog log;
+    WorkerPool pool;
+
+    @Before
+    public void setUp() throws IOException {
+        file = Files.createTempFile("worker", ".log").toFile();
+        log = new BuildLog(file);
+        pool = new WorkerPool("secret");
+        pool.timeoutMillis = 1000;
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        log.close();
+        Boolean _ = file.delete();
+    }
+
+    BuildQueue.BuildJob job(long id, String commit) {
+        return new BuildQueue.BuildJob(id, "repository", "owner", "repo", "main", commit);
+    }
+
+    CompletableFuture<Filesystem.BuildData> build(BuildQueue.BuildJob job) throws InterruptedException {
+        CompletableFuture<Filesystem.BuildData> result = new CompletableFuture<>();
+        Thread.ofVirtual().start(() -> {
+            try {
+                result.complete(pool.build(job, new JSONObject().put("id", job.id), log));
+            } catch (Throwable t) {
+                result.completeExceptionally(t);
+            }
+        });
+        while (!pool.assignments.containsKey(job.id)) {
+            Thread.sleep(10);
+        }
+        return result;
+    }
+
+    static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void tokenTest() throws Exception {
+        assertThrows(IllegalArgumentException.class, () -> new WorkerPool(null));
+        assertThrows(IllegalArgumentException.class, () -> new WorkerPool(" "));
+
+        for (String authorization : new String[]{null, "Bearer wrong", "secret"}) {
+            // a request without the token is refused before anything is read
+            HttpServletRequest request = (HttpServletRequest) Proxy.newProxyInstance(getClass().getClassLoader(),
+                    new Class<?>[]{HttpServletRequest.class}, (_, method, args) ->
+                            method.getName().equals("getHeader") && args[0].equals("Authorization") ? authorization : null);
+            int[] status = new int[1];
+            HttpServletResponse response = (HttpServletResponse) Proxy.newProxyInstance(getClass().getClassLoader(),
+                    new Class<?>[]{HttpServletResponse.class}, (_, method, args) -> {
+                        if (method.getName().equals("setStatus")) {
+                            status[0] = (int) args[0];
+                        }
+                        return null;
+                    });
+            pool.handle("register", request, response);
+            assertEquals(HttpServletResponse.SC_UNAUTHORIZED, status[0]);
+            assertTrue(pool.workers.isEmpty());
+        }
+        assertTrue(pool.isAuthorized("Bearer secret"));
+    }
+
+    @Test
+    public void buildOnWorkerTest() throws Exception {
+        WorkerPool.RemoteWorker worker = pool.register("w", 2);
+        CompletableFuture<Filesystem.BuildData> result = build(job(1, "c1"));
+        WorkerPool.Assignment assignment = pool.poll(worker, 1000);
+        assertEquals(1, assignment.attempt);
+
+        assertTrue(pool.appendLog(worker, 1, 1, 0, bytes("abc")));
+        // a part that is sent again is only written once
+        assertTrue(pool.appendLog(worker, 1, 1, 0, bytes("abcdef")));
+        // a part after a gap is refused
+        assertFalse(pool.appendLog(worker, 1, 1, 10, bytes("x")));
+        assertEquals("abcdef", log.getTail());
+
+        assertTrue(pool.finish(worker, 1, 1, new Filesystem.BuildData(null, Filesystem.BuildStatus.SUCCESS, "c1")));
+        assertEquals(Filesystem.BuildStatus.SUCCESS, result.get().status);
+        assertTrue(worker.running.isEmpty());
+        assertTrue(pool.assignments.isEmpty());
+    }
+
+    @Test
+    public void deadWorkerTest() throws Exception {
+        WorkerPool.RemoteWorker first = pool.register("first", 1);
+        WorkerPool.RemoteWorker second = pool.register("second", 1);
+        CompletableFuture<Filesystem.BuildData> result = build(job(1, "c1"));
+        assertNotNull(pool.poll(first, 1000));
+
+        second.lastSeen = first.lastSeen + 2000;
+        pool.reap(first.lastSeen + 1500);
+        assertFalse(pool.workers.containsKey(first.id));
+        assertTrue(pool.workers.containsKey(second.id));
+
+        WorkerPool.Assignment assignment = pool.poll(second, 1000);
+        assertEquals(2, assignment.attempt);
+        // the first worker is no longer heard
+        assertFalse(pool.appendLog(first, 1, 1, 0, bytes("old")));
+        assertFalse(pool.finish(first, 1, 1, new Filesystem.BuildData(null, Filesystem.BuildStatus.SUCCESS, "c1")));
+        assertTrue(pool.finish(second, 1, 2, new Filesystem.BuildData(null, Filesystem.BuildStatus.FAILED_TO_TEST, "c1")));
+        assertEquals(Filesystem.BuildStatus.FAILED_TO_TEST, result.get().status);
+        assertTrue(log.getTail().contains("Worker first stopped responding, building again"));
+    }
+
+    @Test
+    public void lostJobTest() throws Exception {
+        WorkerPool.RemoteWorker worker = pool.register("w", 1);
+        CompletableFuture<Filesystem.BuildData> result = build(job(1, "c1"));
+        WorkerPool.Assignment assignment = pool.poll(worker, 1000);
+        for (int attempt = 1; attempt <= WorkerPool.MAX_ATTEMPTS; attempt++) {
+            assertEquals(attempt, assignment.attempt);
+            // the worker does not know about the job
+            assignment.assignedTime -= 2000;
+            pool.heartbeat(worker, Set.of());
+            assignment = pool.poll(worker, 100);
+        }
+        assertNull(assignment);
+        assertEquals(Filesystem.BuildStatus.FAILED_SETUP, result.get().status);
+    }
+
+    @Test
+    public void supersededTest() throws Exception {
+        WorkerPool.RemoteWorker worker = pool.register("w", 1);
+        BuildQueue.BuildJob running = job(1, "c1");
+        build(running);
+        assertNotNull(pool.poll(worker, 1000));
+        BuildQueue.BuildJob waiting = job(2, "c2");
+        CompletableFuture<Filesystem.BuildData> result = build(waiting);
+
+        BuildQueue.BuildJob newer = job(3, "c3");
+        running.supersede(newer);
+        waiting.supersede(newer);
+        // the worker is told to stop, the job no worker has is finished at once
+        assertEquals("c3", pool.heartbeat(worker, Set.of(1L)).getString("1"));
+        assertEquals(Filesystem.BuildStatus.SUPERSEDED, result.get().status);
+        assertTrue(pool.pending.isEmpty());
+    }
+}
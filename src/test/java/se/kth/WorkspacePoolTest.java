@@ -0,0 +1,55 @@
+package se.kth;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class WorkspacePoolTest {
+    File root;
+    WorkspacePool pool;
+
+    @After
+    public void tearDown() throws Exception {
+        if (pool != null) {
+            // the trash is emptied in the background
+            pool.cleaner.submit(() -> {
+            }).get();
+        }
+        if (root != null) {
+            FileUtils.deleteDirectory(root);
+        }
+    }
+
+    @Test
+    public void workspacesAreIsolatedTest() throws Exception {
+        root = Files.createTempDirectory("workspaces").toFile();
+        pool = new WorkspacePool(root.getPath(), 2);
+
+        File first = pool.acquire();
+        File second = pool.acquire();
+        assertNotEquals(first, second);
+        assertEquals(0, pool.getFreeCount());
+    }
+
+    @Test
+    public void releasedWorkspaceIsEmptyTest() throws Exception {
+        root = Files.createTempDirectory("workspaces").toFile();
+        pool = new WorkspacePool(root.getPath(), 1);
+
+        File workspace = pool.acquire();
+        FileUtils.writeStringToFile(new File(workspace, "build/output.txt"), "old build", "UTF-8");
+        pool.release(workspace);
+
+        File reused = pool.acquire();
+        assertEquals(workspace, reused);
+        assertTrue(reused.isDirectory());
+        assertEquals(0, reused.list().length);
+    }
+}